@@ -0,0 +1,131 @@
+package server;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import grpcbridge.Bridge;
+import grpcbridge.http.HttpMethod;
+import grpcbridge.http.HttpRequest;
+import http.Headers;
+import io.grpc.StatusRuntimeException;
+import server.proto.Proxy.GetTokenResponse;
+import server.proto.Proxy.GetTransactionsResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the HTTP to gRPC path: {@link Application#handle} end to end against a proxy
+ * with stubbed upstream calls, the bridge on its own, and the JSON transcoding of the
+ * largest responses. Run with the GC profiler to get the bytes allocated per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BridgeBenchmark {
+    private Metrics metrics;
+    private Bridge bridge;
+    private FakeRequest getToken;
+    private FakeRequest getTransactions;
+    private FakeRequest getTransactionsUnauthorized;
+    private HttpRequest getTokenHttpRequest;
+    private GetTokenResponse tokenResponse;
+    private GetTransactionsResponse transactionsResponse;
+    private String tokenJson;
+    private String transactionsJson;
+    private JsonFormat.Printer printer;
+    private JsonFormat.Parser parser;
+
+    @Setup
+    public void setup() throws InvalidProtocolBufferException {
+        metrics = new Metrics();
+        bridge = Fixtures.bridge(Fixtures.service(metrics));
+
+        // The sample token expired long ago, so it is never served from the token cache.
+        getToken = new FakeRequest("GET", "/tokens/" + Fixtures.TOKEN_ID, null, "");
+        String transactionsPath = "/accounts/" + Fixtures.ACCOUNT_ID + "/transactions";
+        getTransactions = new FakeRequest(
+                "GET",
+                transactionsPath,
+                "limit=" + Fixtures.PAGE_SIZE,
+                "")
+                .header(Headers.AUTHORIZATION, Fixtures.ACCESS_TOKEN_ID);
+        getTransactionsUnauthorized = new FakeRequest(
+                "GET",
+                transactionsPath,
+                "limit=" + Fixtures.PAGE_SIZE,
+                "");
+        getTokenHttpRequest = HttpRequest
+                .builder(HttpMethod.GET, "/tokens/" + Fixtures.TOKEN_ID)
+                .body("")
+                .build();
+
+        tokenResponse = GetTokenResponse.newBuilder().setToken(Fixtures.token()).build();
+        transactionsResponse = Fixtures.transactions();
+        printer = JsonFormat.printer();
+        parser = JsonFormat.parser();
+        tokenJson = printer.print(tokenResponse);
+        transactionsJson = printer.print(transactionsResponse);
+    }
+
+    @Benchmark
+    public String handleGetToken() throws Exception {
+        return Application.handle(bridge, metrics, getToken);
+    }
+
+    @Benchmark
+    public String handleGetTransactions() throws Exception {
+        return Application.handle(bridge, metrics, getTransactions);
+    }
+
+    @Benchmark
+    public int handleError() throws Exception {
+        try {
+            Application.handle(bridge, metrics, getTransactionsUnauthorized);
+            throw new IllegalStateException("Request should have been rejected");
+        } catch (StatusRuntimeException e) {
+            return Application.httpStatus(e.getStatus().getCode());
+        }
+    }
+
+    @Benchmark
+    public String bridgeGetToken() {
+        return bridge.handle(getTokenHttpRequest).getBody();
+    }
+
+    @Benchmark
+    public String printToken() throws InvalidProtocolBufferException {
+        return printer.print(tokenResponse);
+    }
+
+    @Benchmark
+    public String printTransactions() throws InvalidProtocolBufferException {
+        return printer.print(transactionsResponse);
+    }
+
+    @Benchmark
+    public GetTokenResponse parseToken() throws InvalidProtocolBufferException {
+        GetTokenResponse.Builder builder = GetTokenResponse.newBuilder();
+        parser.merge(tokenJson, builder);
+        return builder.build();
+    }
+
+    @Benchmark
+    public GetTransactionsResponse parseTransactions() throws InvalidProtocolBufferException {
+        GetTransactionsResponse.Builder builder = GetTransactionsResponse.newBuilder();
+        parser.merge(transactionsJson, builder);
+        return builder.build();
+    }
+}
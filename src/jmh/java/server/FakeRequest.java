@@ -0,0 +1,67 @@
+package server;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import spark.Request;
+
+/**
+ * In-memory Spark request, so that the HTTP handler can be benchmarked without Jetty.
+ */
+class FakeRequest extends Request {
+    private final String method;
+    private final String path;
+    private final String query;
+    private final String body;
+    private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    FakeRequest(String method, String path, String query, String body) {
+        this.method = method;
+        this.path = path;
+        this.query = query;
+        this.body = body;
+        // Headers a typical client sends along, none of which the proxy reads.
+        headers.put("Host", "127.0.0.1:4567");
+        headers.put("User-Agent", "curl/7.54.0");
+        headers.put("Accept", "*/*");
+        headers.put("Accept-Encoding", "gzip, deflate");
+        headers.put("Connection", "keep-alive");
+    }
+
+    FakeRequest header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    @Override
+    public String requestMethod() {
+        return method;
+    }
+
+    @Override
+    public String pathInfo() {
+        return path;
+    }
+
+    @Override
+    public String queryString() {
+        return query;
+    }
+
+    @Override
+    public String body() {
+        return body;
+    }
+
+    @Override
+    public String headers(String header) {
+        return headers.get(header);
+    }
+
+    @Override
+    public Set<String> headers() {
+        return Collections.unmodifiableSet(headers.keySet());
+    }
+}
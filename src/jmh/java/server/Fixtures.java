@@ -0,0 +1,136 @@
+package server;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.io.Resources;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonFormat;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import grpcbridge.Bridge;
+import grpcbridge.BridgeBuilder;
+import http.HeadersInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.reactivex.Observable;
+import io.token.Member;
+import io.token.MemberAsync;
+import io.token.RepresentableAsync;
+import io.token.TokenIO;
+import io.token.proto.PagedList;
+import io.token.proto.common.token.TokenProtos.Token;
+import io.token.proto.common.transaction.TransactionProtos.Transaction;
+import server.proto.Proxy.GetTokenResponse;
+import server.proto.Proxy.GetTransactionsResponse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Representative payloads, and a proxy wired to a stubbed member that answers every
+ * upstream call immediately with them.
+ */
+final class Fixtures {
+    static final String TOKEN_ID = "tt:Dkjm8ysbkWxP6CBV8WbffJrZS6AGoBHTfoBwnU6erFDh:5zKcENpV";
+    static final String ACCESS_TOKEN_ID =
+            "ta:4yr8Aow193um9EJ8SE231Aud6JKGf5xyTHGHknar15QF:5zKtXEAq";
+    static final String ACCOUNT_ID = "a:6VAYc1RooMSaDjVkfCV22e4FYB4sTxhDRbfQ9JtUnuCw:8QSLX5njxscQ";
+    static final int PAGE_SIZE = 100;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Returns a transfer token with pricing and two endorsements, as in the README.
+     *
+     * @return token
+     */
+    static Token token() {
+        return parse("get-token-response.json", GetTokenResponse.newBuilder()).getToken();
+    }
+
+    /**
+     * Returns a page of {@link #PAGE_SIZE} bank transactions with metadata.
+     *
+     * @return transactions response
+     */
+    static GetTransactionsResponse transactions() {
+        GetTransactionsResponse sample = parse(
+                "get-transactions-response.json",
+                GetTransactionsResponse.newBuilder());
+        GetTransactionsResponse.Builder page = GetTransactionsResponse.newBuilder()
+                .setOffset(sample.getOffset());
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            Transaction transaction = sample.getTransactions(i % sample.getTransactionsCount());
+            page.addTransactions(transaction.toBuilder().setId(transaction.getId() + "-" + i));
+        }
+        return page.build();
+    }
+
+    /**
+     * Creates a proxy whose upstream calls are answered by stubs. Request logging is
+     * disabled so that only the proxy itself is measured.
+     *
+     * @param metrics metrics registry
+     * @return service with the interceptors of the application
+     */
+    static ServerServiceDefinition service(Metrics metrics) {
+        Config config = ConfigFactory
+                .parseString("logging.defaultSampleRate = 0, transferQueue.enabled = false")
+                .withFallback(ConfigFactory.load());
+
+        Token token = token();
+        GetTransactionsResponse transactions = transactions();
+        RepresentableAsync representable = mock(RepresentableAsync.class);
+        when(representable.getTransactions(anyString(), anyString(), anyInt(), any()))
+                .thenAnswer(invocation -> Observable.just(PagedList.create(
+                        transactions.getTransactionsList(),
+                        transactions.getOffset())));
+        MemberAsync memberAsync = mock(MemberAsync.class);
+        when(memberAsync.getToken(anyString()))
+                .thenAnswer(invocation -> Observable.just(token));
+        when(memberAsync.forAccessToken(anyString())).thenReturn(representable);
+        Member member = mock(Member.class);
+        when(member.async()).thenReturn(memberAsync);
+        when(member.memberId()).thenReturn("m:2ZooBovcBG9zLTPMMgkQFVrK9YLf:5zKtXEAq");
+
+        ProxyServer proxyServer = new ProxyServer(config, metrics, mock(TokenIO.class), member);
+        return ServerInterceptors.intercept(
+                proxyServer,
+                new HeadersInterceptor(),
+                new AdmissionInterceptor(config, metrics),
+                new MetricsInterceptor(metrics),
+                new ResponseCacheInterceptor(),
+                new EntityTagInterceptor());
+    }
+
+    /**
+     * Creates a bridge over a service, as the application does.
+     *
+     * @param service service definition
+     * @return bridge
+     */
+    static Bridge bridge(ServerServiceDefinition service) {
+        return new BridgeBuilder()
+                .addFile(server.proto.Proxy.getDescriptor())
+                .addService(service)
+                .build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Message> T parse(String resource, Message.Builder builder) {
+        try {
+            JsonFormat.parser().merge(
+                    Resources.toString(Resources.getResource(resource), UTF_8),
+                    builder);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return (T) builder.build();
+    }
+}
@@ -0,0 +1,97 @@
+package server;
+
+import static io.grpc.Status.NOT_FOUND;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import http.Headers;
+import io.grpc.StatusRuntimeException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the per-request work done around the bridge: reading headers, assembling the
+ * request path and mapping errors to HTTP statuses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+    private FakeRequest request;
+    private FakeRequest requestWithoutQuery;
+    private StatusRuntimeException statusError;
+    private CompletionException wrappedError;
+
+    @Setup
+    public void setup() {
+        request = new FakeRequest(
+                "GET",
+                "/accounts/" + Fixtures.ACCOUNT_ID + "/transactions",
+                "offset=CSX7tB4nXfs6z6fsT2NcJJACyTyJG42ftZghBrjrmq8mA4X6K9EN&limit=100",
+                "")
+                .header(Headers.AUTHORIZATION, Fixtures.ACCESS_TOKEN_ID);
+        requestWithoutQuery = new FakeRequest(
+                "GET",
+                "/accounts/" + Fixtures.ACCOUNT_ID,
+                null,
+                "");
+        statusError = NOT_FOUND.withDescription("Account not found").asRuntimeException();
+        wrappedError = new CompletionException(statusError);
+    }
+
+    /**
+     * Header lookup through the lazy view the proxy binds to the call context.
+     */
+    @Benchmark
+    public Optional<String> headerView() {
+        return Headers.of(request::headers).get(Headers.AUTHORIZATION);
+    }
+
+    /**
+     * Header lookup through a copy of all headers, for comparison with {@link #headerView}.
+     */
+    @Benchmark
+    public String headerMapCopy() {
+        Map<String, String> headers = new HashMap<>();
+        for (String name : request.headers()) {
+            headers.put(name, request.headers(name));
+        }
+        return headers.get(Headers.AUTHORIZATION);
+    }
+
+    @Benchmark
+    public String requestPath() {
+        return Application.requestPath(request);
+    }
+
+    @Benchmark
+    public String requestPathWithoutQuery() {
+        return Application.requestPath(requestWithoutQuery);
+    }
+
+    @Benchmark
+    public int httpStatus() {
+        return Application.httpStatus(statusError.getStatus().getCode());
+    }
+
+    @Benchmark
+    public StatusRuntimeException toStatusException() {
+        return Async.toStatusException(wrappedError);
+    }
+}
@@ -0,0 +1,93 @@
+package loadtest;
+
+import static io.grpc.Status.UNAVAILABLE;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import com.typesafe.config.Config;
+import io.grpc.stub.StreamObserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Latency and error behaviour of the fake gateway, per gateway method. Latencies are drawn
+ * from a log-normal distribution given by its median and 99th percentile, which is close to
+ * what remote calls look like, including the long tail.
+ */
+class CallProfile {
+    // Number of standard deviations between the median and the 99th percentile.
+    private static final double Z_99 = 2.3263;
+
+    private final Config config;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Behaviour> behaviours = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a profile.
+     *
+     * @param config gateway profile, with a {@code default} entry and optional per-method ones
+     * @param scheduler scheduler used to delay responses
+     */
+    CallProfile(Config config, ScheduledExecutorService scheduler) {
+        this.config = config;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Answers a call after a simulated delay, or fails it with UNAVAILABLE at the configured
+     * error rate.
+     *
+     * @param method gateway method name
+     * @param observer response observer
+     * @param response builds the response
+     * @param <T> response type
+     */
+    <T> void respond(String method, StreamObserver<T> observer, Supplier<T> response) {
+        Behaviour behaviour = behaviours.computeIfAbsent(method, this::load);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delayMicros = (long) (1000 * Math.exp(
+                behaviour.mu + behaviour.sigma * random.nextGaussian()));
+        boolean fail = random.nextDouble() < behaviour.errorRate;
+        scheduler.schedule(() -> {
+            if (fail) {
+                observer.onError(UNAVAILABLE
+                        .withDescription("Injected failure")
+                        .asRuntimeException());
+            } else {
+                try {
+                    observer.onNext(response.get());
+                    observer.onCompleted();
+                } catch (RuntimeException e) {
+                    observer.onError(e);
+                }
+            }
+        }, delayMicros, MICROSECONDS);
+    }
+
+    private Behaviour load(String method) {
+        Config behaviour = config.hasPath(method)
+                ? config.getConfig(method).withFallback(config.getConfig("default"))
+                : config.getConfig("default");
+        double median = Math.max(0.001, behaviour.getDouble("medianMs"));
+        double p99 = Math.max(median, behaviour.getDouble("p99Ms"));
+        return new Behaviour(
+                Math.log(median),
+                (Math.log(p99) - Math.log(median)) / Z_99,
+                behaviour.getDouble("errorRate"));
+    }
+
+    private static final class Behaviour {
+        private final double mu;
+        private final double sigma;
+        private final double errorRate;
+
+        private Behaviour(double mu, double sigma, double errorRate) {
+            this.mu = mu;
+            this.sigma = sigma;
+            this.errorRate = errorRate;
+        }
+    }
+}
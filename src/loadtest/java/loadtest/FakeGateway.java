@@ -0,0 +1,332 @@
+package loadtest;
+
+import static io.token.proto.common.token.TokenProtos.TokenSignature.Action.ENDORSED;
+import static io.token.proto.common.transaction.TransactionProtos.RequestStatus.SUCCESSFUL_REQUEST;
+import static io.token.proto.common.transaction.TransactionProtos.TransactionStatus.SUCCESS;
+import static io.token.proto.common.transaction.TransactionProtos.TransactionType.DEBIT;
+
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.token.proto.common.account.AccountProtos.Account;
+import io.token.proto.common.alias.AliasProtos.Alias;
+import io.token.proto.common.member.MemberProtos.Member;
+import io.token.proto.common.member.MemberProtos.MemberOperation;
+import io.token.proto.common.money.MoneyProtos.Money;
+import io.token.proto.common.security.SecurityProtos.Signature;
+import io.token.proto.common.token.TokenProtos.Token;
+import io.token.proto.common.token.TokenProtos.TokenMember;
+import io.token.proto.common.token.TokenProtos.TokenPayload;
+import io.token.proto.common.token.TokenProtos.TokenRequest;
+import io.token.proto.common.token.TokenProtos.TokenSignature;
+import io.token.proto.common.token.TokenProtos.TransferBody;
+import io.token.proto.common.transaction.TransactionProtos.Balance;
+import io.token.proto.common.transaction.TransactionProtos.Transaction;
+import io.token.proto.common.transfer.TransferProtos.Transfer;
+import io.token.proto.gateway.Gateway.CreateMemberRequest;
+import io.token.proto.gateway.Gateway.CreateMemberResponse;
+import io.token.proto.gateway.Gateway.CreateTransferRequest;
+import io.token.proto.gateway.Gateway.CreateTransferResponse;
+import io.token.proto.gateway.Gateway.GetAccountRequest;
+import io.token.proto.gateway.Gateway.GetAccountResponse;
+import io.token.proto.gateway.Gateway.GetAccountsRequest;
+import io.token.proto.gateway.Gateway.GetAccountsResponse;
+import io.token.proto.gateway.Gateway.GetAliasesRequest;
+import io.token.proto.gateway.Gateway.GetAliasesResponse;
+import io.token.proto.gateway.Gateway.GetBalanceRequest;
+import io.token.proto.gateway.Gateway.GetBalanceResponse;
+import io.token.proto.gateway.Gateway.GetMemberRequest;
+import io.token.proto.gateway.Gateway.GetMemberResponse;
+import io.token.proto.gateway.Gateway.GetTokenRequest;
+import io.token.proto.gateway.Gateway.GetTokenResponse;
+import io.token.proto.gateway.Gateway.GetTransactionRequest;
+import io.token.proto.gateway.Gateway.GetTransactionResponse;
+import io.token.proto.gateway.Gateway.GetTransactionsRequest;
+import io.token.proto.gateway.Gateway.GetTransactionsResponse;
+import io.token.proto.gateway.Gateway.ResolveAliasRequest;
+import io.token.proto.gateway.Gateway.ResolveAliasResponse;
+import io.token.proto.gateway.Gateway.StoreTokenRequestRequest;
+import io.token.proto.gateway.Gateway.StoreTokenRequestResponse;
+import io.token.proto.gateway.Gateway.UpdateMemberRequest;
+import io.token.proto.gateway.Gateway.UpdateMemberResponse;
+import io.token.proto.gateway.GatewayServiceGrpc.GatewayServiceImplBase;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the Token gateway, with just enough of the member, token, transfer and
+ * account calls for the proxy to start and serve the payment and account information flows.
+ * Requests are not authenticated, and every token and access token id is accepted. Each call
+ * is answered through a {@link CallProfile}, which adds latency and injects failures.
+ */
+class FakeGateway extends GatewayServiceImplBase {
+    private static final int ACCOUNTS_PER_USER = 3;
+    private static final String BANK_ID = "iron";
+
+    private final CallProfile profile;
+    private final Alias alias;
+    private final Map<String, Member> members = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private Server server;
+
+    /**
+     * Creates a gateway.
+     *
+     * @param profile latency and error behaviour
+     * @param domain domain alias of the merchant member
+     */
+    FakeGateway(CallProfile profile, String domain) {
+        this.profile = profile;
+        this.alias = Alias.newBuilder()
+                .setType(Alias.Type.DOMAIN)
+                .setValue(domain)
+                .build();
+    }
+
+    /**
+     * Starts serving on a free local port.
+     *
+     * @return port number
+     * @throws IOException if the server could not be started
+     */
+    int start() throws IOException {
+        server = ServerBuilder.forPort(0).addService(this).build().start();
+        return server.getPort();
+    }
+
+    void stop() throws InterruptedException {
+        server.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void resolveAlias(
+            ResolveAliasRequest request,
+            StreamObserver<ResolveAliasResponse> responseObserver) {
+        // No alias is taken, so that the proxy creates a fresh member on every run.
+        profile.respond(
+                "ResolveAlias",
+                responseObserver,
+                ResolveAliasResponse::getDefaultInstance);
+    }
+
+    @Override
+    public void createMember(
+            CreateMemberRequest request,
+            StreamObserver<CreateMemberResponse> responseObserver) {
+        profile.respond("CreateMember", responseObserver, () -> {
+            String memberId = "m:load-" + ids.incrementAndGet() + ":5zKtXEAq";
+            members.put(memberId, Member.newBuilder().setId(memberId).build());
+            return CreateMemberResponse.newBuilder()
+                    .setMemberId(memberId)
+                    .build();
+        });
+    }
+
+    @Override
+    public void updateMember(
+            UpdateMemberRequest request,
+            StreamObserver<UpdateMemberResponse> responseObserver) {
+        profile.respond("UpdateMember", responseObserver, () -> {
+            String memberId = request.getUpdate().getMemberId();
+            Member.Builder member = members
+                    .getOrDefault(memberId, Member.newBuilder().setId(memberId).build())
+                    .toBuilder()
+                    .setLastHash("hash-" + ids.incrementAndGet());
+            for (MemberOperation operation : request.getUpdate().getOperationsList()) {
+                if (operation.hasAddKey()) {
+                    member.addKeys(operation.getAddKey().getKey());
+                }
+            }
+            members.put(memberId, member.build());
+            return UpdateMemberResponse.newBuilder()
+                    .setMember(member)
+                    .build();
+        });
+    }
+
+    @Override
+    public void getMember(
+            GetMemberRequest request,
+            StreamObserver<GetMemberResponse> responseObserver) {
+        profile.respond("GetMember", responseObserver, () -> GetMemberResponse.newBuilder()
+                .setMember(members.getOrDefault(
+                        request.getMemberId(),
+                        Member.newBuilder().setId(request.getMemberId()).build()))
+                .build());
+    }
+
+    @Override
+    public void getAliases(
+            GetAliasesRequest request,
+            StreamObserver<GetAliasesResponse> responseObserver) {
+        profile.respond("GetAliases", responseObserver, () -> GetAliasesResponse.newBuilder()
+                .addAliases(alias)
+                .build());
+    }
+
+    @Override
+    public void storeTokenRequest(
+            StoreTokenRequestRequest request,
+            StreamObserver<StoreTokenRequestResponse> responseObserver) {
+        profile.respond(
+                "StoreTokenRequest",
+                responseObserver,
+                () -> StoreTokenRequestResponse.newBuilder()
+                        .setTokenRequest(TokenRequest.newBuilder()
+                                .setId("rq:load-" + ids.incrementAndGet() + ":5zKtXEAq"))
+                        .build());
+    }
+
+    @Override
+    public void getToken(
+            GetTokenRequest request,
+            StreamObserver<GetTokenResponse> responseObserver) {
+        profile.respond("GetToken", responseObserver, () -> GetTokenResponse.newBuilder()
+                .setToken(transferToken(request.getTokenId()))
+                .build());
+    }
+
+    @Override
+    public void createTransfer(
+            CreateTransferRequest request,
+            StreamObserver<CreateTransferResponse> responseObserver) {
+        profile.respond(
+                "CreateTransfer",
+                responseObserver,
+                () -> CreateTransferResponse.newBuilder()
+                        .setTransfer(Transfer.newBuilder()
+                                .setId("t:load-" + ids.incrementAndGet() + ":5zKcENpV")
+                                .setTransactionId("tx-" + ids.incrementAndGet())
+                                .setCreatedAtMs(System.currentTimeMillis())
+                                .setPayload(request.getPayload())
+                                .setStatus(SUCCESS))
+                        .build());
+    }
+
+    @Override
+    public void getAccounts(
+            GetAccountsRequest request,
+            StreamObserver<GetAccountsResponse> responseObserver) {
+        profile.respond("GetAccounts", responseObserver, () -> {
+            GetAccountsResponse.Builder response = GetAccountsResponse.newBuilder();
+            for (int i = 0; i < ACCOUNTS_PER_USER; i++) {
+                response.addAccounts(account("a:load-" + i + ":8QSLX5njxscQ"));
+            }
+            return response.build();
+        });
+    }
+
+    @Override
+    public void getAccount(
+            GetAccountRequest request,
+            StreamObserver<GetAccountResponse> responseObserver) {
+        profile.respond("GetAccount", responseObserver, () -> GetAccountResponse.newBuilder()
+                .setAccount(account(request.getAccountId()))
+                .build());
+    }
+
+    @Override
+    public void getBalance(
+            GetBalanceRequest request,
+            StreamObserver<GetBalanceResponse> responseObserver) {
+        profile.respond("GetBalance", responseObserver, () -> GetBalanceResponse.newBuilder()
+                .setBalance(Balance.newBuilder()
+                        .setAccountId(request.getAccountId())
+                        .setCurrent(money("1250.00"))
+                        .setAvailable(money("1180.35")))
+                .setStatus(SUCCESSFUL_REQUEST)
+                .build());
+    }
+
+    @Override
+    public void getTransaction(
+            GetTransactionRequest request,
+            StreamObserver<GetTransactionResponse> responseObserver) {
+        profile.respond(
+                "GetTransaction",
+                responseObserver,
+                () -> GetTransactionResponse.newBuilder()
+                        .setTransaction(transaction(request.getTransactionId()))
+                        .setStatus(SUCCESSFUL_REQUEST)
+                        .build());
+    }
+
+    @Override
+    public void getTransactions(
+            GetTransactionsRequest request,
+            StreamObserver<GetTransactionsResponse> responseObserver) {
+        profile.respond("GetTransactions", responseObserver, () -> {
+            int limit = request.getPage().getLimit();
+            long first = request.getPage().getOffset().isEmpty()
+                    ? 0
+                    : Long.parseLong(request.getPage().getOffset());
+            GetTransactionsResponse.Builder response = GetTransactionsResponse.newBuilder()
+                    .setOffset(Long.toString(first + limit))
+                    .setStatus(SUCCESSFUL_REQUEST);
+            for (long i = first; i < first + limit; i++) {
+                response.addTransactions(transaction("tx-" + i));
+            }
+            return response.build();
+        });
+    }
+
+    private Token transferToken(String tokenId) {
+        TokenMember merchant = TokenMember.newBuilder()
+                .setId(members.keySet().stream().findFirst().orElse(""))
+                .build();
+        TokenPayload payload = TokenPayload.newBuilder()
+                .setVersion("1.0")
+                .setRefId(tokenId)
+                .setFrom(TokenMember.newBuilder().setId("m:payer:5zKtXEAq"))
+                .setTo(merchant)
+                .setExpiresAtMs(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1))
+                .setTransfer(TransferBody.newBuilder()
+                        .setRedeemer(merchant)
+                        .setCurrency("EUR")
+                        .setLifetimeAmount("4.99")
+                        .setAmount("4.99"))
+                .build();
+        return Token.newBuilder()
+                .setId(tokenId)
+                .setPayload(payload)
+                .addPayloadSignatures(TokenSignature.newBuilder()
+                        .setAction(ENDORSED)
+                        .setSignature(Signature.newBuilder()
+                                .setMemberId("m:payer:5zKtXEAq")
+                                .setKeyId("load-key")
+                                .setSignature("load-signature")))
+                .build();
+    }
+
+    private static Account account(String accountId) {
+        return Account.newBuilder()
+                .setId(accountId)
+                .setName("Checking " + accountId)
+                .setBankId(BANK_ID)
+                .build();
+    }
+
+    private static Transaction transaction(String transactionId) {
+        return Transaction.newBuilder()
+                .setId(transactionId)
+                .setType(DEBIT)
+                .setStatus(SUCCESS)
+                .setAmount(money("6.00"))
+                .setDescription("Payment Id: pmt-" + transactionId)
+                .setCreatedAtMs(System.currentTimeMillis())
+                .putMetadata("bookingStatus", "Booked")
+                .putMetadata("dataSource", "CMA9")
+                .build();
+    }
+
+    private static Money money(String value) {
+        return Money.newBuilder()
+                .setCurrency("GBP")
+                .setValue(value)
+                .build();
+    }
+}
@@ -0,0 +1,63 @@
+package loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records every latency sample of a run, together with the outcome of each request, so that
+ * exact percentiles can be reported at the end. Runs are short enough for the samples to fit
+ * in memory.
+ */
+class LatencyRecorder {
+    private long[] samples = new long[1 << 16];
+    private int count;
+    private final Map<String, Long> outcomes = new TreeMap<>();
+
+    /**
+     * Records one request.
+     *
+     * @param nanos latency
+     * @param outcome HTTP status, or the failure for requests that got no response
+     */
+    synchronized void record(long nanos, String outcome) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[count++] = nanos;
+        outcomes.merge(outcome, 1L, Long::sum);
+    }
+
+    synchronized void reset() {
+        count = 0;
+        outcomes.clear();
+    }
+
+    synchronized int count() {
+        return count;
+    }
+
+    synchronized Map<String, Long> outcomes() {
+        return new TreeMap<>(outcomes);
+    }
+
+    /**
+     * Returns the latency percentiles of the recorded samples.
+     *
+     * @param percentiles percentiles, between 0 and 100
+     * @return latency in nanoseconds for each percentile, or zeros if nothing was recorded
+     */
+    synchronized long[] percentiles(double... percentiles) {
+        long[] result = new long[percentiles.length];
+        if (count == 0) {
+            return result;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        for (int i = 0; i < percentiles.length; i++) {
+            int rank = (int) Math.ceil(percentiles[i] / 100 * count) - 1;
+            result[i] = sorted[Math.max(0, Math.min(count - 1, rank))];
+        }
+        return result;
+    }
+}
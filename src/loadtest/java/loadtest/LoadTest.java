@@ -0,0 +1,165 @@
+package loadtest;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import server.Application;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of the proxy against a local fake of the Token gateway. Starts the fake gateway
+ * and the application in this JVM, then offers traffic at each configured rate in turn and
+ * reports the throughput, latency percentiles and resource usage at that rate. The rate at
+ * which the throughput stops following the offered load, or the tail latency takes off, is
+ * the saturation point of the proxy.
+ *
+ * <p>Settings are read from loadtest.conf, and can be overridden with system properties, e.g.
+ * {@code -Dloadtest.duration=60s}.
+ */
+public class LoadTest {
+    private static final String DOMAIN = "load-test.example.com";
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+    private static final long STARTUP_TIMEOUT_MS = 60000;
+
+    public static void main(String[] args) throws Exception {
+        Config config = ConfigFactory.systemProperties()
+                .withFallback(ConfigFactory.parseResources("loadtest.conf"))
+                .resolve()
+                .getConfig("loadtest");
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+                config.getInt("gateway.threads"),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("fake-gateway-%d")
+                        .setDaemon(true)
+                        .build());
+        FakeGateway gateway = new FakeGateway(
+                new CallProfile(config.getConfig("gateway.calls"), scheduler),
+                DOMAIN);
+        int gatewayPort = gateway.start();
+
+        // Point the proxy at the fake gateway, with no keys so that it creates a new member.
+        Path keys = Files.createTempDirectory("loadtest-keys");
+        int port = config.getInt("proxyPort");
+        System.setProperty("gateway.host", "localhost");
+        System.setProperty("gateway.port", Integer.toString(gatewayPort));
+        System.setProperty("gateway.useSsl", "false");
+        System.setProperty("keysDir", keys.toString());
+        System.setProperty("domain", DOMAIN);
+        System.setProperty("port", Integer.toString(port));
+        ConfigFactory.invalidateCaches();
+        Application.main(new String[0]);
+
+        String baseUrl = "http://127.0.0.1:" + port;
+        awaitReady(baseUrl);
+
+        ExecutorService clients = Executors.newFixedThreadPool(
+                config.getInt("clientThreads"),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("load-client-%d")
+                        .setDaemon(true)
+                        .build());
+        TrafficGenerator generator = new TrafficGenerator(
+                baseUrl,
+                clients,
+                config.getDouble("paymentShare"),
+                config.getInt("accessTokens"));
+        ResourceMonitor monitor = new ResourceMonitor(scheduler);
+
+        long warmupMs = config.getDuration("warmup", TimeUnit.MILLISECONDS);
+        long durationMs = config.getDuration("duration", TimeUnit.MILLISECONDS);
+        for (double rate : config.getDoubleList("rates")) {
+            generator.run(rate, warmupMs);
+            generator.reset();
+
+            monitor.start();
+            long start = System.nanoTime();
+            long started = generator.run(rate, durationMs);
+            double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+            String resources = monitor.stop();
+            report(rate, started, elapsedSeconds, generator, resources);
+        }
+
+        gateway.stop();
+        // Spark and the gRPC server of the application do not stop on their own.
+        System.exit(0);
+    }
+
+    private static void awaitReady(String baseUrl) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                HttpURLConnection connection =
+                        (HttpURLConnection) new URL(baseUrl + "/ready").openConnection();
+                if (connection.getResponseCode() == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Not listening yet.
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("Proxy did not start in time");
+    }
+
+    private static void report(
+            double rate,
+            long started,
+            double elapsedSeconds,
+            TrafficGenerator generator,
+            String resources) {
+        long completed = generator.flows().values().stream()
+                .mapToLong(LatencyRecorder::count)
+                .sum();
+        long succeeded = generator.flows().values().stream()
+                .mapToLong(flow -> flow.outcomes().getOrDefault("ok", 0L))
+                .sum();
+        long requests = generator.requests().values().stream()
+                .mapToLong(LatencyRecorder::count)
+                .sum();
+
+        System.out.printf("%n=== Offered load: %.0f flows/s ===%n", rate);
+        System.out.printf(
+                "flows: %d started, %d completed, %d succeeded; "
+                        + "throughput %.1f flows/s, %.1f requests/s%n",
+                started,
+                completed,
+                succeeded,
+                succeeded / elapsedSeconds,
+                requests / elapsedSeconds);
+        System.out.printf(
+                "%-42s %8s %9s %9s %9s  %s%n",
+                "",
+                "count",
+                "p50 ms",
+                "p99 ms",
+                "p99.9 ms",
+                "outcomes");
+        generator.flows().forEach(LoadTest::printRow);
+        generator.requests().forEach(LoadTest::printRow);
+        System.out.println("resources: " + resources);
+    }
+
+    private static void printRow(String name, LatencyRecorder recorder) {
+        long[] latencies = recorder.percentiles(PERCENTILES);
+        Map<String, Long> outcomes = recorder.outcomes();
+        System.out.printf(
+                "%-42s %8d %9.1f %9.1f %9.1f  %s%n",
+                name,
+                recorder.count(),
+                latencies[0] / 1e6,
+                latencies[1] / 1e6,
+                latencies[2] / 1e6,
+                outcomes);
+    }
+}
@@ -0,0 +1,78 @@
+package loadtest;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Samples the thread count and heap usage of the JVM once per second during a run, and the
+ * garbage collection work done over it. The proxy, the fake gateway and the traffic generator
+ * share the JVM, so the figures are an upper bound for the proxy alone.
+ */
+class ResourceMonitor {
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> sampling;
+    private int peakThreads;
+    private long peakHeapBytes;
+    private long heapBytesTotal;
+    private int samples;
+    private long gcCountAtStart;
+    private long gcMillisAtStart;
+
+    ResourceMonitor(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    synchronized void start() {
+        peakThreads = 0;
+        peakHeapBytes = 0;
+        heapBytesTotal = 0;
+        samples = 0;
+        gcCountAtStart = gcCount();
+        gcMillisAtStart = gcMillis();
+        sampling = scheduler.scheduleAtFixedRate(this::sample, 0, 1, SECONDS);
+    }
+
+    /**
+     * Stops sampling and summarizes the run.
+     *
+     * @return summary line
+     */
+    synchronized String stop() {
+        sampling.cancel(false);
+        return String.format(
+                "threads peak %d, heap peak %d MB avg %d MB, gc %d collections %d ms",
+                peakThreads,
+                peakHeapBytes >> 20,
+                samples == 0 ? 0 : (heapBytesTotal / samples) >> 20,
+                gcCount() - gcCountAtStart,
+                gcMillis() - gcMillisAtStart);
+    }
+
+    private synchronized void sample() {
+        long heap = memory.getHeapMemoryUsage().getUsed();
+        peakThreads = Math.max(peakThreads, threads.getThreadCount());
+        peakHeapBytes = Math.max(peakHeapBytes, heap);
+        heapBytesTotal += heap;
+        samples++;
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount)
+                .sum();
+    }
+
+    private static long gcMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime)
+                .sum();
+    }
+}
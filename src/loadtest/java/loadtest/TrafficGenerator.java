@@ -0,0 +1,238 @@
+package loadtest;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import server.proto.Proxy.GetAccountsResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the proxy over HTTP with payment and account information flows, started at a fixed
+ * rate whether or not earlier flows have completed. Flow latencies are measured from the
+ * time a flow was due to start, so that queueing in front of a saturated proxy shows up in
+ * the results instead of lowering the offered load.
+ */
+class TrafficGenerator {
+    static final String PAYMENT_FLOW = "payment flow";
+    static final String ACCOUNT_FLOW = "account information flow";
+
+    private static final int TIMEOUT_MS = 30000;
+    private static final int TRANSACTIONS_PER_PAGE = 20;
+
+    private final String baseUrl;
+    private final ExecutorService clients;
+    private final double paymentShare;
+    private final int accessTokens;
+    private final Map<String, LatencyRecorder> requests = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyRecorder> flows = new ConcurrentSkipListMap<>();
+    private final AtomicLong tokenIds = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final JsonFormat.Parser parser = JsonFormat.parser().ignoringUnknownFields();
+
+    /**
+     * Creates a traffic generator.
+     *
+     * @param baseUrl proxy URL, e.g. http://127.0.0.1:4567
+     * @param clients threads that run the flows
+     * @param paymentShare share of flows that are payment flows
+     * @param accessTokens number of distinct access tokens used by account information flows
+     */
+    TrafficGenerator(
+            String baseUrl,
+            ExecutorService clients,
+            double paymentShare,
+            int accessTokens) {
+        this.baseUrl = baseUrl;
+        this.clients = clients;
+        this.paymentShare = paymentShare;
+        this.accessTokens = accessTokens;
+    }
+
+    /**
+     * Starts flows at the given rate for the given time, then waits for the flows still in
+     * flight to complete.
+     *
+     * @param rate flows started per second
+     * @param durationMs time during which flows are started
+     * @return number of flows started
+     * @throws InterruptedException if interrupted while waiting for the flows
+     */
+    long run(double rate, long durationMs) throws InterruptedException {
+        long periodNanos = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        long end = start + durationMs * 1000000;
+        long started = 0;
+        for (long due = start; due < end; due = start + started * periodNanos) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            long dueNanos = due;
+            inFlight.incrementAndGet();
+            clients.execute(() -> {
+                try {
+                    runFlow(dueNanos);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+            started++;
+        }
+        long drainDeadline = System.nanoTime() + TIMEOUT_MS * 1000000L;
+        while (inFlight.get() > 0 && System.nanoTime() < drainDeadline) {
+            Thread.sleep(10);
+        }
+        return started;
+    }
+
+    /**
+     * Discards everything recorded so far, e.g. after a warm-up.
+     */
+    void reset() {
+        requests.values().forEach(LatencyRecorder::reset);
+        flows.values().forEach(LatencyRecorder::reset);
+    }
+
+    Map<String, LatencyRecorder> requests() {
+        return requests;
+    }
+
+    Map<String, LatencyRecorder> flows() {
+        return flows;
+    }
+
+    private void runFlow(long dueNanos) {
+        boolean payment = ThreadLocalRandom.current().nextDouble() < paymentShare;
+        String flow = payment ? PAYMENT_FLOW : ACCOUNT_FLOW;
+        String outcome = "ok";
+        try {
+            if (payment) {
+                paymentFlow();
+            } else {
+                accountFlow();
+            }
+        } catch (FlowFailure e) {
+            outcome = e.getMessage();
+        }
+        recorder(flows, flow).record(System.nanoTime() - dueNanos, outcome);
+    }
+
+    private void paymentFlow() throws FlowFailure {
+        request(
+                "POST /transfer-token-requests",
+                "POST",
+                "/transfer-token-requests",
+                null,
+                "{\"amount\":\"4.99\",\"currency\":\"EUR\",\"description\":\"Load test\","
+                        + "\"destination\":{\"sepa\":{\"iban\":\"DE16700222000072880129\"}},"
+                        + "\"callbackUrl\":\"http://localhost:3000/redeem\"}");
+        // The payer approves the request out of band; the fake gateway accepts any token id.
+        String tokenId = "tt:load-" + tokenIds.incrementAndGet() + ":5zKcENpV";
+        request("GET /tokens/{token_id}", "GET", "/tokens/" + tokenId, null, null);
+        request(
+                "POST /transfers",
+                "POST",
+                "/transfers",
+                null,
+                "{\"tokenId\":\"" + tokenId + "\"}");
+    }
+
+    private void accountFlow() throws FlowFailure {
+        String accessToken = "ta:load-"
+                + ThreadLocalRandom.current().nextInt(accessTokens)
+                + ":5zKtXEAq";
+        GetAccountsResponse.Builder accounts = GetAccountsResponse.newBuilder();
+        try {
+            parser.merge(
+                    request("GET /accounts", "GET", "/accounts", accessToken, null),
+                    accounts);
+        } catch (InvalidProtocolBufferException e) {
+            throw new FlowFailure("invalid response");
+        }
+        if (accounts.getAccountsCount() == 0) {
+            throw new FlowFailure("no accounts");
+        }
+        String accountId = accounts.getAccounts(0).getId();
+        request(
+                "GET /accounts/{account_id}/balance",
+                "GET",
+                "/accounts/" + accountId + "/balance",
+                accessToken,
+                null);
+        request(
+                "GET /accounts/{account_id}/transactions",
+                "GET",
+                "/accounts/" + accountId + "/transactions?limit=" + TRANSACTIONS_PER_PAGE,
+                accessToken,
+                null);
+    }
+
+    private String request(
+            String endpoint,
+            String method,
+            String path,
+            String authorization,
+            String body) throws FlowFailure {
+        LatencyRecorder recorder = recorder(requests, endpoint);
+        long start = System.nanoTime();
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            if (authorization != null) {
+                connection.setRequestProperty("Authorization", authorization);
+            }
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body.getBytes(UTF_8));
+                }
+            }
+            int status = connection.getResponseCode();
+            String response;
+            try (InputStream in = status < 400
+                    ? connection.getInputStream()
+                    : connection.getErrorStream()) {
+                response = in == null ? "" : new String(ByteStreams.toByteArray(in), UTF_8);
+            }
+            recorder.record(System.nanoTime() - start, Integer.toString(status));
+            if (status >= 400) {
+                throw new FlowFailure(endpoint + " " + status);
+            }
+            return response;
+        } catch (IOException e) {
+            recorder.record(System.nanoTime() - start, e.getClass().getSimpleName());
+            if (connection != null) {
+                connection.disconnect();
+            }
+            throw new FlowFailure(endpoint + " " + e.getClass().getSimpleName());
+        }
+    }
+
+    private static LatencyRecorder recorder(Map<String, LatencyRecorder> recorders, String key) {
+        return recorders.computeIfAbsent(key, k -> new LatencyRecorder());
+    }
+
+    private static final class FlowFailure extends Exception {
+        private FlowFailure(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
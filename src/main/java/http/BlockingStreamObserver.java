@@ -0,0 +1,117 @@
+package http;
+
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Collects the messages of a server-streaming call, so that they can be written to an HTTP
+ * response from the request thread rather than from the threads producing them. Messages
+ * are requested from the server as they are consumed, with at most {@value #WINDOW} of them
+ * waiting, so a slow client holds back the server rather than filling memory.
+ *
+ * @param <T> message type
+ */
+public class BlockingStreamObserver<T> implements ClientResponseObserver<Object, T> {
+    private static final Object COMPLETED = new Object();
+    private static final int WINDOW = 16;
+
+    private final BlockingQueue<Object> events = new LinkedBlockingQueue<>();
+    private volatile ClientCallStreamObserver<Object> call;
+
+    /**
+     * Consumer of streamed messages that may fail writing them out.
+     *
+     * @param <T> message type
+     */
+    public interface MessageConsumer<T> {
+        void accept(T message) throws IOException;
+    }
+
+    /**
+     * Action that may fail writing to the client, e.g. a flush.
+     */
+    public interface IoAction {
+        void run() throws IOException;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<Object> requestStream) {
+        this.call = requestStream;
+        requestStream.disableAutoInboundFlowControl();
+    }
+
+    @Override
+    public void onNext(T value) {
+        events.add(value);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        events.add(error);
+    }
+
+    @Override
+    public void onCompleted() {
+        events.add(COMPLETED);
+    }
+
+    /**
+     * Passes every message to the consumer on the calling thread, until the stream ends.
+     *
+     * @param consumer message consumer
+     * @throws IOException if the consumer fails
+     * @throws InterruptedException if interrupted while waiting for a message
+     * @throws StatusRuntimeException if the stream fails
+     */
+    public void forEach(MessageConsumer<T> consumer) throws IOException, InterruptedException {
+        forEach(consumer, () -> { });
+    }
+
+    /**
+     * Passes every message to the consumer on the calling thread, until the stream ends, and
+     * runs the idle action whenever it is about to wait for the next message, e.g. to flush
+     * what the consumer has written so far.
+     *
+     * @param consumer message consumer
+     * @param idle action run before waiting for a message
+     * @throws IOException if the consumer or the idle action fails
+     * @throws InterruptedException if interrupted while waiting for a message
+     * @throws StatusRuntimeException if the stream fails
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(MessageConsumer<T> consumer, IoAction idle)
+            throws IOException, InterruptedException {
+        // The call requests the first message itself.
+        request(WINDOW - 1);
+        while (true) {
+            Object event = events.poll();
+            if (event == null) {
+                idle.run();
+                event = events.take();
+            }
+            if (event == COMPLETED) {
+                return;
+            }
+            if (event instanceof StatusRuntimeException) {
+                throw (StatusRuntimeException) event;
+            }
+            if (event instanceof Throwable) {
+                throw new RuntimeException((Throwable) event);
+            }
+            consumer.accept((T) event);
+            request(1);
+        }
+    }
+
+    private void request(int count) {
+        ClientCallStreamObserver<Object> started = call;
+        if (started != null) {
+            started.request(count);
+        }
+    }
+}
@@ -1,21 +1,106 @@
 package http;
 
-import java.util.Collections;
+import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
+
+import io.grpc.Context;
+import io.grpc.Metadata;
+
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Lazy view of the headers of the request being served. The view is carried in the gRPC
+ * {@link Context}, so it follows the call across threads, and each header is only looked up
+ * when it is read.
+ */
+public final class Headers {
+    public static final String AUTHORIZATION = "Authorization";
+    public static final String CACHE_CONTROL = "Cache-Control";
+    public static final String PREFER = "Prefer";
+
+    private static final Context.Key<Headers> CONTEXT_KEY = Context.key("headers");
+    private static final Headers EMPTY = new Headers(name -> null);
+    private static final Map<String, Metadata.Key<String>> metadataKeys =
+            new ConcurrentHashMap<>();
+
+    private final Function<String, String> lookup;
+
+    private Headers(Function<String, String> lookup) {
+        this.lookup = lookup;
+    }
+
+    /**
+     * Creates a view over a header lookup function, e.g. the one of an HTTP request.
+     *
+     * @param lookup returns the header value for a name, or null if not present
+     * @return header view
+     */
+    public static Headers of(Function<String, String> lookup) {
+        return new Headers(lookup);
+    }
 
-public class Headers {
-    private static final ThreadLocal<Map<String, String>> localHeaders = new ThreadLocal<>();
+    /**
+     * Creates a view over the metadata of a gRPC call.
+     *
+     * @param metadata gRPC call metadata
+     * @return header view
+     */
+    public static Headers of(Metadata metadata) {
+        return new Headers(name -> metadata.get(metadataKey(name)));
+    }
 
-    public static void setHeaders(Map<String, String> headers) {
-        localHeaders.set(headers);
+    /**
+     * Returns the headers bound to the current context.
+     *
+     * @return header view, empty if none are bound
+     */
+    public static Headers current() {
+        return Optional.ofNullable(CONTEXT_KEY.get()).orElse(EMPTY);
     }
 
-    public static Map<String, String> getHeaders() {
-        return Optional.ofNullable(localHeaders.get()).orElse(Collections.emptyMap());
+    /**
+     * Checks whether headers are bound to the current context.
+     *
+     * @return true if headers are bound
+     */
+    public static boolean isBound() {
+        return CONTEXT_KEY.get() != null;
     }
 
+    /**
+     * Looks up a header of the current request.
+     *
+     * @param key header name
+     * @return header value, if present
+     */
     public static Optional<String> getHeader(String key) {
-        return Optional.ofNullable(getHeaders().getOrDefault(key, null));
+        return current().get(key);
+    }
+
+    /**
+     * Returns a context derived from the current one with this view bound to it.
+     *
+     * @return context carrying the headers
+     */
+    public Context bind() {
+        return Context.current().withValue(CONTEXT_KEY, this);
+    }
+
+    /**
+     * Looks up a header.
+     *
+     * @param key header name
+     * @return header value, if present
+     */
+    public Optional<String> get(String key) {
+        return Optional.ofNullable(lookup.apply(key));
+    }
+
+    private static Metadata.Key<String> metadataKey(String name) {
+        return metadataKeys.computeIfAbsent(
+                name,
+                key -> Metadata.Key.of(key, ASCII_STRING_MARSHALLER));
     }
 }
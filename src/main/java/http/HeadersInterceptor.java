@@ -0,0 +1,25 @@
+package http;
+
+import io.grpc.Contexts;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+/**
+ * Binds the metadata of incoming gRPC calls to the call {@link io.grpc.Context} as
+ * {@link Headers}. Calls arriving through the HTTP bridge already carry the HTTP request
+ * headers and are passed through untouched.
+ */
+public class HeadersInterceptor implements ServerInterceptor {
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+            ServerCall<ReqT, RespT> call,
+            Metadata metadata,
+            ServerCallHandler<ReqT, RespT> next) {
+        if (Headers.isBound()) {
+            return next.startCall(call, metadata);
+        }
+        return Contexts.interceptCall(Headers.of(metadata).bind(), call, metadata, next);
+    }
+}
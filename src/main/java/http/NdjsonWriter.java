@@ -0,0 +1,70 @@
+package http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.util.JsonFormat;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes protobuf messages as newline-delimited JSON, one message per line.
+ */
+public class NdjsonWriter {
+    public static final String CONTENT_TYPE = "application/x-ndjson";
+
+    private static final JsonFormat.Printer printer = JsonFormat
+            .printer()
+            .omittingInsignificantWhitespace();
+
+    private final Writer writer;
+    private boolean buffered;
+
+    public NdjsonWriter(OutputStream out) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+    }
+
+    /**
+     * Appends a message to the stream.
+     *
+     * @param message message to write
+     * @throws IOException if the client can not be written to
+     */
+    public void write(MessageOrBuilder message) throws IOException {
+        printer.appendTo(message, writer);
+        writer.write('\n');
+        buffered = true;
+    }
+
+    /**
+     * Appends a message to the stream as the only field of an object, e.g.
+     * {@code {"error":{...}}}, which tells it apart from the other lines.
+     *
+     * @param field field name
+     * @param message message to write
+     * @throws IOException if the client can not be written to
+     */
+    public void write(String field, MessageOrBuilder message) throws IOException {
+        writer.write("{\"" + field + "\":");
+        printer.appendTo(message, writer);
+        writer.write("}\n");
+        buffered = true;
+    }
+
+    /**
+     * Sends the buffered lines to the client. Nothing is sent, and the response is not
+     * committed, if no line was written since the last flush.
+     *
+     * @throws IOException if the client can not be written to
+     */
+    public void flush() throws IOException {
+        if (buffered) {
+            writer.flush();
+            buffered = false;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package server;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.typesafe.config.Config;
+import io.grpc.Context;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Sheds load before it piles up behind a slow upstream. Each endpoint (RPC name) has an
+ * adaptive {@link ConcurrencyLimit}, and all endpoints together are capped at
+ * {@code admission.maxConcurrency} calls in flight, a share of which only the priority
+ * endpoints, i.e. payments, may use. A call over its limits is queued, without holding a
+ * thread, and started by the call that frees a permit for it; if none does within the queue
+ * timeout, or the queue is full, it is rejected with RESOURCE_EXHAUSTED, which the HTTP
+ * handler turns into a 429.
+ *
+ * <p>It is installed inside the metrics, which record rejected calls, and measures only the
+ * time calls spend after admission.
+ */
+class AdmissionInterceptor implements ServerInterceptor {
+    private final Config config;
+    private final Set<String> priorityMethods;
+    private final int maxConcurrency;
+    private final int sharedConcurrency;
+    private final int maxQueued;
+    private final long queueTimeoutNanos;
+    private final long priorityQueueTimeoutNanos;
+    private final Map<String, ConcurrencyLimit> limits = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+    private final ScheduledExecutorService timer;
+    // Calls waiting for a permit, oldest first; priority calls are admitted first.
+    private final Deque<Waiter<?, ?>> priorityWaiters = new ArrayDeque<>();
+    private final Deque<Waiter<?, ?>> waiters = new ArrayDeque<>();
+    private int inFlight;
+
+    /**
+     * Creates an interceptor from the admission.* settings.
+     *
+     * @param config application config
+     * @param metrics metrics registry
+     */
+    AdmissionInterceptor(Config config, Metrics metrics) {
+        this.config = config;
+        this.priorityMethods =
+                ImmutableSet.copyOf(config.getStringList("admission.priorityMethods"));
+        this.maxConcurrency = config.getInt("admission.maxConcurrency");
+        this.sharedConcurrency = (int) Math.round(
+                maxConcurrency * (1 - config.getDouble("admission.priorityReserve")));
+        this.maxQueued = config.getInt("admission.maxQueued");
+        this.queueTimeoutNanos =
+                MILLISECONDS.toNanos(config.getLong("admission.queueTimeoutMs"));
+        this.priorityQueueTimeoutNanos =
+                MILLISECONDS.toNanos(config.getLong("admission.priorityQueueTimeoutMs"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("admission-timer-%d")
+                .setDaemon(true)
+                .build());
+
+        metrics.register(
+                "proxy_admission_in_flight",
+                "gauge",
+                "gRPC calls admitted and in progress.",
+                this::inFlight);
+        metrics.register(
+                "proxy_admission_queued",
+                "gauge",
+                "gRPC calls waiting for admission.",
+                this::queued);
+        metrics.register(
+                "proxy_admission_rejected_total",
+                "counter",
+                "gRPC calls rejected by admission control.",
+                rejected::sum);
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+            ServerCall<ReqT, RespT> call,
+            Metadata metadata,
+            ServerCallHandler<ReqT, RespT> next) {
+        String fullName = call.getMethodDescriptor().getFullMethodName();
+        String method = fullName.substring(fullName.lastIndexOf('/') + 1);
+        ConcurrencyLimit limit = limits.computeIfAbsent(method, m -> new ConcurrencyLimit(config));
+        boolean priority = priorityMethods.contains(method);
+
+        boolean admitted;
+        Waiter<ReqT, RespT> waiter = null;
+        synchronized (this) {
+            admitted = admit(limit, priority);
+            if (!admitted && priorityWaiters.size() + waiters.size() < maxQueued) {
+                waiter = new Waiter<>(call, metadata, next, limit, method);
+                (priority ? priorityWaiters : waiters).add(waiter);
+            }
+        }
+        if (admitted) {
+            return start(call, metadata, next, limit);
+        }
+        if (waiter == null) {
+            reject(call, method);
+            return new ServerCall.Listener<ReqT>() {};
+        }
+        waiter.timeout = timer.schedule(
+                () -> expire(waiter),
+                priority ? priorityQueueTimeoutNanos : queueTimeoutNanos,
+                NANOSECONDS);
+        return waiter.listener;
+    }
+
+    private <ReqT, RespT> ServerCall.Listener<ReqT> start(
+            ServerCall<ReqT, RespT> call,
+            Metadata metadata,
+            ServerCallHandler<ReqT, RespT> next,
+            ConcurrencyLimit limit) {
+        long start = System.nanoTime();
+        AtomicBoolean done = new AtomicBoolean();
+        ServerCall<ReqT, RespT> admittedCall = new SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                if (done.compareAndSet(false, true)) {
+                    release(limit, System.nanoTime() - start, status);
+                }
+                super.close(status, trailers);
+            }
+        };
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(admittedCall, metadata);
+        } catch (RuntimeException e) {
+            if (done.compareAndSet(false, true)) {
+                release(limit, System.nanoTime() - start, Status.INTERNAL);
+            }
+            throw e;
+        }
+        return new SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onCancel() {
+                if (done.compareAndSet(false, true)) {
+                    release(limit, System.nanoTime() - start, Status.CANCELLED);
+                }
+                super.onCancel();
+            }
+        };
+    }
+
+    private void reject(ServerCall<?, ?> call, String method) {
+        rejected.increment();
+        call.close(
+                Status.RESOURCE_EXHAUSTED.withDescription(
+                        "Too many concurrent " + method + " requests"),
+                new Metadata());
+    }
+
+    private synchronized long inFlight() {
+        return inFlight;
+    }
+
+    private synchronized long queued() {
+        return priorityWaiters.size() + waiters.size();
+    }
+
+    private boolean admit(ConcurrencyLimit limit, boolean priority) {
+        if (inFlight >= (priority ? maxConcurrency : sharedConcurrency) || !limit.tryAcquire()) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Returns a permit, and starts the queued calls that can be admitted now, on the calling
+     * thread.
+     */
+    private void release(ConcurrencyLimit limit, long elapsedNanos, Status status) {
+        List<Waiter<?, ?>> admitted = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            limit.release(elapsedNanos, status);
+            admitWaiters(priorityWaiters, true, admitted);
+            admitWaiters(waiters, false, admitted);
+        }
+        admitted.forEach(Waiter::begin);
+    }
+
+    private void admitWaiters(
+            Deque<Waiter<?, ?>> queue,
+            boolean priority,
+            List<Waiter<?, ?>> admitted) {
+        for (Iterator<Waiter<?, ?>> it = queue.iterator(); it.hasNext(); ) {
+            Waiter<?, ?> waiter = it.next();
+            if (admit(waiter.limit, priority)) {
+                it.remove();
+                admitted.add(waiter);
+            }
+        }
+    }
+
+    private void expire(Waiter<?, ?> waiter) {
+        if (dequeue(waiter)) {
+            reject(waiter.call, waiter.method);
+            waiter.listener.abandon();
+        }
+    }
+
+    private synchronized boolean dequeue(Waiter<?, ?> waiter) {
+        return priorityWaiters.remove(waiter) || waiters.remove(waiter);
+    }
+
+    /**
+     * A call waiting for a permit. It is started in the context it arrived with, e.g. with
+     * the headers bound by the HTTP bridge, whichever thread admits it.
+     */
+    private final class Waiter<ReqT, RespT> {
+        private final ServerCall<ReqT, RespT> call;
+        private final Metadata metadata;
+        private final ServerCallHandler<ReqT, RespT> next;
+        private final ConcurrencyLimit limit;
+        private final String method;
+        private final Context context = Context.current();
+        private final DeferredListener<ReqT> listener = new DeferredListener<>(this);
+        private volatile ScheduledFuture<?> timeout;
+
+        private Waiter(
+                ServerCall<ReqT, RespT> call,
+                Metadata metadata,
+                ServerCallHandler<ReqT, RespT> next,
+                ConcurrencyLimit limit,
+                String method) {
+            this.call = call;
+            this.metadata = metadata;
+            this.next = next;
+            this.limit = limit;
+            this.method = method;
+        }
+
+        private void begin() {
+            ScheduledFuture<?> scheduled = timeout;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            context.run(() -> {
+                ServerCall.Listener<ReqT> started;
+                try {
+                    started = start(call, metadata, next, limit);
+                } catch (RuntimeException e) {
+                    call.close(Status.INTERNAL.withCause(e), new Metadata());
+                    listener.abandon();
+                    return;
+                }
+                listener.setDelegate(started);
+            });
+        }
+    }
+
+    /**
+     * Listener of a queued call, which holds on to its events until the call is started, and
+     * then replays them in order before passing on new ones.
+     */
+    private final class DeferredListener<ReqT> extends ServerCall.Listener<ReqT> {
+        private final Waiter<ReqT, ?> waiter;
+        private List<Consumer<ServerCall.Listener<ReqT>>> pending = new ArrayList<>();
+        private ServerCall.Listener<ReqT> delegate;
+
+        private DeferredListener(Waiter<ReqT, ?> waiter) {
+            this.waiter = waiter;
+        }
+
+        @Override
+        public void onMessage(ReqT message) {
+            event(listener -> listener.onMessage(message));
+        }
+
+        @Override
+        public void onHalfClose() {
+            event(ServerCall.Listener::onHalfClose);
+        }
+
+        @Override
+        public void onCancel() {
+            // A call cancelled while queued never takes a permit.
+            if (dequeue(waiter)) {
+                ScheduledFuture<?> scheduled = waiter.timeout;
+                if (scheduled != null) {
+                    scheduled.cancel(false);
+                }
+                abandon();
+                return;
+            }
+            event(ServerCall.Listener::onCancel);
+        }
+
+        @Override
+        public void onComplete() {
+            event(ServerCall.Listener::onComplete);
+        }
+
+        @Override
+        public void onReady() {
+            event(ServerCall.Listener::onReady);
+        }
+
+        private void event(Consumer<ServerCall.Listener<ReqT>> event) {
+            ServerCall.Listener<ReqT> listener;
+            synchronized (this) {
+                if (delegate == null) {
+                    pending.add(event);
+                    return;
+                }
+                listener = delegate;
+            }
+            event.accept(listener);
+        }
+
+        /**
+         * Replays the events received so far, including those arriving while it does, and
+         * then hands the listener over to the transport.
+         */
+        private void setDelegate(ServerCall.Listener<ReqT> listener) {
+            while (true) {
+                List<Consumer<ServerCall.Listener<ReqT>>> events;
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        delegate = listener;
+                        return;
+                    }
+                    events = pending;
+                    pending = new ArrayList<>();
+                }
+                events.forEach(event -> event.accept(listener));
+            }
+        }
+
+        private void abandon() {
+            synchronized (this) {
+                pending.clear();
+                delegate = new ServerCall.Listener<ReqT>() {};
+            }
+        }
+    }
+}
@@ -19,31 +19,62 @@ import static spark.Spark.patch;
 import static spark.Spark.port;
 import static spark.Spark.post;
 import static spark.Spark.put;
+import static spark.Spark.threadPool;
 
 import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.AsyncAppender;
 import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
 import com.typesafe.config.ConfigFactory;
 import grpcbridge.Bridge;
 import grpcbridge.BridgeBuilder;
 import grpcbridge.http.HttpMethod;
 import grpcbridge.http.HttpRequest;
+import http.BlockingStreamObserver;
 import http.Headers;
+import http.HeadersInterceptor;
+import http.NdjsonWriter;
+import io.grpc.Channel;
+import io.grpc.ClientInterceptors;
+import io.grpc.Context;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.MetadataUtils;
+import server.proto.Proxy.CreateTransfersRequest;
+import server.proto.Proxy.CreateTransfersResponse;
+import server.proto.Proxy.StreamTransactionsRequest;
+import server.proto.Proxy.StreamTransactionsResponse;
+import server.proto.ProxyServiceGrpc;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
 import spark.Response;
+import spark.Route;
 
 /**
  * A sample application that demonstrates setting up gRPC {@link Bridge} for
@@ -54,6 +85,7 @@ import spark.Response;
  */
 public class Application {
     private static final Logger logger = LoggerFactory.getLogger(Application.class);
+    private static final String IN_PROCESS_NAME = "proxy";
     private static final Map<Status.Code, Integer> errorMap =
             new HashMap<Status.Code, Integer>() {
                 {
@@ -73,67 +105,506 @@ public class Application {
             };
 
     public static void main(String[] args) throws Exception {
+        Config config = ConfigFactory.load();
+        Metrics metrics = new Metrics();
+
         // Setup logging
-        setupLogging();
+        setupLogging(config);
+        RequestLog errorLog = new RequestLog(logger, config, metrics);
 
-        // Create service implementation instance.
-        Config config = ConfigFactory.load();
-        ProxyServer proxyServer = new ProxyServer(config);
+        // Readiness and metrics are served while the proxy starts, outside of the Bridge, so
+        // that they are not recorded as calls.
+        AtomicBoolean ready = new AtomicBoolean();
+        NettyFrontEnd nettyFrontEnd = null;
+        if ("netty".equals(config.getString("http.server"))) {
+            nettyFrontEnd = new NettyFrontEnd(config, metrics, errorLog, ready::get);
+            nettyFrontEnd.start();
+        } else {
+            startSpark(config, metrics, ready);
+        }
+
+        // Create service implementation instance. The member logs in while the proto
+        // descriptors are loaded and the protobuf bridge is built.
+        CompletableFuture<ProxyServer> login = CompletableFuture.supplyAsync(() -> {
+            try {
+                return new ProxyServer(config, metrics);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        // Protobuf requests skip the JSON bridge and reach the service through an in-process
+        // channel, on the HTTP request thread.
+        FileDescriptor descriptor = server.proto.Proxy.getDescriptor();
+        Channel inProcess =
+                InProcessChannelBuilder.forName(IN_PROCESS_NAME).directExecutor().build();
+        ProtobufBridge protobufBridge = new ProtobufBridge(inProcess, descriptor);
+
+        ProxyServer proxyServer = login.get();
+        ServerServiceDefinition service = ServerInterceptors.intercept(
+                proxyServer,
+                new HeadersInterceptor(),
+                new AdmissionInterceptor(config, metrics),
+                new MetricsInterceptor(metrics),
+                new ResponseCacheInterceptor(),
+                new EntityTagInterceptor());
 
         // Create gRPC server, bind the service implementation and start the server.
         Server rpcServer = ServerBuilder
                 .forPort(9000)
-                .addService(proxyServer.bindService())
+                .addService(service)
+                .executor(ServerExecutors.create(config, "grpc"))
                 .build();
         rpcServer.start();
         // Create new HTTP to gRPC bridge.
         Bridge bridge = new BridgeBuilder()
-                .addFile(server.proto.Proxy.getDescriptor())
-                .addService(proxyServer.bindService())
+                .addFile(descriptor)
+                .addService(service)
                 .build();
+        InProcessServerBuilder
+                .forName(IN_PROCESS_NAME)
+                .addService(service)
+                .directExecutor()
+                .build()
+                .start();
+
+        if (nettyFrontEnd != null) {
+            nettyFrontEnd.serve(bridge);
+        } else {
+            serveWithSpark(
+                    config,
+                    metrics,
+                    errorLog,
+                    proxyServer,
+                    bridge,
+                    protobufBridge,
+                    inProcess);
+        }
+
+        if (config.getBoolean("startup.warmup.enabled")) {
+            warmUp(config, bridge);
+        }
+        ready.set(true);
+        logger.info("Proxy ready");
+    }
 
+    /**
+     * Starts Spark, with its Jetty threads set from {@code executors.http}, and serves
+     * readiness and metrics.
+     */
+    private static void startSpark(Config config, Metrics metrics, AtomicBoolean ready) {
         // Set port number
         port(config.getInt("port"));
 
-        // Map Spark HTTP endpoints to the Bridge.
-        get("/*", (req, res) -> handle(bridge, req));
-        post("/*", (req, res) -> handle(bridge, req));
-        put("/*", (req, res) -> handle(bridge, req));
-        delete("/*", (req, res) -> handle(bridge, req));
-        patch("/*", (req, res) -> handle(bridge, req));
+        // Jetty runs requests on its own pool, whose queue is not bounded.
+        Config executor = config.getConfig("executors.http");
+        String type = executor.getString("type");
+        if ("fixed".equals(type) || "bounded".equals(type)) {
+            int threads = executor.getInt("threads");
+            threadPool(threads, threads, config.getInt("http.spark.idleTimeoutMs"));
+        } else if (!"cached".equals(type)) {
+            throw new ConfigException.BadValue(
+                    config.origin(),
+                    "executors.http.type",
+                    "Spark does not support " + type + " executors");
+        }
+
+        get("/ready", (req, res) -> {
+            res.status(ready.get() ? 200 : 503);
+            return ready.get() ? "ready" : "starting";
+        });
+        get("/metrics", (req, res) -> {
+            res.type(Metrics.CONTENT_TYPE);
+            return metrics.render();
+        });
+    }
+
+    /**
+     * Maps the API to the bridges in Spark.
+     */
+    private static void serveWithSpark(
+            Config config,
+            Metrics metrics,
+            RequestLog errorLog,
+            ProxyServer proxyServer,
+            Bridge bridge,
+            ProtobufBridge protobufBridge,
+            Channel inProcess) {
+        // Streaming endpoints are served outside of the Bridge.
+        get(
+                "/accounts/:account_id/transaction-stream",
+                (req, res) -> streamTransactions(inProcess, req, res));
+        post("/transfers/batch", (req, res) -> createTransfers(inProcess, req, res));
+
+        // Map Spark HTTP endpoints to the Bridge, or to the protobuf bridge if negotiated.
+        ContentEncoding contentEncoding =
+                new ContentEncoding(config.getInt("http.compressionMinBytes"));
+        Route route = (req, res) -> serve(
+                req,
+                res,
+                contentEncoding,
+                proxyServer,
+                () -> ProtobufBridge.accepts(req)
+                        ? handle(protobufBridge, metrics, req, res)
+                        : handle(bridge, metrics, req));
+        get("/*", route);
+        post("/*", route);
+        put("/*", route);
+        delete("/*", route);
+        patch("/*", route);
 
         // Register error handlers
         exception(
                 StatusRuntimeException.class,
-                Application::handleStatusError);
+                (error, req, res) -> handleStatusError(errorLog, error, res));
         exception(
                 Exception.class,
                 (error, req, res) -> {
-                    logger.error("Unhandled exception: ", error);
+                    errorLog.serverError("Unhandled exception: ", error);
                     res.status(500);
                     res.body(error.toString());
                 });
     }
 
-    private static String handle(Bridge bridge, Request req) {
-        Headers.setHeaders(req.headers()
-                .stream()
-                .collect(Collectors.toMap(
-                        keys -> keys,
-                        keys -> req.headers(keys))));
-        String pathInfo = (req.queryString() == null || req.queryString().isEmpty())
+    /**
+     * Sends synthetic requests through the bridge and the service, so that the request path
+     * is compiled before live requests are taken. The requests are answered without calling
+     * Token, e.g. with a 404.
+     */
+    private static void warmUp(Config config, Bridge bridge) {
+        List<String> paths = config.getStringList("startup.warmup.paths");
+        int requests = config.getInt("startup.warmup.requests");
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            HttpRequest request = HttpRequest
+                    .builder(HttpMethod.GET, paths.get(i % paths.size()))
+                    .body("")
+                    .build();
+            try {
+                bridge.handle(request);
+            } catch (StatusRuntimeException e) {
+                // Expected for the synthetic requests.
+            }
+        }
+        logger.info(
+                "Warmed up with {} requests in {} ms",
+                requests,
+                (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Serves a request through one of the bridges. GET responses carry an ETag, and are
+     * replaced with a 304 without a body if the client's copy is current. Large responses are
+     * compressed if the client accepts it. The ETag carries the content encoding the client
+     * negotiated, whether or not the body turns out large enough to compress, so that a 304,
+     * which skips encoding the body, sends the same tag as a 200 would. GET responses that no
+     * longer change are kept encoded in the response cache, and served from it without
+     * calling the service while the proxy still vouches for them.
+     */
+    private static Object serve(
+            Request req,
+            Response res,
+            ContentEncoding contentEncoding,
+            ProxyServer proxyServer,
+            Callable<Object> handler) throws Exception {
+        if (!"GET".equals(req.requestMethod())) {
+            Object body = handler.call();
+            if (isAsyncTransfer(req)) {
+                res.status(202);
+                res.header("Preference-Applied", "respond-async");
+            }
+            return ContentEncoding.encode(res, body, contentEncoding.negotiate(req, body));
+        }
+
+        ResponseCache responseCache = proxyServer.responseCache();
+        String memberHeader = proxyServer.memberHeader();
+        String ifNoneMatch = req.headers(EntityTag.IF_NONE_MATCH);
+        res.header(
+                "Vary",
+                memberHeader == null
+                        ? "Accept, Accept-Encoding"
+                        : "Accept, Accept-Encoding, " + memberHeader);
+        String path = requestPath(req);
+        String negotiated = ContentEncoding.preferred(req);
+        String domain = memberHeader == null ? null : req.headers(memberHeader);
+        String authorization = req.headers(Headers.AUTHORIZATION);
+        String variant = ResponseCache.variant(
+                ProtobufBridge.respondsWithProtobuf(req) ? "protobuf" : "json",
+                negotiated,
+                domain,
+                authorization);
+        ResponseCache.Entry cached = proxyServer.mayServeCached(domain, path, authorization)
+                ? responseCache.get(path, variant)
+                : null;
+        if (cached != null) {
+            if (EntityTag.isCurrent(ifNoneMatch, cached.etag)) {
+                res.status(304);
+                res.header(EntityTag.ETAG, cached.etag);
+                return "";
+            }
+            return write(res, cached);
+        }
+
+        EntityTag tag = new EntityTag(ifNoneMatch);
+        ResponseCache.Slot slot = new ResponseCache.Slot();
+        Object body;
+        try {
+            body = slot.bind(tag.bind(Context.current())).call(handler);
+        } catch (StatusRuntimeException e) {
+            if (!tag.isNotModified()) {
+                throw e;
+            }
+            res.status(304);
+            res.header(EntityTag.ETAG, tag.value(negotiated));
+            return "";
+        }
+        String encoding = contentEncoding.negotiate(req, body);
+        String etag = tag.value(negotiated);
+        if (etag != null && slot.cacheUntilMs() > 0) {
+            ResponseCache.Entry entry = new ResponseCache.Entry(
+                    ContentEncoding.compress(body, encoding),
+                    res.raw().getContentType(),
+                    encoding,
+                    etag,
+                    slot.cacheUntilMs());
+            responseCache.put(path, variant, entry);
+            return write(res, entry);
+        }
+        if (etag != null) {
+            res.header(EntityTag.ETAG, etag);
+        }
+        return ContentEncoding.encode(res, body, encoding);
+    }
+
+    /**
+     * Checks whether a request submits a transfer to be redeemed in the background, which is
+     * answered with a 202. Clients that set async in the body instead of sending
+     * Prefer: respond-async get a 200 with the same body.
+     */
+    private static boolean isAsyncTransfer(Request req) {
+        String prefer = req.headers(Headers.PREFER);
+        return "POST".equals(req.requestMethod())
+                && "/transfers".equals(req.pathInfo())
+                && prefer != null
+                && prefer.toLowerCase().contains("respond-async");
+    }
+
+    private static Object write(Response res, ResponseCache.Entry entry) throws IOException {
+        if (entry.contentType != null) {
+            res.type(entry.contentType);
+        }
+        res.header(EntityTag.ETAG, entry.etag);
+        return ContentEncoding.write(res, entry.body, entry.contentEncoding);
+    }
+
+    static String handle(Bridge bridge, Metrics metrics, Request req) throws Exception {
+        return handle(
+                bridge,
+                metrics,
+                HttpMethod.valueOf(req.requestMethod()),
+                requestPath(req),
+                req.body(),
+                req::headers);
+    }
+
+    /**
+     * Serves a request through the JSON bridge, whichever the HTTP front end.
+     *
+     * @param bridge HTTP to gRPC bridge
+     * @param metrics metrics registry
+     * @param method request method
+     * @param path path and query of the request
+     * @param body request body
+     * @param headers returns the value of a request header, or null
+     * @return response body
+     * @throws Exception if the call fails, e.g. with a StatusRuntimeException
+     */
+    static String handle(
+            Bridge bridge,
+            Metrics metrics,
+            HttpMethod method,
+            String path,
+            String body,
+            Function<String, String> headers) throws Exception {
+        long start = System.nanoTime();
+        HttpRequest httpRequest = HttpRequest
+                .builder(method, path)
+                .body(body)
+                .build();
+        // Headers are read lazily from the request by the service, through the call context.
+        Metrics.CallTiming timing = new Metrics.CallTiming();
+        try {
+            return timing.bind(Headers.of(headers).bind())
+                    .call(() -> bridge.handle(httpRequest).getBody());
+        } finally {
+            metrics.bridgeCompleted(timing, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Serves a request through the protobuf bridge, timed as {@link #handle(Bridge, Metrics,
+     * HttpMethod, String, String, Function)} times JSON requests.
+     *
+     * @param bridge protobuf bridge
+     * @param metrics metrics registry
+     * @param req HTTP request
+     * @param res HTTP response
+     * @return response body
+     * @throws Exception if the call fails, e.g. with a StatusRuntimeException
+     */
+    static Object handle(
+            ProtobufBridge bridge,
+            Metrics metrics,
+            Request req,
+            Response res) throws Exception {
+        long start = System.nanoTime();
+        Metrics.CallTiming timing = new Metrics.CallTiming();
+        try {
+            return timing.bind(Context.current()).call(() -> bridge.handle(req, res));
+        } finally {
+            metrics.bridgeCompleted(timing, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns the path of the request, followed by its query string if it has one.
+     *
+     * @param req HTTP request
+     * @return path and query
+     */
+    static String requestPath(Request req) {
+        return (req.queryString() == null || req.queryString().isEmpty())
                 ? req.pathInfo()
                 : req.pathInfo() + "?" + req.queryString();
-        HttpRequest httpRequest = HttpRequest
-                .builder(HttpMethod.valueOf(req.requestMethod()), pathInfo)
-                .body(req.body())
+    }
+
+    /**
+     * Maps a gRPC status code to the HTTP status code returned to clients.
+     *
+     * @param code gRPC status code
+     * @return HTTP status code
+     */
+    static int httpStatus(Status.Code code) {
+        return errorMap.getOrDefault(code, 500);
+    }
+
+    /**
+     * Streams the transaction history of an account as newline-delimited JSON, one
+     * transaction per line. The call goes through the in-process channel, with the HTTP
+     * headers as metadata, so that it is intercepted like any other call. Transactions are
+     * flushed to the client whenever the next one is not there yet, and requested from the
+     * service as they are written, so a slow client does not make the proxy buffer the whole
+     * history.
+     *
+     * <p>A failure before anything was sent is answered with its HTTP status as usual. Once
+     * the 200 is sent, it ends the stream with a last line {@code {"error":{"code":...,
+     * "message":...}}} instead, so that clients can tell a cut-off history from a complete one.
+     */
+    private static String streamTransactions(
+            Channel inProcess,
+            Request req,
+            Response res) throws Exception {
+        int pageSize;
+        try {
+            pageSize = Optional.ofNullable(req.queryParams("pageSize"))
+                    .map(Integer::parseInt)
+                    .orElse(0);
+        } catch (NumberFormatException e) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("Invalid page size")
+                    .asRuntimeException();
+        }
+        StreamTransactionsRequest request = StreamTransactionsRequest.newBuilder()
+                .setAccountId(req.params("account_id"))
+                .setPageSize(pageSize)
                 .build();
-        return bridge.handle(httpRequest).getBody();
+        BlockingStreamObserver<StreamTransactionsResponse> transactions =
+                new BlockingStreamObserver<>();
+        // Cancelled when the client goes away, which stops the fetching of further pages.
+        Context.CancellableContext call = Context.current().withCancellation();
+        try {
+            call.run(() -> ProxyServiceGrpc
+                    .newStub(ClientInterceptors.intercept(
+                            inProcess,
+                            MetadataUtils.newAttachHeadersInterceptor(
+                                    ProtobufBridge.metadata(req))))
+                    .streamTransactions(request, transactions));
+
+            res.type(NdjsonWriter.CONTENT_TYPE);
+            NdjsonWriter writer = new NdjsonWriter(res.raw().getOutputStream());
+            try {
+                transactions.forEach(
+                        response -> writer.write(response.getTransaction()),
+                        writer::flush);
+            } catch (StatusRuntimeException e) {
+                if (!res.raw().isCommitted()) {
+                    throw e;
+                }
+                writer.write("error", ProxyServer.toErrorStatus(e));
+            }
+            writer.flush();
+        } finally {
+            call.cancel(null);
+        }
+        return "";
+    }
+
+    /**
+     * Redeems a batch of transfer tokens and writes one newline-delimited JSON result per
+     * token as soon as it is known. The call goes through the in-process channel, with the
+     * HTTP headers as metadata, so that it is intercepted like any other call.
+     */
+    private static String createTransfers(
+            Channel inProcess,
+            Request req,
+            Response res) throws Exception {
+        CreateTransfersRequest.Builder request = CreateTransfersRequest.newBuilder();
+        try {
+            JsonFormat.parser().merge(req.body(), request);
+        } catch (InvalidProtocolBufferException e) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription(e.getMessage())
+                    .asRuntimeException();
+        }
+        BlockingStreamObserver<CreateTransfersResponse> results = new BlockingStreamObserver<>();
+        ProxyServiceGrpc
+                .newStub(ClientInterceptors.intercept(
+                        inProcess,
+                        MetadataUtils.newAttachHeadersInterceptor(ProtobufBridge.metadata(req))))
+                .createTransfers(request.build(), results);
+
+        res.type(NdjsonWriter.CONTENT_TYPE);
+        NdjsonWriter writer = new NdjsonWriter(res.raw().getOutputStream());
+        results.forEach(result -> {
+            writer.write(result);
+            writer.flush();
+        });
+        return "";
     }
 
-    private static void setupLogging() {
+    private static void setupLogging(Config config) {
         LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
-        context.getLogger("root").setLevel(Level.INFO);
+        ch.qos.logback.classic.Logger root = context.getLogger(Logger.ROOT_LOGGER_NAME);
+        root.setLevel(Level.INFO);
+
+        // Hand log events over to a bounded queue drained by a background thread, which writes
+        // them out; messages are still formatted on the request thread. Request threads drop
+        // events rather than block when the queue is full.
+        AsyncAppender async = new AsyncAppender();
+        async.setContext(context);
+        async.setName("async");
+        async.setQueueSize(config.getInt("logging.queueSize"));
+        async.setNeverBlock(true);
+        async.setIncludeCallerData(false);
+        List<Appender<ILoggingEvent>> appenders = new ArrayList<>();
+        root.iteratorForAppenders().forEachRemaining(appenders::add);
+        for (Appender<ILoggingEvent> appender : appenders) {
+            root.detachAppender(appender);
+            async.addAppender(appender);
+        }
+        async.start();
+        root.addAppender(async);
+
         context.getLogger("org.eclipse.jetty").setLevel(Level.WARN);
         context.getLogger("io.grpc.netty.NettyClientHandler").setLevel(Level.WARN);
         context.getLogger("io.netty").setLevel(Level.WARN);
@@ -141,17 +612,33 @@ public class Application {
     }
 
     private static void handleStatusError(
+            RequestLog errorLog,
             Exception exception,
-            Request request,
             Response response) {
-        logger.error("Status runtime exception: ", exception);
-
         StatusRuntimeException ex = (StatusRuntimeException) exception;
-        Status status = ex.getStatus();
-        int code = errorMap.getOrDefault(status.getCode(), 500);
+        response.status(reportStatusError(errorLog, ex));
+        response.body(Optional.ofNullable(ex.getStatus().getDescription()).orElse("Unknown"));
+    }
+
+    /**
+     * Logs a failed call and maps its status to the HTTP status code returned to clients.
+     *
+     * @param errorLog log of the requests that fail
+     * @param exception error the call failed with
+     * @return HTTP status code
+     */
+    static int reportStatusError(RequestLog errorLog, StatusRuntimeException exception) {
+        Status status = exception.getStatus();
+        int code = httpStatus(status.getCode());
         String error = Optional.ofNullable(status.getDescription()).orElse("Unknown");
 
-        response.status(code);
-        response.body(error);
+        // Client errors such as expired tokens or unknown ids are expected, and only
+        // summarized; the stack trace is kept for server errors.
+        if (code < 500) {
+            errorLog.clientError(status.getCode(), error);
+        } else {
+            errorLog.serverError("Status runtime exception: ", exception);
+        }
+        return code;
     }
 }
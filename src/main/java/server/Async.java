@@ -0,0 +1,114 @@
+package server;
+
+import static io.grpc.Status.INTERNAL;
+import static io.grpc.Status.INVALID_ARGUMENT;
+
+import io.grpc.StatusException;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import io.reactivex.Observable;
+import io.reactivex.disposables.Disposable;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Helpers for completing gRPC calls from the asynchronous Token SDK API without
+ * parking a thread on the upstream response.
+ */
+final class Async {
+    private Async() {
+    }
+
+    /**
+     * Adapts an SDK {@link Observable} that emits a single value to a future. Cancelling
+     * the future disposes of the upstream subscription.
+     *
+     * @param observable SDK observable
+     * @param <T> type of the emitted value
+     * @return future completed with the first emitted value
+     */
+    static <T> CompletableFuture<T> toFuture(Observable<T> observable) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Disposable subscription = observable
+                .firstOrError()
+                .subscribe(future::complete, future::completeExceptionally);
+        future.whenComplete((value, error) -> {
+            if (future.isCancelled()) {
+                subscription.dispose();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Completes the response observer once the future returned by {@code call} completes.
+     * Exceptions thrown while starting the call are reported the same way as upstream
+     * failures.
+     *
+     * @param responseObserver gRPC response observer
+     * @param call starts the asynchronous call
+     * @param <T> response type
+     */
+    static <T> void respond(
+            StreamObserver<T> responseObserver,
+            Callable<CompletableFuture<T>> call) {
+        CompletableFuture<T> future;
+        try {
+            future = call.call();
+        } catch (Exception e) {
+            responseObserver.onError(toStatusException(e));
+            return;
+        }
+        future.whenComplete((response, error) -> {
+            if (error != null) {
+                responseObserver.onError(toStatusException(error));
+            } else {
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+            }
+        });
+    }
+
+    /**
+     * Strips the wrappers added by future composition.
+     *
+     * @param error error reported by a future
+     * @return the underlying cause
+     */
+    static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+                && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    /**
+     * Maps an error to the exception reported to the gRPC caller.
+     *
+     * @param error error reported by the call
+     * @return status exception
+     */
+    static StatusRuntimeException toStatusException(Throwable error) {
+        Throwable cause = unwrap(error);
+        if (cause instanceof StatusRuntimeException) {
+            return (StatusRuntimeException) cause;
+        }
+        if (cause instanceof StatusException) {
+            return ((StatusException) cause).getStatus().asRuntimeException();
+        }
+        if (cause instanceof IllegalArgumentException) {
+            return INVALID_ARGUMENT
+                    .withDescription(cause.getMessage())
+                    .withCause(cause)
+                    .asRuntimeException();
+        }
+        return INTERNAL
+                .withDescription(cause.toString())
+                .withCause(cause)
+                .asRuntimeException();
+    }
+}
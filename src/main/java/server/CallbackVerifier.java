@@ -0,0 +1,212 @@
+package server;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import com.google.protobuf.util.JsonFormat;
+import com.typesafe.config.Config;
+import io.grpc.Status;
+import io.token.proto.common.security.SecurityProtos.Key;
+import io.token.proto.common.security.SecurityProtos.Signature;
+import io.token.proto.common.token.TokenProtos.TokenRequestStatePayload;
+import io.token.security.crypto.Crypto;
+import io.token.security.crypto.CryptoRegistry;
+import io.token.util.Util;
+import server.proto.Proxy.ParseTokenRequestCallbackResponse;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks token request callback URLs in the proxy, as the SDK does, but with the signer's
+ * keys from the {@link KeyDirectory} instead of fetching them on every redirect: the state
+ * must carry the hash of the CSRF token, and the token id and state must be signed by the
+ * Token member.
+ *
+ * <p>The Token member id must be set in {@code keyDirectory.tokenMemberId}; it is never
+ * taken from a callback, as the member id in the signature is not covered by it. Without it,
+ * and whenever a signature can not be checked locally, the callback is left to the SDK, which
+ * resolves the Token member itself and has the last word.
+ */
+class CallbackVerifier {
+    private static final Logger logger = LoggerFactory.getLogger(CallbackVerifier.class);
+
+    private final KeyDirectory keys;
+    private final JsonFormat.Parser jsonParser = JsonFormat.parser().ignoringUnknownFields();
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder delegated = new LongAdder();
+    private final String tokenMemberId;
+
+    /**
+     * Creates a verifier.
+     *
+     * @param config application config
+     * @param keys key directory
+     * @param metrics metrics registry
+     */
+    CallbackVerifier(Config config, KeyDirectory keys, Metrics metrics) {
+        this.keys = keys;
+        String configured = config.getString("keyDirectory.tokenMemberId");
+        this.tokenMemberId = configured.isEmpty() ? null : configured;
+        if (tokenMemberId != null) {
+            logger.info("Verifying token request callbacks signed by {}", tokenMemberId);
+            keys.preload(tokenMemberId);
+        }
+        metrics.register(
+                "proxy_callbacks_verified_locally_total",
+                "counter",
+                "Token request callbacks verified with cached keys.",
+                verified::sum);
+        metrics.register(
+                "proxy_callbacks_delegated_total",
+                "counter",
+                "Token request callbacks left to the SDK to verify.",
+                delegated::sum);
+    }
+
+    /**
+     * Parses and verifies a callback URL.
+     *
+     * @param url callback URL
+     * @param csrfToken CSRF token the request was made with
+     * @return future completed with the callback, or with null if it must be left to the SDK,
+     *     e.g. as the signing key could not be fetched
+     */
+    CompletableFuture<ParseTokenRequestCallbackResponse> verify(String url, String csrfToken) {
+        String signer = tokenMemberId;
+        Callback callback = signer == null ? null : Callback.parse(url, jsonParser);
+        if (callback == null || !signer.equals(callback.signature.getMemberId())) {
+            delegated.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!callback.csrfTokenHash.equals(Util.hashString(csrfToken))) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("Invalid CSRF token")
+                    .asRuntimeException();
+        }
+
+        return keys.key(signer, callback.signature.getKeyId()).thenApply(key -> {
+            if (key == null || !isSigned(callback, key)) {
+                delegated.increment();
+                return null;
+            }
+            verified.increment();
+            return ParseTokenRequestCallbackResponse.newBuilder()
+                    .setTokenId(callback.tokenId)
+                    .setState(callback.innerState)
+                    .build();
+        }).exceptionally(e -> {
+            // The key directory is unreachable; the SDK can still verify the callback.
+            delegated.increment();
+            return null;
+        });
+    }
+
+    private static boolean isSigned(Callback callback, Key key) {
+        TokenRequestStatePayload payload = TokenRequestStatePayload.newBuilder()
+                .setTokenId(callback.tokenId)
+                .setState(urlEncode(callback.serializedState))
+                .build();
+        try {
+            Crypto crypto = CryptoRegistry.getInstance().cryptoFor(key.getAlgorithm());
+            crypto.verifier(crypto.toPublicKey(key.getPublicKey()))
+                    .verify(payload, callback.signature.getSignature());
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parameters of a callback URL: the token id, the serialized state with the CSRF token
+     * hash and the merchant's own state, and the signature over them.
+     */
+    private static final class Callback {
+        private final String tokenId;
+        private final String serializedState;
+        private final String csrfTokenHash;
+        private final String innerState;
+        private final Signature signature;
+
+        private Callback(
+                String tokenId,
+                String serializedState,
+                String csrfTokenHash,
+                String innerState,
+                Signature signature) {
+            this.tokenId = tokenId;
+            this.serializedState = serializedState;
+            this.csrfTokenHash = csrfTokenHash;
+            this.innerState = innerState;
+            this.signature = signature;
+        }
+
+        /**
+         * Parses a callback URL.
+         *
+         * @return callback, or null if the URL is not one
+         */
+        private static Callback parse(String url, JsonFormat.Parser jsonParser) {
+            try {
+                Map<String, String> params = new HashMap<>();
+                String query = URI.create(url).getRawQuery();
+                if (query == null) {
+                    return null;
+                }
+                for (String param : query.split("&")) {
+                    int separator = param.indexOf('=');
+                    if (separator > 0) {
+                        params.put(
+                                URLDecoder.decode(param.substring(0, separator), UTF_8.name()),
+                                URLDecoder.decode(param.substring(separator + 1), UTF_8.name()));
+                    }
+                }
+                String tokenId = params.get("tokenId");
+                String serializedState = params.get("state");
+                String serializedSignature = params.get("signature");
+                if (tokenId == null || serializedState == null || serializedSignature == null) {
+                    return null;
+                }
+
+                Signature.Builder signature = Signature.newBuilder();
+                jsonParser.merge(serializedSignature, signature);
+                Struct.Builder state = Struct.newBuilder();
+                jsonParser.merge(URLDecoder.decode(serializedState, UTF_8.name()), state);
+                return new Callback(
+                        tokenId,
+                        serializedState,
+                        string(state, "csrfTokenHash"),
+                        string(state, "innerState"),
+                        signature.build());
+            } catch (IllegalArgumentException
+                    | InvalidProtocolBufferException
+                    | UnsupportedEncodingException e) {
+                return null;
+            }
+        }
+
+        private static String string(Struct.Builder struct, String field) {
+            Value value = struct.getFieldsOrDefault(field, Value.getDefaultInstance());
+            return value.getStringValue();
+        }
+    }
+}
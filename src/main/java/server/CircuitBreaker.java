@@ -0,0 +1,159 @@
+package server;
+
+import static io.grpc.Status.Code.DEADLINE_EXCEEDED;
+import static io.grpc.Status.Code.INTERNAL;
+import static io.grpc.Status.Code.RESOURCE_EXHAUSTED;
+import static io.grpc.Status.Code.UNAVAILABLE;
+import static io.grpc.Status.Code.UNKNOWN;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.collect.ImmutableSet;
+import com.typesafe.config.Config;
+import io.grpc.Status;
+
+import java.util.Set;
+
+/**
+ * Stops calling an upstream that keeps failing. The breaker opens when, within a window of
+ * {@code upstream.circuitBreaker.windowMs}, at least {@code minCalls} calls were made and
+ * {@code failureRate} of them failed with a server side error or timed out; client errors
+ * such as unknown ids do not count. While open, calls are refused without being made. After
+ * {@code openMs} a single trial call is let through, which closes the breaker if it succeeds
+ * and opens it again otherwise. Calls that were let through before the breaker last opened
+ * may complete at any time after; their outcome is ignored, so that only the trial call
+ * decides whether the breaker closes.
+ */
+final class CircuitBreaker {
+    private static final Set<Status.Code> FAILURES = ImmutableSet.of(
+            DEADLINE_EXCEEDED,
+            INTERNAL,
+            RESOURCE_EXHAUSTED,
+            UNAVAILABLE,
+            UNKNOWN);
+
+    private enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int minCalls;
+    private final double failureRate;
+    private final long windowNanos;
+    private final long openNanos;
+    private State state = State.CLOSED;
+    // Number of times the breaker opened, which tells late calls apart from current ones.
+    private long generation;
+    private long windowStartNanos = System.nanoTime();
+    private long openedAtNanos;
+    private int calls;
+    private int failures;
+
+    /**
+     * Creates a breaker from the upstream.circuitBreaker.* settings.
+     *
+     * @param config application config
+     */
+    CircuitBreaker(Config config) {
+        this.minCalls = config.getInt("upstream.circuitBreaker.minCalls");
+        this.failureRate = config.getDouble("upstream.circuitBreaker.failureRate");
+        this.windowNanos =
+                MILLISECONDS.toNanos(config.getLong("upstream.circuitBreaker.windowMs"));
+        this.openNanos = MILLISECONDS.toNanos(config.getLong("upstream.circuitBreaker.openMs"));
+    }
+
+    /**
+     * Checks whether a call may be made, and if it is the trial call of a half-open breaker,
+     * lets no other call through until it completes.
+     *
+     * @return permit to hand back with the outcome of the call, or null if it may not be made
+     */
+    synchronized Permit allow() {
+        switch (state) {
+            case CLOSED:
+                return new Permit(generation, false);
+            case OPEN:
+                if (System.nanoTime() - openedAtNanos < openNanos) {
+                    return null;
+                }
+                state = State.HALF_OPEN;
+                return new Permit(generation, true);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Records the outcome of a call that was allowed.
+     *
+     * @param permit permit the call was made with
+     * @param code status of the call
+     */
+    synchronized void record(Permit permit, Status.Code code) {
+        if (permit.generation != generation) {
+            // Started before the breaker last opened.
+            return;
+        }
+        if (code == Status.Code.CANCELLED) {
+            // The caller gave up, which says nothing about upstream.
+            if (permit.trial) {
+                state = State.OPEN;
+            }
+            return;
+        }
+        boolean failed = FAILURES.contains(code);
+        long now = System.nanoTime();
+        if (permit.trial) {
+            if (failed) {
+                open(now);
+            } else {
+                state = State.CLOSED;
+                reset(now);
+            }
+            return;
+        }
+        if (state != State.CLOSED) {
+            return;
+        }
+        if (now - windowStartNanos > windowNanos) {
+            reset(now);
+        }
+        calls++;
+        if (failed) {
+            failures++;
+        }
+        if (calls >= minCalls && failures >= failureRate * calls) {
+            open(now);
+        }
+    }
+
+    synchronized boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        generation++;
+        openedAtNanos = now;
+        reset(now);
+    }
+
+    private void reset(long now) {
+        windowStartNanos = now;
+        calls = 0;
+        failures = 0;
+    }
+
+    /**
+     * Leave to make one call, handed back with its outcome.
+     */
+    static final class Permit {
+        private final long generation;
+        private final boolean trial;
+
+        private Permit(long generation, boolean trial) {
+            this.generation = generation;
+            this.trial = trial;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package server;
+
+import com.typesafe.config.Config;
+import io.grpc.Status;
+
+/**
+ * Adaptive limit on the number of calls in flight to one endpoint (AIMD). The limit grows by
+ * one per limit's worth of calls that complete in time while at least half of it is in use,
+ * and is cut by {@code admission.backoffRatio} when upstream is overloaded: an upstream call
+ * times out or is rejected as unavailable or exhausted (see {@link Upstream#isOverloaded}), or
+ * the call takes {@code admission.slowCallTolerance} times longer than the average call. The
+ * proxy's own rejections, e.g. of transfers beyond {@code transferQueue.maxPending}, do not
+ * count. It is cut at most once per average call duration, so a burst
+ * of slow calls counts as one signal.
+ *
+ * <p>Not thread safe; guarded by {@link AdmissionInterceptor}.
+ */
+final class ConcurrencyLimit {
+    // Weight of a new sample in the average call duration.
+    private static final double SMOOTHING = 0.02;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final double tolerance;
+    private double limit;
+    private int inFlight;
+    private double averageNanos;
+    private long lastDecreaseNanos;
+
+    /**
+     * Creates a limit from the admission.* settings.
+     *
+     * @param config application config
+     */
+    ConcurrencyLimit(Config config) {
+        this.minLimit = config.getInt("admission.minLimit");
+        this.maxLimit = config.getInt("admission.maxLimit");
+        this.backoffRatio = config.getDouble("admission.backoffRatio");
+        this.tolerance = config.getDouble("admission.slowCallTolerance");
+        this.limit = config.getInt("admission.initialLimit");
+    }
+
+    /**
+     * Takes a permit if the limit allows.
+     *
+     * @return true if the call may proceed
+     */
+    boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Returns a permit and adjusts the limit to the outcome of the call.
+     *
+     * @param elapsedNanos duration of the call
+     * @param status status the call was closed with, or CANCELLED if the client went away
+     */
+    void release(long elapsedNanos, Status status) {
+        boolean saturated = inFlight * 2 >= (int) limit;
+        inFlight--;
+        if (status.getCode() == Status.Code.CANCELLED) {
+            // Says nothing about upstream.
+            return;
+        }
+
+        boolean slow = averageNanos > 0 && elapsedNanos > tolerance * averageNanos;
+        averageNanos = averageNanos == 0
+                ? elapsedNanos
+                : averageNanos + (elapsedNanos - averageNanos) * SMOOTHING;
+        if (slow || Upstream.isOverloaded(status)) {
+            long now = System.nanoTime();
+            if (now - lastDecreaseNanos > averageNanos) {
+                lastDecreaseNanos = now;
+                limit = Math.max(minLimit, limit * backoffRatio);
+            }
+        } else if (saturated) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    int limit() {
+        return (int) limit;
+    }
+
+    int inFlight() {
+        return inFlight;
+    }
+}
@@ -0,0 +1,165 @@
+package server;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import spark.Request;
+import spark.Response;
+
+/**
+ * Compresses response bodies above a size threshold, with gzip or deflate as negotiated
+ * through the Accept-Encoding header. Gzip is preferred when both are accepted. Gzip bodies
+ * are compressed by Spark while they are written out, which it does whenever the response
+ * carries a gzip Content-Encoding header; deflate bodies are compressed here.
+ */
+final class ContentEncoding {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private final int minBytes;
+
+    /**
+     * Creates a content encoding policy.
+     *
+     * @param minBytes smallest body that is compressed
+     */
+    ContentEncoding(int minBytes) {
+        this.minBytes = minBytes;
+    }
+
+    /**
+     * Checks whether a name is one of the content encodings applied here.
+     *
+     * @param name encoding name
+     * @return true for gzip and deflate
+     */
+    static boolean isEncoding(String name) {
+        return GZIP.equals(name) || DEFLATE.equals(name);
+    }
+
+    /**
+     * Picks the content encoding of a response body.
+     *
+     * @param req HTTP request
+     * @param body response body, a string or bytes
+     * @return gzip, deflate, or null to send the body as is
+     */
+    String negotiate(Request req, Object body) {
+        int length = body instanceof byte[]
+                ? ((byte[]) body).length
+                : body instanceof String ? ((String) body).length() : 0;
+        return length < minBytes ? null : preferred(req);
+    }
+
+    /**
+     * Returns the content encoding the client prefers, whatever the size of the response.
+     *
+     * @param req HTTP request
+     * @return gzip, deflate, or null if the client accepts neither
+     */
+    static String preferred(Request req) {
+        String acceptEncoding = req.headers("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return null;
+        }
+        if (accepts(acceptEncoding, GZIP)) {
+            return GZIP;
+        }
+        if (accepts(acceptEncoding, DEFLATE)) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Sets the Content-Encoding header and encodes the body, if needed.
+     *
+     * @param res HTTP response
+     * @param body response body, a string or bytes
+     * @param encoding negotiated encoding, or null
+     * @return body to return from the route
+     */
+    static Object encode(Response res, Object body, String encoding) {
+        if (encoding == null) {
+            return body;
+        }
+        res.header("Content-Encoding", encoding);
+        return GZIP.equals(encoding) ? body : compress(body, encoding);
+    }
+
+    /**
+     * Encodes a body into bytes.
+     *
+     * @param body response body, a string or bytes
+     * @param encoding gzip, deflate, or null to leave the body uncompressed
+     * @return encoded bytes
+     */
+    static byte[] compress(Object body, String encoding) {
+        byte[] bytes = body instanceof byte[]
+                ? (byte[]) body
+                : ((String) body).getBytes(UTF_8);
+        if (encoding == null) {
+            return bytes;
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+        try (DeflaterOutputStream out = GZIP.equals(encoding)
+                ? new GZIPOutputStream(compressed)
+                : new DeflaterOutputStream(compressed)) {
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Writes a body that is already encoded.
+     *
+     * @param res HTTP response
+     * @param body encoded body
+     * @param encoding encoding of the body, or null
+     * @return body to return from the route
+     * @throws IOException if the client can not be written to
+     */
+    static Object write(Response res, byte[] body, String encoding) throws IOException {
+        if (encoding == null) {
+            return body;
+        }
+        res.header("Content-Encoding", encoding);
+        if (DEFLATE.equals(encoding)) {
+            return body;
+        }
+        // Spark would compress a body returned with a gzip Content-Encoding a second time, so
+        // it is written out directly, which commits the response.
+        res.raw().setContentLength(body.length);
+        res.raw().getOutputStream().write(body);
+        res.raw().getOutputStream().flush();
+        return "";
+    }
+
+    private static boolean accepts(String acceptEncoding, String encoding) {
+        for (String candidate : acceptEncoding.split(",")) {
+            String[] parts = candidate.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase(encoding)) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,183 @@
+package server;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import io.grpc.Context;
+import io.grpc.Status;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Strong entity tag of the response to a conditional GET request. The tag is computed from
+ * the response proto rather than from its JSON encoding, so the JSON encoding can be skipped
+ * when the client already has the response. Tags of responses that are served from a cache,
+ * i.e. the same message instance again, are remembered rather than computed again.
+ *
+ * <p>The holder is bound to the request context by the HTTP handler and filled in by
+ * {@link EntityTagInterceptor}, or by the protobuf bridge.
+ */
+final class EntityTag {
+    static final String ETAG = "ETag";
+    static final String IF_NONE_MATCH = "If-None-Match";
+
+    /** Status the call is closed with when the client's copy is current. */
+    static final Status NOT_MODIFIED = Status.ABORTED.withDescription("Not modified");
+
+    private static final Context.Key<EntityTag> CONTEXT_KEY = Context.key("entity-tag");
+    // Keys are weak, and therefore compared by identity.
+    private static final Cache<MessageLite, String> digests = CacheBuilder.newBuilder()
+            .weakKeys()
+            .maximumSize(10000)
+            .build();
+
+    private final String ifNoneMatch;
+    private volatile String value;
+    private volatile boolean notModified;
+
+    /**
+     * Creates a holder for a request.
+     *
+     * @param ifNoneMatch value of the If-None-Match header, or null
+     */
+    EntityTag(String ifNoneMatch) {
+        this.ifNoneMatch = ifNoneMatch;
+    }
+
+    /**
+     * Returns the holder bound to the current context.
+     *
+     * @return entity tag holder, or null if the request is not a GET
+     */
+    static EntityTag current() {
+        return CONTEXT_KEY.get();
+    }
+
+    /**
+     * Binds this holder to a context.
+     *
+     * @param context context to derive from
+     * @return derived context
+     */
+    Context bind(Context context) {
+        return context.withValue(CONTEXT_KEY, this);
+    }
+
+    /**
+     * Sets the tag from a response message.
+     *
+     * @param message response
+     * @param representation name of the encoding the response is sent in, e.g. json
+     * @return true if the client's copy is current and the response need not be sent
+     */
+    boolean update(MessageLite message, String representation) {
+        String digest = digests.getIfPresent(message);
+        if (digest == null) {
+            Hasher hasher = Hashing.sha256().newHasher();
+            try (OutputStream out = Funnels.asOutputStream(hasher)) {
+                CodedOutputStream coded = CodedOutputStream.newInstance(out);
+                // Map entries could otherwise be written in any order.
+                coded.useDeterministicSerialization();
+                message.writeTo(coded);
+                coded.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            digest = digest(hasher);
+            digests.put(message, digest);
+        }
+        return update(digest, representation);
+    }
+
+    /**
+     * Sets the tag from a serialized response message.
+     *
+     * @param message serialized response
+     * @param representation name of the encoding the response is sent in, e.g. protobuf
+     * @return true if the client's copy is current and the response need not be sent
+     */
+    boolean update(byte[] message, String representation) {
+        return update(digest(Hashing.sha256().newHasher().putBytes(message)), representation);
+    }
+
+    /**
+     * Returns the tag, as sent in the ETag header.
+     *
+     * @param contentEncoding content encoding negotiated with the client, or null if none
+     * @return quoted tag, or null if the response has none
+     */
+    String value(String contentEncoding) {
+        if (value == null) {
+            return null;
+        }
+        return contentEncoding == null
+                ? '"' + value + '"'
+                : '"' + value + '-' + contentEncoding + '"';
+    }
+
+    /**
+     * Checks whether the client already has the response with the given tag.
+     *
+     * @param ifNoneMatch value of the If-None-Match header, or null
+     * @param etag ETag header of the response
+     * @return true if the client's copy is current
+     */
+    static boolean isCurrent(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String value = etag.substring(1, etag.length() - 1);
+        int suffix = value.lastIndexOf('-');
+        if (suffix >= 0 && ContentEncoding.isEncoding(value.substring(suffix + 1))) {
+            value = value.substring(0, suffix);
+        }
+        return matches(ifNoneMatch, value);
+    }
+
+    boolean isNotModified() {
+        return notModified;
+    }
+
+    private boolean update(String digest, String representation) {
+        value = digest + '-' + representation;
+        notModified = ifNoneMatch != null && matches(ifNoneMatch, value);
+        return notModified;
+    }
+
+    /**
+     * Checks an If-None-Match header against a tag. The comparison is weak, as it should be
+     * for If-None-Match, and ignores the content encoding suffix added to compressed
+     * responses.
+     */
+    private static boolean matches(String ifNoneMatch, String value) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.length() < 2 || !tag.startsWith("\"") || !tag.endsWith("\"")) {
+                continue;
+            }
+            tag = tag.substring(1, tag.length() - 1);
+            if (tag.equals(value) || (tag.startsWith(value + '-')
+                    && ContentEncoding.isEncoding(tag.substring(value.length() + 1)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String digest(Hasher hasher) {
+        // 128 bits are plenty to tell versions of a resource apart.
+        return BaseEncoding.base64Url().omitPadding().encode(hasher.hash().asBytes(), 0, 16);
+    }
+}
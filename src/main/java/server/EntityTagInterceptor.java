@@ -0,0 +1,47 @@
+package server;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/**
+ * Tags the response of calls made for conditional HTTP GET requests, and withholds it if the
+ * client's copy is current. The call is then closed with {@link EntityTag#NOT_MODIFIED},
+ * which the HTTP handler turns into a 304. It is installed outside of the metrics, which
+ * record such calls as successful.
+ */
+class EntityTagInterceptor implements ServerInterceptor {
+    private static final String REPRESENTATION = "json";
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+            ServerCall<ReqT, RespT> call,
+            Metadata metadata,
+            ServerCallHandler<ReqT, RespT> next) {
+        EntityTag tag = EntityTag.current();
+        if (tag == null) {
+            return next.startCall(call, metadata);
+        }
+        return next.startCall(new SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void sendMessage(RespT message) {
+                if (message instanceof MessageLite
+                        && tag.update((MessageLite) message, REPRESENTATION)) {
+                    return;
+                }
+                super.sendMessage(message);
+            }
+
+            @Override
+            public void close(Status status, Metadata trailers) {
+                super.close(status.isOk() && tag.isNotModified()
+                        ? EntityTag.NOT_MODIFIED
+                        : status, trailers);
+            }
+        }, metadata);
+    }
+}
@@ -0,0 +1,205 @@
+package server;
+
+import static io.grpc.Status.DEADLINE_EXCEEDED;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import io.grpc.Context;
+import io.grpc.Deadline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Runs one asynchronous call per item with at most {@code concurrency} calls in flight,
+ * and collects a separate outcome for each item. Items that have not completed by the
+ * deadline fail with DEADLINE_EXCEEDED; a failed item never fails the others.
+ */
+class FanOut {
+    private final int concurrency;
+    private final long deadlineMs;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Creates a new fan-out policy.
+     *
+     * @param concurrency maximum number of calls in flight per batch
+     * @param deadlineMs time allowed for the whole batch
+     * @param scheduler scheduler used to enforce the deadline
+     */
+    FanOut(int concurrency, long deadlineMs, ScheduledExecutorService scheduler) {
+        this.concurrency = Math.max(1, concurrency);
+        this.deadlineMs = deadlineMs;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Runs the call for every item. The batch deadline is shortened to the deadline of the
+     * current gRPC call, if that one is sooner.
+     *
+     * @param items items to process
+     * @param call starts the call for an item
+     * @param <T> item type
+     * @param <R> result type
+     * @return outcomes, in the order of the items
+     */
+    <T, R> CompletableFuture<List<Outcome<R>>> run(
+            List<T> items,
+            Function<T, CompletableFuture<R>> call) {
+        return run(items, call, (index, outcome) -> { });
+    }
+
+    /**
+     * Runs the call for every item, reporting each outcome as soon as it is known.
+     *
+     * @param items items to process
+     * @param call starts the call for an item
+     * @param listener receives the index of the item and its outcome, exactly once per item
+     * @param <T> item type
+     * @param <R> result type
+     * @return outcomes, in the order of the items
+     */
+    <T, R> CompletableFuture<List<Outcome<R>>> run(
+            List<T> items,
+            Function<T, CompletableFuture<R>> call,
+            BiConsumer<Integer, Outcome<R>> listener) {
+        return new Batch<>(items, call, listener).start();
+    }
+
+    private long remainingMs() {
+        Deadline deadline = Context.current().getDeadline();
+        return deadline == null
+                ? deadlineMs
+                : Math.min(deadlineMs, deadline.timeRemaining(MILLISECONDS));
+    }
+
+    /**
+     * Result of the call for one item: either a value or an error.
+     *
+     * @param <R> result type
+     */
+    static final class Outcome<R> {
+        private final R value;
+        private final Throwable error;
+
+        private Outcome(R value, Throwable error) {
+            this.value = value;
+            this.error = error;
+        }
+
+        boolean isSuccess() {
+            return error == null;
+        }
+
+        R value() {
+            return value;
+        }
+
+        Throwable error() {
+            return error;
+        }
+    }
+
+    private class Batch<T, R> {
+        private final List<T> items;
+        private final Function<T, CompletableFuture<R>> call;
+        private final BiConsumer<Integer, Outcome<R>> listener;
+        private final AtomicReferenceArray<Outcome<R>> outcomes;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger starts = new AtomicInteger();
+        private final AtomicInteger remaining;
+        private final CompletableFuture<List<Outcome<R>>> result = new CompletableFuture<>();
+
+        private Batch(
+                List<T> items,
+                Function<T, CompletableFuture<R>> call,
+                BiConsumer<Integer, Outcome<R>> listener) {
+            this.items = items;
+            this.call = call;
+            this.listener = listener;
+            this.outcomes = new AtomicReferenceArray<>(items.size());
+            this.remaining = new AtomicInteger(items.size());
+        }
+
+        private CompletableFuture<List<Outcome<R>>> start() {
+            if (items.isEmpty()) {
+                result.complete(new ArrayList<>());
+                return result;
+            }
+            ScheduledFuture<?> timeout = scheduler.schedule(
+                    this::expire,
+                    remainingMs(),
+                    MILLISECONDS);
+            result.whenComplete((outcomes, error) -> timeout.cancel(false));
+            for (int i = 0; i < Math.min(concurrency, items.size()); i++) {
+                startNext();
+            }
+            return result;
+        }
+
+        /**
+         * Starts the call for the next item. Only one thread starts calls at a time: a call
+         * that completes on its stack, e.g. one answered from a cache, only asks for the
+         * next start, which the loop picks up, so the stack does not grow with the batch.
+         */
+        private void startNext() {
+            if (starts.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                startOne();
+            } while (starts.decrementAndGet() != 0);
+        }
+
+        private void startOne() {
+            int index = next.getAndIncrement();
+            if (index >= items.size() || result.isDone()) {
+                return;
+            }
+            CompletableFuture<R> future;
+            try {
+                future = call.apply(items.get(index));
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            future.whenComplete((value, error) -> {
+                complete(index, new Outcome<>(value, error == null ? null : Async.unwrap(error)));
+                startNext();
+            });
+        }
+
+        private void complete(int index, Outcome<R> outcome) {
+            if (!outcomes.compareAndSet(index, null, outcome)) {
+                return;
+            }
+            listener.accept(index, outcome);
+            if (remaining.decrementAndGet() == 0) {
+                List<Outcome<R>> collected = new ArrayList<>(items.size());
+                for (int i = 0; i < items.size(); i++) {
+                    collected.add(outcomes.get(i));
+                }
+                result.complete(collected);
+            }
+        }
+
+        private void expire() {
+            Outcome<R> expired = new Outcome<>(
+                    null,
+                    DEADLINE_EXCEEDED
+                            .withDescription("Batch deadline exceeded")
+                            .asRuntimeException());
+            // Calls still in flight are left to finish: their results may be shared with
+            // other callers, e.g. through the read cache.
+            for (int i = 0; i < items.size(); i++) {
+                complete(i, expired);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package server;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.typesafe.config.Config;
+import io.token.proto.common.member.MemberProtos.Member;
+import io.token.proto.common.security.SecurityProtos.Key;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Public signing keys of the Token members whose signatures the proxy checks, keyed by
+ * member id and key id. Known members are refreshed every
+ * {@code keyDirectory.refreshIntervalMs}, so that rotated keys are picked up off the request
+ * path. A key that is not known yet makes the member be fetched again, once for all the
+ * callers asking at the same time, and at most once per
+ * {@code keyDirectory.minFetchIntervalMs}, so unknown key ids can not be used to flood the
+ * directory.
+ */
+class KeyDirectory {
+    private static final Logger logger = LoggerFactory.getLogger(KeyDirectory.class);
+
+    private final Function<String, CompletableFuture<Member>> fetcher;
+    private final long minFetchIntervalMs;
+    private final Map<String, Keys> members = new ConcurrentHashMap<>();
+    private final SingleFlight<String, Keys> fetches = new SingleFlight<>();
+
+    /**
+     * Creates a directory.
+     *
+     * @param config application config
+     * @param fetcher fetches a member from the Token directory
+     * @param scheduler runs the refreshes
+     */
+    KeyDirectory(
+            Config config,
+            Function<String, CompletableFuture<Member>> fetcher,
+            ScheduledExecutorService scheduler) {
+        this.fetcher = fetcher;
+        this.minFetchIntervalMs = config.getLong("keyDirectory.minFetchIntervalMs");
+        long refreshIntervalMs = config.getLong("keyDirectory.refreshIntervalMs");
+        scheduler.scheduleWithFixedDelay(
+                this::refresh,
+                refreshIntervalMs,
+                refreshIntervalMs,
+                MILLISECONDS);
+    }
+
+    /**
+     * Starts tracking a member and loads its keys in the background.
+     *
+     * @param memberId member id
+     */
+    void preload(String memberId) {
+        if (!members.containsKey(memberId)) {
+            fetch(memberId);
+        }
+    }
+
+    /**
+     * Looks up a key.
+     *
+     * @param memberId member id
+     * @param keyId key id
+     * @return future completed with the key, or null if the member has no such key
+     */
+    CompletableFuture<Key> key(String memberId, String keyId) {
+        Keys keys = members.get(memberId);
+        if (keys != null && keys.byId.containsKey(keyId)) {
+            return CompletableFuture.completedFuture(keys.byId.get(keyId));
+        }
+        if (keys != null && System.currentTimeMillis() - keys.fetchedAtMs < minFetchIntervalMs) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return fetch(memberId).thenApply(fetched -> fetched.byId.get(keyId));
+    }
+
+    private CompletableFuture<Keys> fetch(String memberId) {
+        return fetches.execute(memberId, () -> fetcher.apply(memberId).thenApply(member -> {
+            Keys keys = new Keys(member.getKeysList()
+                    .stream()
+                    .collect(Collectors.toMap(Key::getId, key -> key, (a, b) -> b)));
+            members.put(memberId, keys);
+            return keys;
+        }));
+    }
+
+    private void refresh() {
+        for (String memberId : members.keySet()) {
+            fetch(memberId).whenComplete((keys, error) -> {
+                if (error != null) {
+                    logger.warn("Could not refresh the keys of {}: {}", memberId, error.toString());
+                }
+            });
+        }
+    }
+
+    private static final class Keys {
+        private final Map<String, Key> byId;
+        private final long fetchedAtMs = System.currentTimeMillis();
+
+        private Keys(Map<String, Key> byId) {
+            this.byId = byId;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package server;
+
+import static io.token.proto.common.alias.AliasProtos.Alias.Type.DOMAIN;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+import io.grpc.StatusRuntimeException;
+import io.token.Member;
+import io.token.TokenIO;
+import io.token.proto.common.alias.AliasProtos.Alias;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs in the member of a domain, or creates it.
+ *
+ * <p>The member id of the member of each domain is kept in a descriptor file,
+ * {@code members/<domain>.conf} in the key directory, so that the proxy logs straight into it
+ * on the next start. Without a descriptor for the domain, every member whose keys are in the
+ * key directory is logged in and has its aliases looked up, up to
+ * {@code startup.loginConcurrency} of them at a time, and the first one with the domain
+ * alias is used.
+ */
+final class MemberBootstrap {
+    private static final Logger logger = LoggerFactory.getLogger(MemberBootstrap.class);
+    private static final String DESCRIPTORS = "members";
+
+    private final TokenIO tokenIO;
+    private final Path keysDir;
+    private final String domain;
+    private final int loginConcurrency;
+
+    /**
+     * Creates a bootstrap.
+     *
+     * @param config application config
+     * @param tokenIO Token SDK client
+     * @param domain domain alias of the member, in lower case
+     */
+    MemberBootstrap(Config config, TokenIO tokenIO, String domain) {
+        this.tokenIO = tokenIO;
+        this.keysDir = Paths.get(config.getString("keysDir"));
+        this.domain = domain;
+        this.loginConcurrency = config.getInt("startup.loginConcurrency");
+    }
+
+    /**
+     * Logs in the member of the domain, or creates it, and records it in the descriptor.
+     *
+     * @return logged-in member
+     */
+    Member member() {
+        Member member = existingMember();
+        return member != null ? member : record(create());
+    }
+
+    /**
+     * Logs in the member of the domain, without creating it, and records it in the
+     * descriptor.
+     *
+     * @return logged-in member, or null if there are no keys for it
+     */
+    Member existingMember() {
+        Member member = fromDescriptor();
+        if (member != null) {
+            return member;
+        }
+        member = fromKeys();
+        return member != null ? record(member) : null;
+    }
+
+    /**
+     * Logs in the member recorded in the descriptor, if it is the one of the domain and its
+     * keys are still there.
+     *
+     * @return logged-in member, or null if there is no such member
+     */
+    private Member fromDescriptor() {
+        Path file = descriptor();
+        if (!Files.exists(file)) {
+            return null;
+        }
+        String memberId;
+        try {
+            Config descriptor = ConfigFactory.parseFile(file.toFile());
+            if (!domain.equals(descriptor.getString("domain"))) {
+                return null;
+            }
+            memberId = descriptor.getString("memberId");
+        } catch (ConfigException e) {
+            logger.warn("Ignoring unreadable member descriptor: {}", e.getMessage());
+            return null;
+        }
+        if (!Files.isDirectory(keysDir.resolve(memberId.replace(":", "_")))) {
+            return null;
+        }
+        try {
+            return tokenIO.getMember(memberId);
+        } catch (StatusRuntimeException e) {
+            logger.warn(
+                    "Could not log in member {} of the descriptor: {}",
+                    memberId,
+                    e.getStatus());
+            return null;
+        }
+    }
+
+    /**
+     * Logs in the members whose keys are in the key directory, in parallel, and picks the
+     * first one with the domain alias.
+     *
+     * @return logged-in member, or null if there are no keys
+     */
+    private Member fromKeys() {
+        // The UnsecuredFileSystemKeyStore stores keys in a directory
+        // named on the member's memberId, but with ":" replaced by "_".
+        List<String> memberIds;
+        try (Stream<Path> paths = Files.list(keysDir)) {
+            memberIds = paths
+                    .filter(Files::isDirectory)
+                    .map(path -> path.getFileName().toString())
+                    .filter(name -> name.contains("_"))
+                    .map(name -> name.replace("_", ":"))
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not list the keys dir", e);
+        }
+        if (memberIds.isEmpty()) {
+            return null;
+        }
+
+        ExecutorService logins = Executors.newFixedThreadPool(
+                Math.min(loginConcurrency, memberIds.size()),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("member-login-%d")
+                        .setDaemon(true)
+                        .build());
+        try {
+            List<CompletableFuture<Member>> candidates = new ArrayList<>();
+            for (String memberId : memberIds) {
+                candidates.add(CompletableFuture.supplyAsync(() -> login(memberId), logins));
+            }
+            boolean failed = false;
+            for (CompletableFuture<Member> candidate : candidates) {
+                try {
+                    Member member = candidate.join();
+                    if (member != null) {
+                        return member;
+                    }
+                } catch (CompletionException e) {
+                    failed = true;
+                }
+            }
+            if (failed) {
+                // We think we have a member's ID and keys, but we can't log in.
+                // In the sandbox testing environment, this can happen:
+                // Sometimes, the member service erases the test members.
+                throw new RuntimeException(
+                        "Couldn't log in saved member, not found. Remove keys dir and try again.");
+            }
+            return null;
+        } finally {
+            logins.shutdownNow();
+        }
+    }
+
+    /**
+     * Logs in a member.
+     *
+     * @param memberId member id
+     * @return logged-in member, or null if it does not have the domain alias
+     */
+    private Member login(String memberId) {
+        try {
+            Member member = tokenIO.getMember(memberId);
+            return member.aliases().stream().anyMatch(alias -> alias.getValue().equals(domain))
+                    ? member
+                    : null;
+        } catch (StatusRuntimeException e) {
+            logger.warn("Could not log in member {}: {}", memberId, e.getStatus());
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a new member with the domain alias. This has the side effect of storing the
+     * new member's private keys in the key directory.
+     *
+     * @return newly-created member, logged in
+     */
+    private Member create() {
+        // If we try to create a member with an already-used alias,
+        // it will fail.
+        Alias alias = Alias.newBuilder()
+                .setType(DOMAIN)
+                .setValue(domain)
+                .build();
+        if (tokenIO.aliasExists(alias)) {
+            throw new IllegalArgumentException(
+                    "Domain already taken. Change domain and try again.");
+        }
+        return tokenIO.createBusinessMember(alias);
+    }
+
+    private Member record(Member member) {
+        String descriptor = ConfigFactory.empty()
+                .withValue("memberId", ConfigValueFactory.fromAnyRef(member.memberId()))
+                .withValue("domain", ConfigValueFactory.fromAnyRef(domain))
+                .root()
+                .render();
+        Path file = descriptor();
+        Path written = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            Files.write(written, descriptor.getBytes(UTF_8));
+            Files.move(written, file, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Only the next start is slower without it.
+            logger.warn("Could not write the member descriptor: {}", e.toString());
+        }
+        return member;
+    }
+
+    private Path descriptor() {
+        return keysDir.resolve(DESCRIPTORS).resolve(domain + ".conf");
+    }
+}
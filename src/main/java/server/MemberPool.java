@@ -0,0 +1,164 @@
+package server;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.typesafe.config.Config;
+import http.Headers;
+import io.grpc.Status;
+import io.token.Member;
+import io.token.TokenIO;
+
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Members the proxy serves requests for, keyed by domain alias. Without
+ * {@code memberPool.enabled}, every request is served for the member of {@code domain}.
+ * Otherwise, a request is served for the member of the domain named in its
+ * {@code memberPool.header} header, if any and if listed in {@code memberPool.domains}.
+ * Those members are logged in on first use, from the member descriptor of their domain in the
+ * key directory, and dropped, with the representables of their access tokens, once idle for
+ * {@code memberPool.idleTimeoutMs} or when more than {@code memberPool.maxSize} are in use.
+ * All of them share the Token SDK client, and with it its connections.
+ */
+class MemberPool {
+    private static final Pattern DOMAIN = Pattern.compile("[a-z0-9]([a-z0-9.-]*[a-z0-9])?");
+
+    private final String defaultDomain;
+    private final Tenant defaultTenant;
+    private final String header;
+    private final Set<String> domains;
+    private final LoadingCache<String, Tenant> tenants;
+
+    /**
+     * Creates a pool.
+     *
+     * @param config application config
+     * @param tokenIO Token SDK client
+     * @param defaultMember logged-in member of {@code domain}
+     */
+    MemberPool(Config config, TokenIO tokenIO, Member defaultMember) {
+        this.defaultDomain = config.getString("domain").toLowerCase();
+        this.defaultTenant = new Tenant(config, defaultMember, true);
+        if (!config.getBoolean("memberPool.enabled")) {
+            this.header = null;
+            this.domains = null;
+            this.tenants = null;
+            return;
+        }
+        this.header = config.getString("memberPool.header");
+        this.domains = config.getStringList("memberPool.domains")
+                .stream()
+                .map(String::toLowerCase)
+                .collect(Collectors.toSet());
+        this.tenants = CacheBuilder.newBuilder()
+                .maximumSize(config.getLong("memberPool.maxSize"))
+                .expireAfterAccess(config.getLong("memberPool.idleTimeoutMs"), MILLISECONDS)
+                .removalListener((RemovalNotification<String, Tenant> removed) ->
+                        removed.getValue().representables.clear())
+                .build(CacheLoader.from(domain -> {
+                    // Only the first request for a domain without a descriptor looks for its
+                    // member among the keys, which records it for the later ones.
+                    Member member = new MemberBootstrap(config, tokenIO, domain)
+                            .existingMember();
+                    if (member == null) {
+                        throw Status.NOT_FOUND
+                                .withDescription("No member with keys for domain " + domain)
+                                .asRuntimeException();
+                    }
+                    return new Tenant(config, member, false);
+                }));
+    }
+
+    /**
+     * Returns the member to serve the current request for.
+     *
+     * @return tenant of the request
+     */
+    Tenant current() {
+        String domain = header == null
+                ? null
+                : Headers.getHeader(header).map(String::toLowerCase).orElse(null);
+        if (domain == null || domain.equals(defaultDomain)) {
+            return defaultTenant;
+        }
+        if (!domains.contains(domain) || !DOMAIN.matcher(domain).matches()) {
+            throw Status.NOT_FOUND
+                    .withDescription("Unknown domain: " + domain)
+                    .asRuntimeException();
+        }
+        try {
+            return tenants.getUnchecked(domain);
+        } catch (UncheckedExecutionException e) {
+            throw Async.toStatusException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the member a domain is served for, without logging it in.
+     *
+     * @param domain value of the member header, or null
+     * @return tenant, or null if the member of the domain is not logged in
+     */
+    Tenant loaded(String domain) {
+        if (domain == null || domain.equalsIgnoreCase(defaultDomain)) {
+            return defaultTenant;
+        }
+        return tenants == null ? null : tenants.getIfPresent(domain.toLowerCase());
+    }
+
+    /**
+     * Returns the member of {@code domain}.
+     *
+     * @return default tenant
+     */
+    Tenant defaultTenant() {
+        return defaultTenant;
+    }
+
+    /**
+     * Returns the header that selects the member of a request.
+     *
+     * @return header name, or null if all requests are served for the same member
+     */
+    String header() {
+        return header;
+    }
+
+    long size() {
+        return 1 + (tenants == null ? 0 : tenants.size());
+    }
+
+    /**
+     * A member the proxy serves requests for, with the representables of the access tokens
+     * granted to it.
+     */
+    static final class Tenant {
+        final Member member;
+        final RepresentablePool representables;
+        final boolean isDefault;
+
+        private Tenant(Config config, Member member, boolean isDefault) {
+            this.member = member;
+            this.representables = new RepresentablePool(config, member.async()::forAccessToken);
+            this.isDefault = isDefault;
+        }
+
+        /**
+         * Scopes a cache key, e.g. a token id, to this member, so that a cache shared by all
+         * members never serves one member what was fetched for another.
+         *
+         * @param key cache key
+         * @return key scoped to the member
+         */
+        String scope(String key) {
+            return member.memberId() + '\u0000' + key;
+        }
+    }
+}
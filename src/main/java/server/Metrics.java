@@ -0,0 +1,285 @@
+package server;
+
+import io.grpc.Context;
+import io.grpc.Status;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * In-process metrics for the proxy: per-method request counts, response status codes,
+ * in-flight calls and latency histograms for the gRPC service, the HTTP bridge and the
+ * upstream Token SDK calls. Rendered in the Prometheus text format.
+ */
+class Metrics {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    private static final Context.Key<CallTiming> TIMING_KEY = Context.key("call-timing");
+    private static final double[] BUCKETS_SECONDS = {
+            0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+            0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30
+    };
+
+    private final ConcurrentMap<String, LongAdder> requests = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, LongAdder> responses = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, LongAdder> inFlight = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Histogram> rpcLatency = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Histogram> bridgeLatency = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Histogram> upstreamLatency =
+            new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Histogram> loggingLatency =
+            new ConcurrentSkipListMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+    /**
+     * Records the start of a gRPC call.
+     *
+     * @param method method name
+     */
+    void rpcStarted(String method) {
+        counter(requests, method).increment();
+        counter(inFlight, method).increment();
+    }
+
+    /**
+     * Records the end of a gRPC call.
+     *
+     * @param method method name
+     * @param code response status code
+     * @param elapsedNanos time spent in the call
+     */
+    void rpcCompleted(String method, Status.Code code, long elapsedNanos) {
+        counter(inFlight, method).decrement();
+        counter(responses, method + "\u0000" + code.name()).increment();
+        histogram(rpcLatency, method).record(elapsedNanos);
+    }
+
+    /**
+     * Records the time an HTTP request spent in the bridge outside of the gRPC call, i.e.
+     * routing and JSON transcoding.
+     *
+     * @param timing timing of the request
+     * @param elapsedNanos total time spent handling the HTTP request
+     */
+    void bridgeCompleted(CallTiming timing, long elapsedNanos) {
+        String method = timing.method != null ? timing.method : "unmatched";
+        histogram(bridgeLatency, method).record(Math.max(0, elapsedNanos - timing.rpcNanos));
+    }
+
+    /**
+     * Records the latency of an upstream Token SDK call.
+     *
+     * @param call SDK call name
+     * @param elapsedNanos time until upstream answered
+     */
+    void upstreamCompleted(String call, long elapsedNanos) {
+        histogram(upstreamLatency, call).record(elapsedNanos);
+    }
+
+    /**
+     * Records the time spent in a logging call on a request thread.
+     *
+     * @param logger logger name
+     * @param elapsedNanos time spent in the logging call
+     */
+    void loggingCompleted(String logger, long elapsedNanos) {
+        histogram(loggingLatency, logger).record(elapsedNanos);
+    }
+
+    /**
+     * Registers a value that is sampled when the metrics are rendered.
+     *
+     * @param name metric name
+     * @param type Prometheus metric type, gauge or counter
+     * @param help metric description
+     * @param value value supplier
+     */
+    void register(String name, String type, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(type, help, value));
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format.
+     *
+     * @return metrics text
+     */
+    String render() {
+        StringBuilder out = new StringBuilder(4096);
+
+        header(out, "proxy_rpc_requests_total", "counter", "gRPC calls started.");
+        requests.forEach((method, count) -> out
+                .append("proxy_rpc_requests_total{method=\"").append(method).append("\"} ")
+                .append(count.sum()).append('\n'));
+
+        header(out, "proxy_rpc_responses_total", "counter", "gRPC calls completed.");
+        responses.forEach((key, count) -> {
+            int separator = key.indexOf('\u0000');
+            Status.Code code = Status.Code.valueOf(key.substring(separator + 1));
+            out.append("proxy_rpc_responses_total{method=\"")
+                    .append(key, 0, separator)
+                    .append("\",code=\"").append(code.name())
+                    .append("\",http_status=\"").append(Application.httpStatus(code))
+                    .append("\"} ").append(count.sum()).append('\n');
+        });
+
+        header(out, "proxy_rpc_in_flight", "gauge", "gRPC calls in progress.");
+        inFlight.forEach((method, count) -> out
+                .append("proxy_rpc_in_flight{method=\"").append(method).append("\"} ")
+                .append(count.sum()).append('\n'));
+
+        histograms(
+                out,
+                "proxy_rpc_duration_seconds",
+                "Time spent in gRPC calls.",
+                "method",
+                rpcLatency);
+        histograms(
+                out,
+                "proxy_bridge_duration_seconds",
+                "Time spent routing and transcoding HTTP requests, outside of the gRPC call.",
+                "method",
+                bridgeLatency);
+        histograms(
+                out,
+                "proxy_upstream_duration_seconds",
+                "Time spent waiting for Token SDK calls.",
+                "call",
+                upstreamLatency);
+        histograms(
+                out,
+                "proxy_logging_duration_seconds",
+                "Time spent in logging calls on request threads.",
+                "logger",
+                loggingLatency);
+
+        gauges.forEach((name, gauge) -> {
+            header(out, name, gauge.type, gauge.help);
+            out.append(name).append(' ').append(gauge.value.getAsLong()).append('\n');
+        });
+        return out.toString();
+    }
+
+    /**
+     * Returns the timing holder bound to the current context by the HTTP handler, if any.
+     *
+     * @return call timing, or null for calls that did not come through the bridge
+     */
+    static CallTiming currentTiming() {
+        return TIMING_KEY.get();
+    }
+
+    private static LongAdder counter(ConcurrentMap<String, LongAdder> counters, String key) {
+        LongAdder counter = counters.get(key);
+        return counter != null ? counter : counters.computeIfAbsent(key, k -> new LongAdder());
+    }
+
+    private static Histogram histogram(ConcurrentMap<String, Histogram> histograms, String key) {
+        Histogram histogram = histograms.get(key);
+        return histogram != null
+                ? histogram
+                : histograms.computeIfAbsent(key, k -> new Histogram());
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void histograms(
+            StringBuilder out,
+            String name,
+            String help,
+            String label,
+            ConcurrentMap<String, Histogram> histograms) {
+        header(out, name, "histogram", help);
+        histograms.forEach((key, histogram) -> histogram.render(out, name, label, key));
+    }
+
+    /**
+     * Per-request holder through which the gRPC call reports its method and duration to
+     * the HTTP handler that issued it.
+     */
+    static final class CallTiming {
+        private volatile String method;
+        private volatile long rpcNanos;
+
+        /**
+         * Binds this holder to a context.
+         *
+         * @param context context to derive from
+         * @return derived context
+         */
+        Context bind(Context context) {
+            return context.withValue(TIMING_KEY, this);
+        }
+
+        void rpcCompleted(String method, long elapsedNanos) {
+            this.method = method;
+            this.rpcNanos = elapsedNanos;
+        }
+    }
+
+    /**
+     * Fixed-bucket latency histogram. Recording is a bucket search and two adder increments.
+     */
+    static final class Histogram {
+        private static final long[] BUCKET_NANOS = new long[BUCKETS_SECONDS.length];
+
+        static {
+            for (int i = 0; i < BUCKETS_SECONDS.length; i++) {
+                BUCKET_NANOS[i] = (long) (BUCKETS_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS_SECONDS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket]) {
+                bucket++;
+            }
+            counts[bucket].increment();
+            sumNanos.add(nanos);
+        }
+
+        private void render(StringBuilder out, String name, String label, String key) {
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i].sum();
+                String bound = i < BUCKETS_SECONDS.length
+                        ? String.valueOf(BUCKETS_SECONDS[i])
+                        : "+Inf";
+                out.append(name).append("_bucket{").append(label).append("=\"").append(key)
+                        .append("\",le=\"").append(bound)
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum{").append(label).append("=\"").append(key)
+                    .append("\"} ").append(sumNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count{").append(label).append("=\"").append(key)
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+    }
+
+    private static final class Gauge {
+        private final String type;
+        private final String help;
+        private final LongSupplier value;
+
+        private Gauge(String type, String help, LongSupplier value) {
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package server;
+
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Records request counts, status codes, in-flight calls and latency for every gRPC call,
+ * whether it comes from the HTTP bridge or from a native gRPC client.
+ */
+class MetricsInterceptor implements ServerInterceptor {
+    private final Metrics metrics;
+
+    MetricsInterceptor(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+            ServerCall<ReqT, RespT> call,
+            Metadata metadata,
+            ServerCallHandler<ReqT, RespT> next) {
+        String fullName = call.getMethodDescriptor().getFullMethodName();
+        String method = fullName.substring(fullName.lastIndexOf('/') + 1);
+        Metrics.CallTiming timing = Metrics.currentTiming();
+        long start = System.nanoTime();
+        AtomicBoolean done = new AtomicBoolean();
+        metrics.rpcStarted(method);
+
+        ServerCall<ReqT, RespT> timedCall = new SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                complete(status.getCode());
+                super.close(status, trailers);
+            }
+
+            private void complete(Status.Code code) {
+                if (done.compareAndSet(false, true)) {
+                    long elapsed = System.nanoTime() - start;
+                    metrics.rpcCompleted(method, code, elapsed);
+                    if (timing != null) {
+                        timing.rpcCompleted(method, elapsed);
+                    }
+                }
+            }
+        };
+        ServerCall.Listener<ReqT> listener = next.startCall(timedCall, metadata);
+        return new SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onCancel() {
+                if (done.compareAndSet(false, true)) {
+                    metrics.rpcCompleted(method, Status.Code.CANCELLED, System.nanoTime() - start);
+                }
+                super.onCancel();
+            }
+        };
+    }
+}
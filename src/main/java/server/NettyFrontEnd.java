@@ -0,0 +1,392 @@
+package server;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.CONNECTION;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_LENGTH;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpHeaderValues.KEEP_ALIVE;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static io.netty.handler.codec.http2.HttpConversionUtil.ExtensionHeaderNames.STREAM_ID;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.typesafe.config.Config;
+import grpcbridge.Bridge;
+import grpcbridge.http.HttpMethod;
+import io.grpc.StatusRuntimeException;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandler;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandlerBuilder;
+import io.netty.handler.codec.http2.InboundHttp2ToHttpAdapterBuilder;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AsciiString;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HTTP front end on Netty event loops, used instead of Spark with
+ * {@code http.server = "netty"}. It speaks HTTP/1.1 with keep-alive, and HTTP/2 over
+ * cleartext (h2c), either with prior knowledge or upgraded from HTTP/1.1, with many requests
+ * multiplexed on one connection.
+ *
+ * <p>Request and response bodies are held in pooled buffers. GET /ready and GET /metrics are
+ * answered on the event loop; API requests are handed to the {@code executors.http} executor
+ * and served by the JSON bridge. A connection is closed after {@code http.netty.idleTimeoutMs}
+ * without traffic, unless one of its requests is still being served.
+ */
+final class NettyFrontEnd {
+    private static final Logger logger = LoggerFactory.getLogger(NettyFrontEnd.class);
+    private static final byte[] HTTP2_PREFACE =
+            "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(US_ASCII);
+    private static final String JSON = "application/json";
+
+    private final Config config;
+    private final Metrics metrics;
+    private final RequestLog errorLog;
+    private final BooleanSupplier ready;
+    private final Executor executor;
+    private final int maxContentLength;
+    private final int maxConcurrentStreams;
+    private final long idleTimeoutMs;
+    private final int compressionMinBytes;
+    private volatile Bridge bridge;
+
+    /**
+     * Creates a front end; it listens once {@link #start} is called.
+     *
+     * @param config application config
+     * @param metrics metrics registry
+     * @param errorLog log of the requests that fail
+     * @param ready tells whether the proxy is ready to take live requests
+     */
+    NettyFrontEnd(Config config, Metrics metrics, RequestLog errorLog, BooleanSupplier ready) {
+        this.config = config;
+        this.metrics = metrics;
+        this.errorLog = errorLog;
+        this.ready = ready;
+        this.executor = ServerExecutors.create(config, "http");
+        this.maxContentLength = config.getBytes("http.netty.maxContentLength").intValue();
+        this.maxConcurrentStreams = config.getInt("http.netty.maxConcurrentStreams");
+        this.idleTimeoutMs = config.getLong("http.netty.idleTimeoutMs");
+        this.compressionMinBytes = config.getInt("http.compressionMinBytes");
+    }
+
+    /**
+     * Starts listening on the configured port. API requests are answered with a 503 until
+     * the bridge is set with {@link #serve}.
+     *
+     * @throws InterruptedException if interrupted while binding
+     */
+    void start() throws InterruptedException {
+        EventLoopGroup boss = new NioEventLoopGroup(1);
+        EventLoopGroup workers = new NioEventLoopGroup(
+                config.getInt("http.netty.eventLoopThreads"));
+        new ServerBootstrap()
+                .group(boss, workers)
+                .channel(NioServerSocketChannel.class)
+                .option(ChannelOption.SO_BACKLOG, config.getInt("http.netty.backlog"))
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline().addLast(
+                                new IdleStateHandler(0, 0, idleTimeoutMs, MILLISECONDS),
+                                new ProtocolDetector());
+                    }
+                })
+                .bind(config.getInt("port"))
+                .sync();
+        logger.info("Netty front end listening on port {}", config.getInt("port"));
+    }
+
+    /**
+     * Starts serving API requests.
+     *
+     * @param bridge HTTP to gRPC bridge
+     */
+    void serve(Bridge bridge) {
+        this.bridge = bridge;
+    }
+
+    private void configureHttp1(ChannelPipeline pipeline) {
+        HttpServerCodec codec = new HttpServerCodec();
+        HttpServerUpgradeHandler.UpgradeCodecFactory upgrades = protocol ->
+                AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)
+                        ? new Http2ServerUpgradeCodec(http2Handler())
+                        : null;
+        pipeline.addLast(
+                codec,
+                new HttpServerUpgradeHandler(codec, upgrades, maxContentLength),
+                new Compressor(compressionMinBytes),
+                new HttpObjectAggregator(maxContentLength),
+                new RequestHandler());
+    }
+
+    private void configureHttp2(ChannelPipeline pipeline) {
+        pipeline.addLast(http2Handler(), new RequestHandler());
+    }
+
+    /**
+     * Creates the HTTP/2 connection handler, which turns each stream into a full request
+     * tagged with its stream id, and the responses tagged with it back into frames.
+     */
+    private HttpToHttp2ConnectionHandler http2Handler() {
+        Http2Connection connection = new DefaultHttp2Connection(true);
+        return new HttpToHttp2ConnectionHandlerBuilder()
+                .connection(connection)
+                .frameListener(new InboundHttp2ToHttpAdapterBuilder(connection)
+                        .maxContentLength(maxContentLength)
+                        .propagateSettings(false)
+                        .build())
+                .initialSettings(new Http2Settings().maxConcurrentStreams(maxConcurrentStreams))
+                .build();
+    }
+
+    /**
+     * Serves a request through the bridge, as {@link Application} does for Spark.
+     *
+     * @return response
+     */
+    private Reply handle(HttpMethod method, String path, String body, HttpHeaders headers) {
+        try {
+            return new Reply(
+                    HttpResponseStatus.OK,
+                    JSON,
+                    Application.handle(bridge, metrics, method, path, body, headers::get));
+        } catch (StatusRuntimeException e) {
+            int code = Application.reportStatusError(errorLog, e);
+            return new Reply(
+                    HttpResponseStatus.valueOf(code),
+                    JSON,
+                    e.getStatus().getDescription() == null
+                            ? "Unknown"
+                            : e.getStatus().getDescription());
+        } catch (Exception e) {
+            errorLog.serverError("Unhandled exception: ", e);
+            return new Reply(HttpResponseStatus.INTERNAL_SERVER_ERROR, JSON, e.toString());
+        }
+    }
+
+    /**
+     * Tells HTTP/2 connections with prior knowledge, which start with the connection
+     * preface, from HTTP/1.1 ones, and sets up the pipeline for either.
+     */
+    private final class ProtocolDetector extends ByteToMessageDecoder {
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            int length = Math.min(in.readableBytes(), HTTP2_PREFACE.length);
+            boolean prefaced = true;
+            for (int i = 0; i < length && prefaced; i++) {
+                prefaced = in.getByte(in.readerIndex() + i) == HTTP2_PREFACE[i];
+            }
+            if (prefaced && length < HTTP2_PREFACE.length) {
+                return;
+            }
+            if (prefaced) {
+                configureHttp2(ctx.pipeline());
+            } else {
+                configureHttp1(ctx.pipeline());
+            }
+            // The bytes read so far are handed to the handlers just added.
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    /**
+     * Compresses HTTP/1.1 responses whose body has at least {@code http.compressionMinBytes}
+     * bytes, and leaves smaller ones as they are.
+     */
+    private static final class Compressor extends HttpContentCompressor {
+        private final int minBytes;
+
+        private Compressor(int minBytes) {
+            this.minBytes = minBytes;
+        }
+
+        @Override
+        protected Result beginEncode(HttpResponse response, String acceptEncoding)
+                throws Exception {
+            if (response instanceof FullHttpResponse
+                    && ((FullHttpResponse) response).content().readableBytes() < minBytes) {
+                return null;
+            }
+            return super.beginEncode(response, acceptEncoding);
+        }
+    }
+
+    private final class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        // Requests of the connection handed to the executor and not answered yet.
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            String streamId = request.headers().get(STREAM_ID.text());
+            boolean keepAlive = streamId != null || HttpUtil.isKeepAlive(request);
+            String path = request.uri();
+            boolean get = io.netty.handler.codec.http.HttpMethod.GET.equals(request.method());
+            if (get && "/ready".equals(path)) {
+                respond(ctx, streamId, keepAlive, ready.getAsBoolean()
+                        ? new Reply(HttpResponseStatus.OK, "text/plain", "ready")
+                        : new Reply(
+                                HttpResponseStatus.SERVICE_UNAVAILABLE,
+                                "text/plain",
+                                "starting"));
+                return;
+            }
+            if (get && "/metrics".equals(path)) {
+                respond(ctx, streamId, keepAlive, new Reply(
+                        HttpResponseStatus.OK,
+                        Metrics.CONTENT_TYPE,
+                        metrics.render()));
+                return;
+            }
+            if (bridge == null) {
+                respond(ctx, streamId, keepAlive, new Reply(
+                        HttpResponseStatus.SERVICE_UNAVAILABLE,
+                        "text/plain",
+                        "starting"));
+                return;
+            }
+            HttpMethod method;
+            try {
+                method = HttpMethod.valueOf(request.method().name());
+            } catch (IllegalArgumentException e) {
+                respond(ctx, streamId, keepAlive, new Reply(
+                        HttpResponseStatus.METHOD_NOT_ALLOWED,
+                        "text/plain",
+                        "Method not allowed"));
+                return;
+            }
+
+            // The body is decoded here, as the buffer is released when this returns.
+            String body = request.content().toString(UTF_8);
+            HttpHeaders headers = request.headers();
+            if (streamId == null) {
+                // HTTP/1.1 responses go out in request order: read the next request once
+                // this one is answered.
+                ctx.channel().config().setAutoRead(false);
+            }
+            outstanding.incrementAndGet();
+            try {
+                executor.execute(() -> {
+                    Reply reply = handle(method, path, body, headers);
+                    outstanding.decrementAndGet();
+                    respond(ctx, streamId, keepAlive, reply);
+                });
+            } catch (RejectedExecutionException e) {
+                outstanding.decrementAndGet();
+                respond(ctx, streamId, keepAlive, new Reply(
+                        HttpResponseStatus.SERVICE_UNAVAILABLE,
+                        "text/plain",
+                        "Too many requests in progress"));
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object event) throws Exception {
+            if (event instanceof HttpServerUpgradeHandler.UpgradeEvent) {
+                // The connection is HTTP/2 from now on, and the upgrade request is its
+                // stream 1. Compression and aggregation of HTTP/1.1 messages no longer apply.
+                ctx.pipeline().remove(Compressor.class);
+                ctx.pipeline().remove(HttpObjectAggregator.class);
+                FullHttpRequest request =
+                        ((HttpServerUpgradeHandler.UpgradeEvent) event).upgradeRequest();
+                request.headers().set(STREAM_ID.text(), 1);
+                channelRead(ctx, request.retain());
+            } else if (event instanceof IdleStateEvent) {
+                // A request served for longer than the timeout leaves the connection quiet
+                // without it being idle; the timer starts over once it is answered.
+                if (outstanding.get() == 0) {
+                    ctx.close();
+                }
+            } else {
+                super.userEventTriggered(ctx, event);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.debug("Closing connection: {}", cause.toString());
+            ctx.close();
+        }
+
+        private void respond(
+                ChannelHandlerContext ctx,
+                String streamId,
+                boolean keepAlive,
+                Reply reply) {
+            FullHttpResponse response = new DefaultFullHttpResponse(
+                    HTTP_1_1,
+                    reply.status,
+                    ByteBufUtil.writeUtf8(ctx.alloc(), reply.body));
+            response.headers()
+                    .set(CONTENT_TYPE, reply.contentType)
+                    .setInt(CONTENT_LENGTH, response.content().readableBytes());
+            if (streamId != null) {
+                response.headers().set(STREAM_ID.text(), streamId);
+                ctx.writeAndFlush(response);
+                return;
+            }
+            if (keepAlive) {
+                response.headers().set(CONNECTION, KEEP_ALIVE);
+            }
+            ChannelFuture written = ctx.writeAndFlush(response);
+            if (keepAlive) {
+                ctx.channel().config().setAutoRead(true);
+            } else {
+                written.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    }
+
+    private static final class Reply {
+        private final HttpResponseStatus status;
+        private final String contentType;
+        private final String body;
+
+        private Reply(HttpResponseStatus status, String contentType, String body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package server;
+
+import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
+import static io.grpc.Status.INVALID_ARGUMENT;
+import static io.grpc.Status.NOT_FOUND;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.AnnotationsProto;
+import com.google.api.HttpRule;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Descriptors.ServiceDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientInterceptors;
+import io.grpc.KnownLength;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.MetadataUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import spark.Request;
+import spark.Response;
+
+/**
+ * Serves the HTTP endpoints declared in the proto file to clients that send or accept
+ * {@value #CONTENT_TYPE}. Protobuf bodies are passed to the gRPC service as bytes, without
+ * JSON transcoding: a request without path or query parameters is forwarded as is, and the
+ * response is serialized once, straight into the array written to the client. Requests go
+ * through an in-process channel, with the HTTP headers sent as call metadata.
+ */
+final class ProtobufBridge {
+    static final String CONTENT_TYPE = "application/x-protobuf";
+
+    private static final String JSON_CONTENT_TYPE = "application/json";
+    // HTTP headers that are not passed on as metadata, as gRPC sets or reserves them.
+    private static final Set<String> RESERVED_HEADERS = ImmutableSet.of(
+            "accept",
+            "accept-encoding",
+            "connection",
+            "content-length",
+            "content-type",
+            "host",
+            "keep-alive",
+            "te",
+            "transfer-encoding",
+            "user-agent");
+    private static final io.grpc.MethodDescriptor.Marshaller<byte[]> BYTES =
+            new io.grpc.MethodDescriptor.Marshaller<byte[]>() {
+                @Override
+                public InputStream stream(byte[] value) {
+                    return new ByteArrayInputStream(value);
+                }
+
+                @Override
+                public byte[] parse(InputStream stream) {
+                    try {
+                        if (stream instanceof KnownLength) {
+                            // Serializes the message directly into an array of the right size.
+                            byte[] bytes = new byte[stream.available()];
+                            ByteStreams.readFully(stream, bytes);
+                            return bytes;
+                        }
+                        return ByteStreams.toByteArray(stream);
+                    } catch (IOException e) {
+                        throw Status.INTERNAL.withCause(e).asRuntimeException();
+                    }
+                }
+            };
+
+    private final Channel channel;
+    private final List<Route> routes = new ArrayList<>();
+    private final JsonFormat.Parser jsonParser = JsonFormat.parser();
+    private final JsonFormat.Printer jsonPrinter = JsonFormat.printer();
+
+    /**
+     * Creates a bridge for the HTTP endpoints of all the services in a proto file.
+     *
+     * @param channel channel to the gRPC services
+     * @param file proto file with google.api.http options on the methods
+     */
+    ProtobufBridge(Channel channel, FileDescriptor file) {
+        this.channel = channel;
+        for (ServiceDescriptor service : file.getServices()) {
+            for (MethodDescriptor method : service.getMethods()) {
+                if (method.getOptions().hasExtension(AnnotationsProto.http)) {
+                    routes.add(new Route(
+                            method,
+                            method.getOptions().getExtension(AnnotationsProto.http)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether a request should be served in protobuf rather than JSON.
+     *
+     * @param req HTTP request
+     * @return true if the request has a protobuf body or accepts a protobuf response
+     */
+    static boolean accepts(Request req) {
+        return isProtobuf(req.contentType()) || isProtobuf(req.headers("Accept"));
+    }
+
+    /**
+     * Checks whether the response to a request is sent in protobuf.
+     *
+     * @param req HTTP request
+     * @return true if the client accepts protobuf, or sent protobuf and does not ask for JSON
+     */
+    static boolean respondsWithProtobuf(Request req) {
+        String accept = req.headers("Accept");
+        return isProtobuf(accept) || (isProtobuf(req.contentType()) && !isJson(accept));
+    }
+
+    /**
+     * Serves a request.
+     *
+     * @param req HTTP request
+     * @param res HTTP response
+     * @return response body, bytes for protobuf and a string for JSON
+     */
+    Object handle(Request req, Response res) {
+        String[] segments = split(req.pathInfo());
+        for (Route route : routes) {
+            Map<String, String> variables = route.match(req.requestMethod(), segments);
+            if (variables != null) {
+                return call(route, variables, req, res);
+            }
+        }
+        throw NOT_FOUND
+                .withDescription("No endpoint for " + req.requestMethod() + " " + req.pathInfo())
+                .asRuntimeException();
+    }
+
+    private Object call(
+            Route route,
+            Map<String, String> variables,
+            Request req,
+            Response res) {
+        route.queryFields.forEach((param, field) -> {
+            String value = req.queryParams(param);
+            if (value != null) {
+                variables.put(field, value);
+            }
+        });
+
+        byte[] request = requestBytes(route, variables, req);
+        AtomicReference<Metadata> trailers = new AtomicReference<>();
+        // The in-process call runs outside the request context, so the bridge reports its
+        // duration to the HTTP handler itself.
+        Metrics.CallTiming timing = Metrics.currentTiming();
+        long start = System.nanoTime();
+        byte[] response;
+        try {
+            response = ClientCalls.blockingUnaryCall(
+                    ClientInterceptors.intercept(
+                            channel,
+                            MetadataUtils.newAttachHeadersInterceptor(metadata(req)),
+                            MetadataUtils.newCaptureMetadataInterceptor(
+                                    new AtomicReference<>(),
+                                    trailers)),
+                    route.method,
+                    CallOptions.DEFAULT,
+                    request);
+        } finally {
+            if (timing != null) {
+                timing.rpcCompleted(route.name, System.nanoTime() - start);
+            }
+        }
+
+        // The in-process call does not share the request context, so cacheability comes back
+        // in a trailer.
+        ResponseCache.Slot slot = ResponseCache.currentSlot();
+        String cacheUntil = trailers.get() == null
+                ? null
+                : trailers.get().get(ResponseCache.CACHE_UNTIL);
+        if (slot != null && cacheUntil != null) {
+            slot.cacheUntil(Long.parseLong(cacheUntil));
+        }
+
+        boolean protobufResponse = respondsWithProtobuf(req);
+        EntityTag tag = EntityTag.current();
+        if (tag != null && tag.update(response, protobufResponse ? "protobuf" : "json")) {
+            throw EntityTag.NOT_MODIFIED.asRuntimeException();
+        }
+        if (protobufResponse) {
+            res.type(CONTENT_TYPE);
+            return response;
+        }
+        res.type(JSON_CONTENT_TYPE);
+        try {
+            return jsonPrinter.print(DynamicMessage.parseFrom(route.output, response));
+        } catch (InvalidProtocolBufferException e) {
+            throw Status.INTERNAL.withCause(e).asRuntimeException();
+        }
+    }
+
+    private byte[] requestBytes(Route route, Map<String, String> variables, Request req) {
+        byte[] body = req.bodyAsBytes();
+        boolean hasBody = body != null && body.length > 0;
+        boolean protobufBody = isProtobuf(req.contentType());
+        if (variables.isEmpty() && (protobufBody || !hasBody)) {
+            return hasBody ? body : new byte[0];
+        }
+
+        DynamicMessage.Builder builder = DynamicMessage.newBuilder(route.input);
+        try {
+            if (hasBody && protobufBody) {
+                builder.mergeFrom(body);
+            } else if (hasBody) {
+                jsonParser.merge(new String(body, UTF_8), builder);
+            }
+        } catch (InvalidProtocolBufferException e) {
+            throw INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException();
+        }
+        variables.forEach((field, value) -> setField(builder, field, value));
+        return builder.build().toByteArray();
+    }
+
+    private static void setField(DynamicMessage.Builder builder, String name, String value) {
+        FieldDescriptor field = builder.getDescriptorForType().findFieldByName(name);
+        try {
+            switch (field.getJavaType()) {
+                case STRING:
+                    builder.setField(field, value);
+                    break;
+                case INT:
+                    builder.setField(field, Integer.parseInt(value));
+                    break;
+                case LONG:
+                    builder.setField(field, Long.parseLong(value));
+                    break;
+                case DOUBLE:
+                    builder.setField(field, Double.parseDouble(value));
+                    break;
+                case FLOAT:
+                    builder.setField(field, Float.parseFloat(value));
+                    break;
+                case BOOLEAN:
+                    builder.setField(field, Boolean.parseBoolean(value));
+                    break;
+                case ENUM:
+                    if (field.getEnumType().findValueByName(value) == null) {
+                        throw new IllegalArgumentException(value);
+                    }
+                    builder.setField(field, field.getEnumType().findValueByName(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException(value);
+            }
+        } catch (IllegalArgumentException e) {
+            throw INVALID_ARGUMENT
+                    .withDescription("Invalid value for " + name + ": " + value)
+                    .asRuntimeException();
+        }
+    }
+
+    /**
+     * Returns the headers of a request that are passed on to the service as call metadata.
+     *
+     * @param req HTTP request
+     * @return call metadata
+     */
+    static Metadata metadata(Request req) {
+        Metadata metadata = new Metadata();
+        for (String name : req.headers()) {
+            String key = name.toLowerCase();
+            if (RESERVED_HEADERS.contains(key) || key.startsWith("grpc-")) {
+                continue;
+            }
+            try {
+                metadata.put(Metadata.Key.of(key, ASCII_STRING_MARSHALLER), req.headers(name));
+            } catch (IllegalArgumentException e) {
+                // Not a valid metadata key or value; the service does not read it either.
+            }
+        }
+        return metadata;
+    }
+
+    private static boolean isProtobuf(String header) {
+        return header != null && header.contains(CONTENT_TYPE);
+    }
+
+    private static boolean isJson(String header) {
+        return header != null && header.contains(JSON_CONTENT_TYPE);
+    }
+
+    private static String[] split(String path) {
+        return path.startsWith("/") ? path.substring(1).split("/", -1) : path.split("/", -1);
+    }
+
+    /**
+     * An HTTP endpoint, parsed from a google.api.http option such as
+     * {@code get: "/accounts/{account_id}/transactions?offset={offset}&limit={limit}"}.
+     */
+    private static final class Route {
+        private final String httpMethod;
+        private final String[] segments;
+        private final Map<String, String> queryFields = new HashMap<>();
+        private final String name;
+        private final io.grpc.MethodDescriptor<byte[], byte[]> method;
+        private final Descriptor input;
+        private final Descriptor output;
+
+        private Route(MethodDescriptor method, HttpRule rule) {
+            String template;
+            switch (rule.getPatternCase()) {
+                case GET:
+                    httpMethod = "GET";
+                    template = rule.getGet();
+                    break;
+                case PUT:
+                    httpMethod = "PUT";
+                    template = rule.getPut();
+                    break;
+                case POST:
+                    httpMethod = "POST";
+                    template = rule.getPost();
+                    break;
+                case DELETE:
+                    httpMethod = "DELETE";
+                    template = rule.getDelete();
+                    break;
+                case PATCH:
+                    httpMethod = "PATCH";
+                    template = rule.getPatch();
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                            "Unsupported HTTP rule on " + method.getFullName());
+            }
+
+            int query = template.indexOf('?');
+            segments = split(query < 0 ? template : template.substring(0, query));
+            if (query >= 0) {
+                for (String param : template.substring(query + 1).split("&")) {
+                    int separator = param.indexOf('=');
+                    String field = variable(param.substring(separator + 1));
+                    if (field != null) {
+                        queryFields.put(param.substring(0, separator), field);
+                    }
+                }
+            }
+
+            this.input = method.getInputType();
+            this.output = method.getOutputType();
+            this.name = method.getName();
+            this.method = io.grpc.MethodDescriptor.<byte[], byte[]>newBuilder()
+                    .setType(io.grpc.MethodDescriptor.MethodType.UNARY)
+                    .setFullMethodName(io.grpc.MethodDescriptor.generateFullMethodName(
+                            method.getService().getFullName(),
+                            method.getName()))
+                    .setRequestMarshaller(BYTES)
+                    .setResponseMarshaller(BYTES)
+                    .build();
+        }
+
+        /**
+         * Matches a request against the route.
+         *
+         * @param requestMethod HTTP method
+         * @param requestSegments path segments
+         * @return values of the path variables by field name, or null if there is no match
+         */
+        private Map<String, String> match(String requestMethod, String[] requestSegments) {
+            if (!httpMethod.equals(requestMethod) || segments.length != requestSegments.length) {
+                return null;
+            }
+            Map<String, String> variables = new HashMap<>();
+            for (int i = 0; i < segments.length; i++) {
+                String field = variable(segments[i]);
+                if (field != null) {
+                    variables.put(field, requestSegments[i]);
+                } else if (!segments[i].equals(requestSegments[i])) {
+                    return null;
+                }
+            }
+            return variables;
+        }
+
+        private static String variable(String segment) {
+            return segment.startsWith("{") && segment.endsWith("}")
+                    ? segment.substring(1, segment.length() - 1)
+                    : null;
+        }
+    }
+}
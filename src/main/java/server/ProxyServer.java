@@ -4,10 +4,10 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static io.grpc.Status.PERMISSION_DENIED;
 import static io.token.TokenRequest.TokenRequestOptions.BANK_ID;
 import static io.token.TokenRequest.TokenRequestOptions.REDIRECT_URL;
-import static io.token.proto.common.alias.AliasProtos.Alias.Type.DOMAIN;
 import static io.token.proto.common.security.SecurityProtos.Key.Level.STANDARD;
-import static io.token.proto.common.transaction.TransactionProtos.Transaction;
-import static io.token.rpc.util.Converters.execute;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static server.Async.respond;
 import static server.proto.Proxy.GetAccountRequest;
 import static server.proto.Proxy.GetAccountResponse;
 import static server.proto.Proxy.GetAccountsRequest;
@@ -23,47 +23,66 @@ import static server.proto.Proxy.RequestAccessTokenResponse;
 import static server.proto.Proxy.RequestTransferTokenRequest;
 import static server.proto.Proxy.RequestTransferTokenResponse;
 
-import com.google.protobuf.TextFormat;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.typesafe.config.Config;
 import http.Headers;
-import io.grpc.StatusRuntimeException;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import io.token.AccessTokenBuilder;
-import io.token.Account;
+import io.token.AccountAsync;
 import io.token.Member;
-import io.token.Representable;
+import io.token.MemberAsync;
 import io.token.TokenIO;
 import io.token.TokenIO.TokenCluster;
 import io.token.TokenRequest;
-import io.token.TokenRequestCallback;
 import io.token.TransferTokenBuilder;
 import io.token.proto.PagedList;
 import io.token.proto.common.account.AccountProtos;
-import io.token.proto.common.alias.AliasProtos.Alias;
-import io.token.proto.common.transaction.TransactionProtos.Balance;
+import io.token.proto.common.token.TokenProtos.Token;
+import io.token.proto.common.transaction.TransactionProtos.Transaction;
+import io.token.proto.common.transfer.TransferProtos.Transfer;
 import io.token.proto.common.transferinstructions.TransferInstructionsProtos.TransferEndpoint;
 import io.token.security.UnsecuredFileSystemKeyStore;
+import server.proto.Proxy.AccountSummary;
+import server.proto.Proxy.BalanceResult;
 import server.proto.Proxy.CreateTransferRequest;
 import server.proto.Proxy.CreateTransferResponse;
+import server.proto.Proxy.CreateTransfersRequest;
+import server.proto.Proxy.CreateTransfersResponse;
+import server.proto.Proxy.ErrorStatus;
 import server.proto.Proxy.GenerateTokenRequestUrlRequest;
 import server.proto.Proxy.GenerateTokenRequestUrlResponse;
+import server.proto.Proxy.GetAccountSummariesRequest;
+import server.proto.Proxy.GetAccountSummariesResponse;
+import server.proto.Proxy.GetBalancesRequest;
+import server.proto.Proxy.GetBalancesResponse;
 import server.proto.Proxy.GetMemberRequest;
 import server.proto.Proxy.GetMemberResponse;
 import server.proto.Proxy.GetTokenRequest;
 import server.proto.Proxy.GetTokenResponse;
+import server.proto.Proxy.GetTransferStatusRequest;
+import server.proto.Proxy.GetTransferStatusResponse;
 import server.proto.Proxy.ParseTokenRequestCallbackRequest;
 import server.proto.Proxy.ParseTokenRequestCallbackResponse;
+import server.proto.Proxy.StreamTransactionsRequest;
+import server.proto.Proxy.StreamTransactionsResponse;
 import server.proto.ProxyServiceGrpc.ProxyServiceImplBase;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
@@ -74,27 +93,174 @@ import org.slf4j.LoggerFactory;
  */
 public class ProxyServer extends ProxyServiceImplBase {
     private static final Logger logger = LoggerFactory.getLogger(ProxyServer.class);
-    private Member member;
     private Config config;
     private TokenIO tokenIO;
-
-    ProxyServer(Config config) throws IOException {
+    private Upstream upstream;
+    private RequestLog requestLog;
+    private TokenCache tokenCache;
+    private ResponseCache responseCache;
+    private MemberPool members;
+    private ReadThroughCache<GetAccountsResponse> accountsCache;
+    private ReadThroughCache<GetAccountResponse> accountCache;
+    private ReadThroughCache<GetBalanceResponse> balanceCache;
+    private ScheduledExecutorService scheduler;
+    private FanOut fanOut;
+    private FanOut transferFanOut;
+    private int maxTransferBatchSize;
+    private SingleFlight<String, Transfer> redemptions;
+    private Cache<String, Transfer> transferResults;
+    private TransactionStore transactionStore;
+    private TransferQueue transferQueue;
+    private CallbackVerifier callbackVerifier;
+
+    ProxyServer(Config config, Metrics metrics) throws IOException {
         this.config = config;
         tokenIO = initializeSdk();
-        member = initializeMember(tokenIO);
+        String domain = config.getString("domain").toLowerCase();
+        initializeComponents(metrics, new MemberBootstrap(config, tokenIO, domain).member());
+    }
+
+    /**
+     * Creates a server for a member that is already logged in, e.g. a stubbed one.
+     *
+     * @param config configuration
+     * @param metrics metrics registry
+     * @param tokenIO Token SDK client
+     * @param member logged-in member
+     */
+    ProxyServer(Config config, Metrics metrics, TokenIO tokenIO, Member member) {
+        this.config = config;
+        this.tokenIO = tokenIO;
+        initializeComponents(metrics, member);
+    }
+
+    private void initializeComponents(Metrics metrics, Member member) {
+        upstream = new Upstream(config, metrics);
+        requestLog = new RequestLog(logger, config, metrics);
+        tokenCache = new TokenCache(config);
+        metrics.register(
+                "proxy_token_cache_hits_total",
+                "counter",
+                "Tokens served from the token cache.",
+                tokenCache::hitCount);
+        metrics.register(
+                "proxy_token_cache_misses_total",
+                "counter",
+                "Tokens fetched upstream on a token cache miss.",
+                tokenCache::missCount);
+        metrics.register(
+                "proxy_token_cache_size",
+                "gauge",
+                "Tokens held in the token cache.",
+                tokenCache::size);
+        responseCache = new ResponseCache(config);
+        metrics.register(
+                "proxy_response_cache_hits_total",
+                "counter",
+                "Responses served from the response cache.",
+                responseCache::hitCount);
+        metrics.register(
+                "proxy_response_cache_misses_total",
+                "counter",
+                "GET requests not found in the response cache.",
+                responseCache::missCount);
+        metrics.register(
+                "proxy_response_cache_size",
+                "gauge",
+                "Resources held in the response cache.",
+                responseCache::size);
+        members = new MemberPool(config, tokenIO, member);
+        metrics.register(
+                "proxy_member_pool_size",
+                "gauge",
+                "Members logged in to serve requests for.",
+                members::size);
+        long readCacheSize = config.getLong("readCache.maxSize");
+        accountsCache = new ReadThroughCache<>(
+                readCacheSize,
+                config.getLong("readCache.accountsTtlMs"));
+        accountCache = new ReadThroughCache<>(
+                readCacheSize,
+                config.getLong("readCache.accountTtlMs"));
+        balanceCache = new ReadThroughCache<>(
+                readCacheSize,
+                config.getLong("readCache.balanceTtlMs"));
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("proxy-scheduler-%d")
+                .setDaemon(true)
+                .build());
+        fanOut = new FanOut(
+                config.getInt("batch.concurrency"),
+                config.getLong("batch.deadlineMs"),
+                scheduler);
+        maxTransferBatchSize = config.getInt("transferBatch.maxSize");
+        transferFanOut = new FanOut(
+                config.getInt("transferBatch.concurrency"),
+                config.getLong("transferBatch.deadlineMs"),
+                scheduler);
+        redemptions = new SingleFlight<>();
+        transferResults = CacheBuilder.newBuilder()
+                .maximumSize(config.getLong("transferResults.maxSize"))
+                .expireAfterWrite(config.getLong("transferResults.ttlMs"), MILLISECONDS)
+                .build();
+        callbackVerifier = new CallbackVerifier(
+                config,
+                new KeyDirectory(
+                        config,
+                        memberId -> upstream.call(
+                                "getMember",
+                                () -> tokenIO.async().getMember(memberId)),
+                        scheduler),
+                metrics);
+        if (config.getBoolean("transferQueue.enabled")) {
+            try {
+                transferQueue = new TransferQueue(
+                        config,
+                        tokenId -> redeem(members.defaultTenant(), tokenId),
+                        tokenId -> findTransfer(members.defaultTenant(), tokenId),
+                        scheduler);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            metrics.register(
+                    "proxy_transfer_queue_pending",
+                    "gauge",
+                    "Asynchronous transfers submitted and not redeemed yet.",
+                    transferQueue::pendingCount);
+        }
+        if (config.getBoolean("transactionStore.enabled")) {
+            try {
+                transactionStore = new TransactionStore(
+                        config,
+                        member.memberId(),
+                        (tokenId, accountId, offset, limit) -> members.defaultTenant()
+                                .representables
+                                .call(tokenId, representable -> upstream.call(
+                                        "getTransactions",
+                                        () -> representable.getTransactions(
+                                                accountId,
+                                                offset,
+                                                limit,
+                                                STANDARD))));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 
     @Override
     public void getMember(
             GetMemberRequest request,
             StreamObserver<GetMemberResponse> responseObserver) {
-        execute(responseObserver, () -> {
-            logger.info("Get member: ({})", TextFormat.shortDebugString(request));
-
-            return GetMemberResponse.newBuilder()
-                    .setMemberId(member.memberId())
-                    .addAllAliases(member.aliases())
-                    .build();
+        respond(responseObserver, () -> {
+            requestLog.request("GetMember", "Get member: ({})", request);
+
+            Member member = members.current().member;
+            return upstream.call("aliases", () -> member.async().aliases())
+                    .thenApply(aliases -> GetMemberResponse.newBuilder()
+                            .setMemberId(member.memberId())
+                            .addAllAliases(aliases)
+                            .build());
         });
     }
 
@@ -102,12 +268,13 @@ public class ProxyServer extends ProxyServiceImplBase {
     public void getToken(
             GetTokenRequest request,
             StreamObserver<GetTokenResponse> responseObserver) {
-        execute(responseObserver, () -> {
-            logger.info("Get token: ({})", TextFormat.shortDebugString(request));
+        respond(responseObserver, () -> {
+            requestLog.request("GetToken", "Get token: ({})", request);
 
-            return GetTokenResponse.newBuilder()
-                    .setToken(member.getToken(request.getTokenId()))
-                    .build();
+            return getCachedToken(members.current(), request.getTokenId())
+                    .thenApply(token -> GetTokenResponse.newBuilder()
+                            .setToken(token)
+                            .build());
         });
     }
 
@@ -115,12 +282,46 @@ public class ProxyServer extends ProxyServiceImplBase {
     public void createTransfer(
             CreateTransferRequest request,
             StreamObserver<CreateTransferResponse> responseObserver) {
-        execute(responseObserver, () -> {
-            logger.info("Create transfer: ({})", TextFormat.shortDebugString(request));
+        respond(responseObserver, () -> {
+            requestLog.request("CreateTransfer", "Create transfer: ({})", request);
+
+            MemberPool.Tenant tenant = members.current();
+            if (request.getAsync() || prefersAsync()) {
+                if (transferQueue == null || !tenant.isDefault) {
+                    throw Status.FAILED_PRECONDITION
+                            .withDescription("Asynchronous transfers are not enabled")
+                            .asRuntimeException();
+                }
+                checkArgument(!request.getTokenId().isEmpty(), "Token id not set!");
+                return transferQueue
+                        .submit(request.getTokenId(), request.getCallbackUrl())
+                        .thenApply(submissionId -> CreateTransferResponse.newBuilder()
+                                .setSubmissionId(submissionId)
+                                .build());
+            }
+            return redeem(tenant, request.getTokenId())
+                    .thenApply(transfer -> CreateTransferResponse.newBuilder()
+                            .setTransfer(transfer)
+                            .build());
+        });
+    }
 
-            return CreateTransferResponse.newBuilder()
-                    .setTransfer(member.redeemToken(member.getToken(request.getTokenId())))
-                    .build();
+    @Override
+    public void getTransferStatus(
+            GetTransferStatusRequest request,
+            StreamObserver<GetTransferStatusResponse> responseObserver) {
+        respond(responseObserver, () -> {
+            requestLog.request("GetTransferStatus", "Get transfer status: ({})", request);
+
+            GetTransferStatusResponse status = transferQueue == null || !members.current().isDefault
+                    ? null
+                    : transferQueue.status(request.getSubmissionId());
+            if (status == null) {
+                throw Status.NOT_FOUND
+                        .withDescription("Unknown submission: " + request.getSubmissionId())
+                        .asRuntimeException();
+            }
+            return completedFuture(status);
         });
     }
 
@@ -128,32 +329,38 @@ public class ProxyServer extends ProxyServiceImplBase {
     public void requestTransferToken(
             RequestTransferTokenRequest request,
             StreamObserver<RequestTransferTokenResponse> responseObserver) {
-        execute(responseObserver, () -> {
-            logger.info("Store token request: ({})", TextFormat.shortDebugString(request));
-
-            TransferTokenBuilder transferTokenBuilder = new TransferTokenBuilder(
-                    request.getAmount(),
-                    request.getCurrency())
-                    .setToAlias(member.firstAlias())
-                    .setToMemberId(member.memberId())
-                    .setRefId(request.getRefId())
-                    .setDescription(request.getDescription())
-                    .addDestination(TransferEndpoint.newBuilder()
-                            .setAccount(request.getDestination())
+        respond(responseObserver, () -> {
+            requestLog.request("RequestTransferToken", "Store token request: ({})", request);
+
+            Member member = members.current().member;
+            MemberAsync memberAsync = member.async();
+            return upstream.call("firstAlias", memberAsync::firstAlias)
+                    .thenCompose(alias -> {
+                        TransferTokenBuilder transferTokenBuilder = new TransferTokenBuilder(
+                                request.getAmount(),
+                                request.getCurrency())
+                                .setToAlias(alias)
+                                .setToMemberId(member.memberId())
+                                .setRefId(request.getRefId())
+                                .setDescription(request.getDescription())
+                                .addDestination(TransferEndpoint.newBuilder()
+                                        .setAccount(request.getDestination())
+                                        .build());
+
+                        TokenRequest tokenRequest = TokenRequest
+                                .create(transferTokenBuilder)
+                                .setOption(REDIRECT_URL, request.getCallbackUrl());
+                        if (!request.getBankId().isEmpty()) {
+                            tokenRequest.setOption(BANK_ID, request.getBankId());
+                        }
+
+                        return upstream.call(
+                                "storeTokenRequest",
+                                () -> memberAsync.storeTokenRequest(tokenRequest));
+                    })
+                    .thenApply(tokenRequestId -> RequestTransferTokenResponse.newBuilder()
+                            .setTokenRequestId(tokenRequestId)
                             .build());
-
-            TokenRequest tokenRequest = TokenRequest
-                    .create(transferTokenBuilder)
-                    .setOption(REDIRECT_URL, request.getCallbackUrl());
-            if (!request.getBankId().isEmpty()) {
-                tokenRequest.setOption(BANK_ID, request.getBankId());
-            }
-
-            String tokenRequestId = member.storeTokenRequest(tokenRequest);
-
-            return RequestTransferTokenResponse.newBuilder()
-                    .setTokenRequestId(tokenRequestId)
-                    .build();
         });
     }
 
@@ -161,26 +368,31 @@ public class ProxyServer extends ProxyServiceImplBase {
     public void requestAccessToken(
             RequestAccessTokenRequest request,
             StreamObserver<RequestAccessTokenResponse> responseObserver) {
-        execute(responseObserver, () -> {
-            logger.info("Request access: ({})", TextFormat.shortDebugString(request));
-
-            AccessTokenBuilder accessTokenBuilder = AccessTokenBuilder.create(member.firstAlias())
-                    .forAllAccounts()
-                    .forAllBalances()
-                    .forAllTransactions();
-
-            TokenRequest tokenRequest = TokenRequest
-                    .create(accessTokenBuilder)
-                    .setOption(REDIRECT_URL, request.getCallbackUrl());
-            if (!request.getBankId().isEmpty()) {
-                tokenRequest.setOption(BANK_ID, request.getBankId());
-            }
-
-            String tokenRequestId = member.storeTokenRequest(tokenRequest);
-
-            return RequestAccessTokenResponse.newBuilder()
-                    .setTokenRequestId(tokenRequestId)
-                    .build();
+        respond(responseObserver, () -> {
+            requestLog.request("RequestAccessToken", "Request access: ({})", request);
+
+            MemberAsync memberAsync = members.current().member.async();
+            return upstream.call("firstAlias", memberAsync::firstAlias)
+                    .thenCompose(alias -> {
+                        AccessTokenBuilder accessTokenBuilder = AccessTokenBuilder.create(alias)
+                                .forAllAccounts()
+                                .forAllBalances()
+                                .forAllTransactions();
+
+                        TokenRequest tokenRequest = TokenRequest
+                                .create(accessTokenBuilder)
+                                .setOption(REDIRECT_URL, request.getCallbackUrl());
+                        if (!request.getBankId().isEmpty()) {
+                            tokenRequest.setOption(BANK_ID, request.getBankId());
+                        }
+
+                        return upstream.call(
+                                "storeTokenRequest",
+                                () -> memberAsync.storeTokenRequest(tokenRequest));
+                    })
+                    .thenApply(tokenRequestId -> RequestAccessTokenResponse.newBuilder()
+                            .setTokenRequestId(tokenRequestId)
+                            .build());
         });
     }
 
@@ -188,16 +400,20 @@ public class ProxyServer extends ProxyServiceImplBase {
     public void generateTokenRequestUrl(
             GenerateTokenRequestUrlRequest request,
             StreamObserver<GenerateTokenRequestUrlResponse> responseObserver) {
-        execute(responseObserver, () -> {
-            logger.info("Generate token request url: ({})", TextFormat.shortDebugString(request));
-
-            String url = tokenIO.generateTokenRequestUrl(
-                    request.getRequestId(),
-                    request.getState(),
-                    request.getCsrfToken());
-            return GenerateTokenRequestUrlResponse.newBuilder()
-                    .setUrl(url)
-                    .build();
+        respond(responseObserver, () -> {
+            requestLog.request(
+                    "GenerateTokenRequestUrl",
+                    "Generate token request url: ({})",
+                    request);
+
+            return upstream
+                    .call("generateTokenRequestUrl", () -> tokenIO.async().generateTokenRequestUrl(
+                            request.getRequestId(),
+                            request.getState(),
+                            request.getCsrfToken()))
+                    .thenApply(url -> GenerateTokenRequestUrlResponse.newBuilder()
+                            .setUrl(url)
+                            .build());
         });
     }
 
@@ -205,18 +421,27 @@ public class ProxyServer extends ProxyServiceImplBase {
     public void parseTokenRequestCallback(
             ParseTokenRequestCallbackRequest request,
             StreamObserver<ParseTokenRequestCallbackResponse> responseObserver) {
-        execute(responseObserver, () -> {
-            logger.info(
+        respond(responseObserver, () -> {
+            requestLog.request(
+                    "ParseTokenRequestCallback",
                     "Parse token request call back: ({})",
-                    TextFormat.shortDebugString(request));
-
-            TokenRequestCallback callback = tokenIO.parseTokenRequestCallbackUrl(
-                    request.getUrl(),
-                    request.getCsrfToken());
-            return ParseTokenRequestCallbackResponse.newBuilder()
-                    .setTokenId(callback.getTokenId())
-                    .setState(callback.getState())
-                    .build();
+                    request);
+
+            // Callbacks are verified with cached keys when possible, and by the SDK otherwise.
+            return callbackVerifier
+                    .verify(request.getUrl(), request.getCsrfToken())
+                    .thenCompose(verified -> verified != null
+                            ? completedFuture(verified)
+                            : upstream
+                                    .call("parseTokenRequestCallbackUrl", () -> tokenIO.async()
+                                            .parseTokenRequestCallbackUrl(
+                                                    request.getUrl(),
+                                                    request.getCsrfToken()))
+                                    .thenApply(callback -> ParseTokenRequestCallbackResponse
+                                            .newBuilder()
+                                            .setTokenId(callback.getTokenId())
+                                            .setState(callback.getState())
+                                            .build()));
         });
     }
 
@@ -224,22 +449,15 @@ public class ProxyServer extends ProxyServiceImplBase {
     public void getAccounts(
             GetAccountsRequest request,
             StreamObserver<GetAccountsResponse> responseObserver) {
-        execute(responseObserver, () -> {
+        respond(responseObserver, () -> {
             String tokenId = getTokenId();
-            logger.info(
+            requestLog.request(
+                    "GetAccounts",
                     "Get accounts: token_id: {} ({})",
                     tokenId,
-                    TextFormat.shortDebugString(request));
+                    request);
 
-            Representable representable = member.forAccessToken(tokenId);
-            List<AccountProtos.Account> accounts = representable.getAccounts()
-                    .stream()
-                    .map(Account::toProto)
-                    .collect(Collectors.toList());
-
-            return GetAccountsResponse.newBuilder()
-                    .addAllAccounts(accounts)
-                    .build();
+            return fetchAccounts(members.current(), tokenId, bypassCache());
         });
     }
 
@@ -247,19 +465,19 @@ public class ProxyServer extends ProxyServiceImplBase {
     public void getAccount(
             GetAccountRequest request,
             StreamObserver<GetAccountResponse> responseObserver) {
-        execute(responseObserver, () -> {
+        respond(responseObserver, () -> {
             String tokenId = getTokenId();
-            logger.info(
+            requestLog.request(
+                    "GetAccount",
                     "Get account: token_id: {} ({})",
                     tokenId,
-                    TextFormat.shortDebugString(request));
-
-            Representable representable = member.forAccessToken(tokenId);
-            Account account = representable.getAccount(request.getAccountId());
+                    request);
 
-            return GetAccountResponse.newBuilder()
-                    .setAccount(account.toProto())
-                    .build();
+            return fetchAccount(
+                    members.current(),
+                    tokenId,
+                    request.getAccountId(),
+                    bypassCache());
         });
     }
 
@@ -267,19 +485,19 @@ public class ProxyServer extends ProxyServiceImplBase {
     public void getBalance(
             GetBalanceRequest request,
             StreamObserver<GetBalanceResponse> responseObserver) {
-        execute(responseObserver, () -> {
+        respond(responseObserver, () -> {
             String tokenId = getTokenId();
-            logger.info(
+            requestLog.request(
+                    "GetBalance",
                     "Get balance: token_id: {} ({})",
                     tokenId,
-                    TextFormat.shortDebugString(request));
-
-            Representable representable = member.forAccessToken(tokenId);
-            Balance balance = representable.getBalance(request.getAccountId(), STANDARD);
+                    request);
 
-            return GetBalanceResponse.newBuilder()
-                    .setBalance(balance)
-                    .build();
+            return fetchBalance(
+                    members.current(),
+                    tokenId,
+                    request.getAccountId(),
+                    bypassCache());
         });
     }
 
@@ -287,22 +505,40 @@ public class ProxyServer extends ProxyServiceImplBase {
     public void getTransaction(
             GetTransactionRequest request,
             StreamObserver<GetTransactionResponse> responseObserver) {
-        execute(responseObserver, () -> {
+        respond(responseObserver, () -> {
             String tokenId = getTokenId();
-            logger.info(
+            requestLog.request(
+                    "GetTransaction",
                     "Get transaction: token_id: {} ({})",
                     tokenId,
-                    TextFormat.shortDebugString(request));
-
-            Representable representable = member.forAccessToken(tokenId);
-            Transaction transaction = representable.getTransaction(
-                    request.getAccountId(),
-                    request.getTransactionId(),
-                    STANDARD);
+                    request);
+
+            MemberPool.Tenant tenant = members.current();
+            if (transactionStore != null && tenant.isDefault) {
+                Transaction stored = transactionStore.transaction(
+                        tokenId,
+                        request.getAccountId(),
+                        request.getTransactionId());
+                if (stored != null) {
+                    return completedFuture(GetTransactionResponse.newBuilder()
+                            .setTransaction(stored)
+                            .build());
+                }
+            }
 
-            return GetTransactionResponse.newBuilder()
-                    .setTransaction(transaction)
-                    .build();
+            return tenant.representables
+                    .call(tokenId, representable -> upstream.call(
+                            "getTransaction",
+                            () -> representable.getTransaction(
+                                    request.getAccountId(),
+                                    request.getTransactionId(),
+                                    STANDARD)))
+                    .thenApply(transaction -> {
+                        trackTransactions(tenant, tokenId, request.getAccountId());
+                        return GetTransactionResponse.newBuilder()
+                                .setTransaction(transaction)
+                                .build();
+                    });
         });
     }
 
@@ -310,28 +546,259 @@ public class ProxyServer extends ProxyServiceImplBase {
     public void getTransactions(
             GetTransactionsRequest request,
             StreamObserver<GetTransactionsResponse> responseObserver) {
-        execute(responseObserver, () -> {
+        respond(responseObserver, () -> {
             String tokenId = getTokenId();
-            logger.info(
+            requestLog.request(
+                    "GetTransactions",
                     "Get transactions: token_id: {} ({})",
                     tokenId,
-                    TextFormat.shortDebugString(request));
+                    request);
             checkArgument(request.getLimit() > 0, "Limit not set properly!");
 
-            Representable representable = member.forAccessToken(tokenId);
-            PagedList<Transaction, String> transactions = representable.getTransactions(
-                    request.getAccountId(),
-                    request.getOffset(),
-                    request.getLimit(),
-                    STANDARD);
-
-            return GetTransactionsResponse.newBuilder()
-                    .addAllTransactions(transactions.getList())
-                    .setOffset(transactions.getOffset())
-                    .build();
+            MemberPool.Tenant tenant = members.current();
+            if (transactionStore != null && tenant.isDefault) {
+                GetTransactionsResponse stored = transactionStore.page(
+                        tokenId,
+                        request.getAccountId(),
+                        request.getOffset(),
+                        request.getLimit());
+                if (stored != null) {
+                    return completedFuture(stored);
+                }
+            }
+
+            return tenant.representables
+                    .call(tokenId, representable -> upstream.call(
+                            "getTransactions",
+                            () -> representable.getTransactions(
+                                    request.getAccountId(),
+                                    request.getOffset(),
+                                    request.getLimit(),
+                                    STANDARD)))
+                    .thenApply(transactions -> {
+                        trackTransactions(tenant, tokenId, request.getAccountId());
+                        return GetTransactionsResponse.newBuilder()
+                                .addAllTransactions(transactions.getList())
+                                .setOffset(transactions.getOffset())
+                                .build();
+                    });
         });
     }
 
+    @Override
+    public void getBalances(
+            GetBalancesRequest request,
+            StreamObserver<GetBalancesResponse> responseObserver) {
+        respond(responseObserver, () -> {
+            String tokenId = getTokenId();
+            requestLog.request(
+                    "GetBalances",
+                    "Get balances: token_id: {} ({})",
+                    tokenId,
+                    request);
+
+            MemberPool.Tenant tenant = members.current();
+            boolean bypass = bypassCache();
+            List<String> accountIds = request.getAccountIdsList();
+            return fanOut
+                    .run(accountIds, accountId -> fetchBalance(tenant, tokenId, accountId, bypass))
+                    .thenApply(outcomes -> {
+                        GetBalancesResponse.Builder response = GetBalancesResponse.newBuilder();
+                        for (int i = 0; i < outcomes.size(); i++) {
+                            FanOut.Outcome<GetBalanceResponse> outcome = outcomes.get(i);
+                            BalanceResult.Builder result = BalanceResult.newBuilder()
+                                    .setAccountId(accountIds.get(i));
+                            if (outcome.isSuccess()) {
+                                result.setBalance(outcome.value().getBalance());
+                            } else {
+                                result.setError(toErrorStatus(outcome.error()));
+                            }
+                            response.addBalances(result);
+                        }
+                        return response.build();
+                    });
+        });
+    }
+
+    @Override
+    public void getAccountSummaries(
+            GetAccountSummariesRequest request,
+            StreamObserver<GetAccountSummariesResponse> responseObserver) {
+        respond(responseObserver, () -> {
+            String tokenId = getTokenId();
+            requestLog.request(
+                    "GetAccountSummaries",
+                    "Get account summaries: token_id: {} ({})",
+                    tokenId,
+                    request);
+            checkArgument(request.getTransactionLimit() >= 0, "Limit not set properly!");
+
+            MemberPool.Tenant tenant = members.current();
+            boolean bypass = bypassCache();
+            CompletableFuture<List<AccountProtos.Account>> accounts;
+            if (request.getAccountIdsCount() == 0) {
+                accounts = fetchAccounts(tenant, tokenId, bypass)
+                        .thenApply(GetAccountsResponse::getAccountsList);
+            } else {
+                accounts = completedFuture(request.getAccountIdsList()
+                        .stream()
+                        .map(accountId -> AccountProtos.Account.newBuilder()
+                                .setId(accountId)
+                                .build())
+                        .collect(Collectors.toList()));
+            }
+
+            return accounts.thenCompose(list -> fanOut
+                    .run(list, account -> fetchAccountSummary(
+                            tenant,
+                            tokenId,
+                            account,
+                            request.getAccountIdsCount() == 0,
+                            request.getTransactionLimit(),
+                            bypass))
+                    .thenApply(outcomes -> {
+                        GetAccountSummariesResponse.Builder response =
+                                GetAccountSummariesResponse.newBuilder();
+                        for (int i = 0; i < outcomes.size(); i++) {
+                            FanOut.Outcome<AccountSummary> outcome = outcomes.get(i);
+                            response.addSummaries(outcome.isSuccess()
+                                    ? outcome.value()
+                                    : AccountSummary.newBuilder()
+                                            .setAccountId(list.get(i).getId())
+                                            .setError(toErrorStatus(outcome.error()))
+                                            .build());
+                        }
+                        return response.build();
+                    }));
+        });
+    }
+
+    @Override
+    public void createTransfers(
+            CreateTransfersRequest request,
+            StreamObserver<CreateTransfersResponse> responseObserver) {
+        requestLog.summary(
+                "CreateTransfers",
+                "Create transfers: {} tokens",
+                request.getTokenIdsCount());
+
+        MemberPool.Tenant tenant;
+        try {
+            if (request.getTokenIdsCount() > maxTransferBatchSize) {
+                throw Status.INVALID_ARGUMENT
+                        .withDescription("At most " + maxTransferBatchSize + " token ids")
+                        .asRuntimeException();
+            }
+            tenant = members.current();
+        } catch (RuntimeException e) {
+            responseObserver.onError(Async.toStatusException(e));
+            return;
+        }
+        List<String> tokenIds = request.getTokenIdsList();
+        transferFanOut
+                .run(tokenIds, tokenId -> redeem(tenant, tokenId), (index, outcome) -> {
+                    CreateTransfersResponse.Builder result = CreateTransfersResponse.newBuilder()
+                            .setTokenId(tokenIds.get(index));
+                    if (outcome.isSuccess()) {
+                        result.setTransfer(outcome.value());
+                    } else {
+                        result.setError(toErrorStatus(outcome.error()));
+                    }
+                    // Outcomes are reported from the threads completing the redemptions.
+                    synchronized (responseObserver) {
+                        responseObserver.onNext(result.build());
+                    }
+                })
+                .whenComplete((outcomes, error) -> {
+                    synchronized (responseObserver) {
+                        if (error != null) {
+                            responseObserver.onError(Async.toStatusException(error));
+                        } else {
+                            responseObserver.onCompleted();
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public void streamTransactions(
+            StreamTransactionsRequest request,
+            StreamObserver<StreamTransactionsResponse> responseObserver) {
+        TransactionPager pager;
+        try {
+            pager = transactionPager(request.getAccountId(), request.getPageSize());
+        } catch (RuntimeException e) {
+            responseObserver.onError(Async.toStatusException(e));
+            return;
+        }
+        requestLog.request("StreamTransactions", "Stream transactions: ({})", request);
+        pager.streamTo(responseObserver);
+    }
+
+    /**
+     * Returns the cache of encoded responses served by the HTTP handler.
+     *
+     * @return response cache
+     */
+    ResponseCache responseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Checks whether a cached response may be served without calling the service. Responses
+     * fetched with an access token are served while upstream recently accepted the token, so
+     * that a revoked token stops being served, and tokens while they are in the token cache,
+     * i.e. neither redeemed nor cached for too long. Anything else goes to the service.
+     *
+     * @param domain value of the member header, or null
+     * @param path request path
+     * @param authorization Authorization header, or null
+     * @return true if the cached response may be served
+     */
+    boolean mayServeCached(String domain, String path, String authorization) {
+        MemberPool.Tenant tenant = members.loaded(domain);
+        if (tenant == null) {
+            return false;
+        }
+        if (authorization != null && !authorization.isEmpty()) {
+            return tenant.representables.isAuthorized(authorization);
+        }
+        String tokenId = ResponseCache.tokenId(path);
+        return tokenId != null && tokenCache.contains(tenant.scope(tokenId));
+    }
+
+    /**
+     * Returns the header that selects the member a request is served for.
+     *
+     * @return header name, or null if all requests are served for the same member
+     */
+    String memberHeader() {
+        return members.header();
+    }
+
+    /**
+     * Creates a pager over the transactions of an account, on behalf of the access token
+     * of the current request.
+     *
+     * @param accountId account id
+     * @param pageSize number of transactions fetched per page, 0 for the default
+     * @return transaction pager
+     */
+    private TransactionPager transactionPager(String accountId, int pageSize) {
+        int maxPageSize = config.getInt("transactionStream.maxPageSize");
+        if (pageSize < 0 || pageSize > maxPageSize) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("Page size must be between 1 and " + maxPageSize)
+                    .asRuntimeException();
+        }
+        return new TransactionPager(
+                members.current().representables,
+                upstream,
+                getTokenId(),
+                accountId,
+                pageSize > 0 ? pageSize : config.getInt("transactionStream.pageSize"));
+    }
+
     /**
      * Initializes the SDK by connecting to Token, and loading or creating a member
      *
@@ -339,89 +806,212 @@ public class ProxyServer extends ProxyServiceImplBase {
      */
     private TokenIO initializeSdk() throws IOException {
         Path keys = Files.createDirectories(Paths.get(config.getString("keysDir")));
-        return TokenIO.builder()
+        TokenIO.Builder builder = TokenIO.builder()
                 .connectTo(TokenCluster.valueOf(config.getString("environment")))
                 // This KeyStore reads private keys from files.
                 // Here, it's set up to read the ./keys dir.
                 .withKeyStore(new UnsecuredFileSystemKeyStore(
                         keys.toFile()))
-                .devKey(config.getString("devKey"))
-                .build();
+                .devKey(config.getString("devKey"));
+        if (config.hasPath("gateway.host")) {
+            // Talk to another gateway than the one of the environment, e.g. a local fake.
+            builder.hostName(config.getString("gateway.host"))
+                    .port(config.getInt("gateway.port"))
+                    .useSsl(config.getBoolean("gateway.useSsl"));
+        }
+        return builder.build();
     }
 
     /**
-     * Using a TokenIO SDK client, create a new Member.
-     * This has the side effect of storing the new Member's private
-     * keys in the ./keys directory.
+     * Fetches a transfer token and redeems it. Concurrent requests for the same token share
+     * one redemption, and retries within the retention period get the original transfer back.
      *
-     * @param tokenIO Token SDK client
-     * @return newly-created member
+     * @param tenant member the token was issued to
+     * @param tokenId transfer token id
+     * @return transfer
      */
-    private Member createMember(TokenIO tokenIO) {
-        // If we try to create a member with an already-used alias,
-        // it will fail.
-        String domain = config.getString("domain").toLowerCase();
-        Alias alias = Alias.newBuilder()
-                .setType(DOMAIN)
-                .setValue(domain)
-                .build();
-        if (tokenIO.aliasExists(alias)) {
-            throw new IllegalArgumentException(
-                    "Domain already taken. Change domain and try again.");
+    private CompletableFuture<Transfer> redeem(MemberPool.Tenant tenant, String tokenId) {
+        String key = tenant.scope(tokenId);
+        Transfer redeemed = transferResults.getIfPresent(key);
+        if (redeemed != null) {
+            return completedFuture(redeemed);
         }
-        return tokenIO.createBusinessMember(alias);
-        // The newly-created member is automatically logged in.
+        return redemptions.execute(key, () -> getCachedToken(tenant, tokenId)
+                .thenCompose(token -> upstream.call(
+                        "redeemToken",
+                        () -> tenant.member.async().redeemToken(token)))
+                // The token changes state once redeemed, whatever the outcome.
+                .whenComplete((transfer, error) -> {
+                    tokenCache.invalidate(key);
+                    responseCache.invalidateToken(tokenId);
+                })
+                .thenApply(transfer -> {
+                    transferResults.put(key, transfer);
+                    return transfer;
+                }));
     }
 
     /**
-     * Using a TokenIO SDK client and the member ID of a previously-created
-     * Member (whose private keys we have stored locally), log in as that member.
-     *
-     * @param tokenIO SDK
-     * @param memberId ID of member
-     * @return Logged-in member.
+     * Starts storing the transactions of an account that upstream served with the token, if
+     * the transaction store is enabled for the member.
      */
-    private Member loginMember(TokenIO tokenIO, String memberId) {
-        try {
-            return tokenIO.getMember(memberId);
-        } catch (StatusRuntimeException sre) {
-            // We think we have a member's ID and keys, but we can't log in.
-            // In the sandbox testing environment, this can happen:
-            // Sometimes, the member service erases the test members.
-            throw new RuntimeException(
-                    "Couldn't log in saved member, not found. Remove keys dir and try again.");
+    private void trackTransactions(MemberPool.Tenant tenant, String tokenId, String accountId) {
+        if (transactionStore != null && tenant.isDefault) {
+            transactionStore.track(tokenId, accountId);
         }
     }
 
     /**
-     * Log in existing member or create new member.
+     * Looks up the transfer a token was redeemed for.
      *
-     * @param tokenIO Token SDK client
-     * @return Logged-in member
+     * @param tenant member the token was issued to
+     * @param tokenId transfer token id
+     * @return future completed with the transfer, or with null if the token was not redeemed
+     */
+    private CompletableFuture<Transfer> findTransfer(MemberPool.Tenant tenant, String tokenId) {
+        return upstream
+                .call("getTransfers", () -> tenant.member.async().getTransfers(null, 1, tokenId))
+                .thenApply(page -> page.getList().isEmpty() ? null : page.getList().get(0));
+    }
+
+    private CompletableFuture<Token> getCachedToken(MemberPool.Tenant tenant, String tokenId) {
+        return tokenCache.get(tenant.scope(tokenId), key -> upstream.call(
+                "getToken",
+                () -> tenant.member.async().getToken(tokenId)));
+    }
+
+    private CompletableFuture<GetAccountsResponse> fetchAccounts(
+            MemberPool.Tenant tenant,
+            String tokenId,
+            boolean bypass) {
+        String key = tenant.scope(tokenId);
+        return accountsCache.get(key, "", bypass, () -> tenant.representables
+                .call(tokenId, representable -> upstream.call(
+                        "getAccounts",
+                        representable::getAccounts))
+                .thenApply(accounts -> GetAccountsResponse.newBuilder()
+                        .addAllAccounts(accounts
+                                .stream()
+                                .map(AccountAsync::toProto)
+                                .collect(Collectors.toList()))
+                        .build()));
+    }
+
+    private CompletableFuture<GetAccountResponse> fetchAccount(
+            MemberPool.Tenant tenant,
+            String tokenId,
+            String accountId,
+            boolean bypass) {
+        String key = tenant.scope(tokenId);
+        return accountCache.get(key, accountId, bypass, () -> tenant.representables
+                .call(tokenId, representable -> upstream.call(
+                        "getAccount",
+                        () -> representable.getAccount(accountId)))
+                .thenApply(account -> GetAccountResponse.newBuilder()
+                        .setAccount(account.toProto())
+                        .build()));
+    }
+
+    private CompletableFuture<GetBalanceResponse> fetchBalance(
+            MemberPool.Tenant tenant,
+            String tokenId,
+            String accountId,
+            boolean bypass) {
+        String key = tenant.scope(tokenId);
+        return balanceCache.get(key, accountId, bypass, () -> tenant.representables
+                .call(tokenId, representable -> upstream.call(
+                        "getBalance",
+                        () -> representable.getBalance(accountId, STANDARD)))
+                .thenApply(balance -> GetBalanceResponse.newBuilder()
+                        .setBalance(balance)
+                        .build()));
+    }
+
+    /**
+     * Fetches the account details, balance and latest transactions of one account.
+     *
+     * @param tenant member the access token was granted to
+     * @param tokenId access token id
+     * @param account account, or only its id if {@code resolved} is false
+     * @param resolved true if the account details are already known
+     * @param transactionLimit number of latest transactions to include
+     * @param bypass true to skip cached values
+     * @return account summary
+     */
+    private CompletableFuture<AccountSummary> fetchAccountSummary(
+            MemberPool.Tenant tenant,
+            String tokenId,
+            AccountProtos.Account account,
+            boolean resolved,
+            int transactionLimit,
+            boolean bypass) {
+        String accountId = account.getId();
+        CompletableFuture<AccountProtos.Account> details = resolved
+                ? completedFuture(account)
+                : fetchAccount(tenant, tokenId, accountId, bypass)
+                        .thenApply(GetAccountResponse::getAccount);
+        CompletableFuture<GetBalanceResponse> balance =
+                fetchBalance(tenant, tokenId, accountId, bypass);
+        CompletableFuture<List<Transaction>> transactions = transactionLimit == 0
+                ? completedFuture(Collections.emptyList())
+                : tenant.representables
+                        .call(tokenId, representable -> upstream.call(
+                                "getTransactions",
+                                () -> representable.getTransactions(
+                                        accountId,
+                                        "",
+                                        transactionLimit,
+                                        STANDARD)))
+                        .thenApply(PagedList::getList);
+
+        return CompletableFuture.allOf(details, balance, transactions)
+                .thenApply(done -> AccountSummary.newBuilder()
+                        .setAccountId(accountId)
+                        .setAccount(details.join())
+                        .setBalance(balance.join().getBalance())
+                        .addAllTransactions(transactions.join())
+                        .build());
+    }
+
+    /**
+     * Describes an error for a response that reports it in its body.
+     *
+     * @param error error
+     * @return error status
+     */
+    static ErrorStatus toErrorStatus(Throwable error) {
+        Status status = Async.toStatusException(error).getStatus();
+        return ErrorStatus.newBuilder()
+                .setCode(status.getCode().name())
+                .setMessage(Optional.ofNullable(status.getDescription()).orElse(""))
+                .build();
+    }
+
+    /**
+     * Checks whether the caller asked for a fresh response with Cache-Control: no-cache.
+     *
+     * @return true if cached responses must not be served
+     */
+    private boolean bypassCache() {
+        return Headers.getHeader(Headers.CACHE_CONTROL)
+                .map(value -> value.toLowerCase().contains("no-cache"))
+                .orElse(false);
+    }
+
+    /**
+     * Checks whether the caller asked for the request to be processed asynchronously with
+     * Prefer: respond-async.
+     *
+     * @return true if an asynchronous response is preferred
      */
-    private Member initializeMember(TokenIO tokenIO) {
-        // The UnsecuredFileSystemKeyStore stores keys in a directory
-        // named on the member's memberId, but with ":" replaced by "_".
-        // Look for such a directory.
-        //   If found, try to log in with that memberId
-        //   If not found, create a new member.
-        File keysDir = new File(config.getString("keysDir"));
-        String[] paths = keysDir.list();
-
-        return Arrays.stream(paths)
-                .filter(p -> p.contains("_")) // find dir names containing "_"
-                .map(p -> p.replace("_", ":")) // member ID
-                .map(memberId -> loginMember(tokenIO, memberId))
-                .filter(member -> member.aliases().stream()
-                        .anyMatch(alias ->
-                                alias.getValue().equals(
-                                        config.getString("domain").toLowerCase())))
-                .findFirst()
-                .orElseGet(() -> createMember(tokenIO));
+    static boolean prefersAsync() {
+        return Headers.getHeader(Headers.PREFER)
+                .map(value -> value.toLowerCase().contains("respond-async"))
+                .orElse(false);
     }
 
     private String getTokenId() {
-        return Headers.getHeader("Authorization")
+        return Headers.getHeader(Headers.AUTHORIZATION)
                 .orElseThrow(() -> PERMISSION_DENIED
                         .withDescription("Access Token Not Set")
                         .asRuntimeException());
@@ -0,0 +1,89 @@
+package server;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Short-lived read-through cache for account information fetched on behalf of an access
+ * token. Concurrent misses for the same key share one upstream call.
+ *
+ * @param <V> cached value type
+ */
+class ReadThroughCache<V> {
+    private final Cache<Key, V> values;
+    private final SingleFlight<Key, V> loads = new SingleFlight<>();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize maximum number of cached values
+     * @param ttlMs time a value is served from memory, 0 disables caching
+     */
+    ReadThroughCache(long maxSize, long ttlMs) {
+        this.values = CacheBuilder.newBuilder()
+                .maximumSize(ttlMs > 0 ? maxSize : 0)
+                .expireAfterWrite(ttlMs, MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Returns the cached value, or loads it on a miss.
+     *
+     * @param tokenId access token id
+     * @param accountId account id, empty for token-wide resources
+     * @param bypass true to skip the cached value and refresh it from upstream
+     * @param loader fetches the value upstream
+     * @return value
+     */
+    CompletableFuture<V> get(
+            String tokenId,
+            String accountId,
+            boolean bypass,
+            Supplier<CompletableFuture<V>> loader) {
+        Key key = new Key(tokenId, accountId);
+        if (!bypass) {
+            V cached = values.getIfPresent(key);
+            if (cached != null) {
+                return completedFuture(cached);
+            }
+        }
+        return loads.execute(key, () -> loader.get().thenApply(value -> {
+            values.put(key, value);
+            return value;
+        }));
+    }
+
+    private static final class Key {
+        private final String tokenId;
+        private final String accountId;
+
+        private Key(String tokenId, String accountId) {
+            this.tokenId = tokenId;
+            this.accountId = accountId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return tokenId.equals(other.tokenId) && accountId.equals(other.accountId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tokenId, accountId);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package server;
+
+import static io.grpc.Status.Code.PERMISSION_DENIED;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.typesafe.config.Config;
+import io.grpc.Status;
+import io.token.RepresentableAsync;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Bounded pool of {@link RepresentableAsync} instances keyed by access token id, so that
+ * repeated calls with the same Authorization reuse the same representable. Entries are
+ * evicted when idle, and as soon as upstream reports that the access token is no longer
+ * valid.
+ *
+ * <p>The pool also remembers which access tokens upstream accepted within the last
+ * {@code representablePool.authorizedForMs}, so that responses cached for them are only
+ * served while the token is known to be valid.
+ */
+class RepresentablePool {
+    private final LoadingCache<String, RepresentableAsync> representables;
+    private final Cache<String, Boolean> authorized;
+
+    RepresentablePool(Config config, Function<String, RepresentableAsync> factory) {
+        this.representables = CacheBuilder.newBuilder()
+                .maximumSize(config.getLong("representablePool.maxSize"))
+                .expireAfterAccess(config.getLong("representablePool.idleTimeoutMs"), MILLISECONDS)
+                .build(CacheLoader.from(factory::apply));
+        this.authorized = CacheBuilder.newBuilder()
+                .maximumSize(config.getLong("representablePool.maxSize"))
+                .expireAfterWrite(
+                        config.getLong("representablePool.authorizedForMs"),
+                        MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Runs a call on the representable for an access token.
+     *
+     * @param tokenId access token id
+     * @param call upstream call
+     * @param <T> result type
+     * @return result of the call
+     */
+    <T> CompletableFuture<T> call(
+            String tokenId,
+            Function<RepresentableAsync, CompletableFuture<T>> call) {
+        return call.apply(representables.getUnchecked(tokenId))
+                .whenComplete((result, error) -> {
+                    if (error == null) {
+                        authorized.put(tokenId, Boolean.TRUE);
+                    } else if (isRevoked(error)) {
+                        representables.invalidate(tokenId);
+                        authorized.invalidate(tokenId);
+                    }
+                });
+    }
+
+    /**
+     * Tells whether upstream recently accepted an access token.
+     *
+     * @param tokenId access token id
+     * @return true if a call with the token succeeded within
+     *     {@code representablePool.authorizedForMs}, and none was denied since
+     */
+    boolean isAuthorized(String tokenId) {
+        return authorized.getIfPresent(tokenId) != null;
+    }
+
+    /**
+     * Releases every representable, e.g. once the member they act for is no longer served.
+     */
+    void clear() {
+        representables.invalidateAll();
+        representables.cleanUp();
+        authorized.invalidateAll();
+    }
+
+    private static boolean isRevoked(Throwable error) {
+        return Status.fromThrowable(Async.unwrap(error)).getCode() == PERMISSION_DENIED;
+    }
+}
@@ -0,0 +1,140 @@
+package server;
+
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.TextFormat;
+import com.typesafe.config.Config;
+import io.grpc.Status;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+
+/**
+ * Request logging kept cheap: request lines are sampled per endpoint, and expected client
+ * errors are summarized at most once per interval instead of being logged with a stack trace
+ * each. A sampled line is formatted on the calling thread, as the asynchronous appender only
+ * moves writing it out to the background. The time spent in logging calls is recorded in
+ * the metrics.
+ */
+class RequestLog {
+    private final Logger logger;
+    private final Metrics metrics;
+    private final Config sampleRates;
+    private final double defaultSampleRate;
+    private final long clientErrorIntervalMs;
+    private final Map<String, Double> rates = new ConcurrentHashMap<>();
+    private final Map<Status.Code, ErrorSummary> clientErrors = new ConcurrentHashMap<>();
+
+    RequestLog(Logger logger, Config config, Metrics metrics) {
+        this.logger = logger;
+        this.metrics = metrics;
+        this.sampleRates = config.getConfig("logging.sampleRates");
+        this.defaultSampleRate = config.getDouble("logging.defaultSampleRate");
+        this.clientErrorIntervalMs = config.getLong("logging.clientErrorIntervalMs");
+    }
+
+    /**
+     * Logs a request, if it is sampled.
+     *
+     * @param endpoint endpoint name, used to look up the sample rate
+     * @param format log message format
+     * @param request request, formatted only if the line is sampled
+     */
+    void request(String endpoint, String format, MessageOrBuilder request) {
+        if (!isSampled(endpoint)) {
+            return;
+        }
+        long start = System.nanoTime();
+        logger.info(format, TextFormat.shortDebugString(request));
+        metrics.loggingCompleted(logger.getName(), System.nanoTime() - start);
+    }
+
+    /**
+     * Logs a summary of a request, e.g. the size of a batch, if it is sampled.
+     *
+     * @param endpoint endpoint name, used to look up the sample rate
+     * @param format log message format
+     * @param summary value logged instead of the request
+     */
+    void summary(String endpoint, String format, Object summary) {
+        if (!isSampled(endpoint)) {
+            return;
+        }
+        long start = System.nanoTime();
+        logger.info(format, summary);
+        metrics.loggingCompleted(logger.getName(), System.nanoTime() - start);
+    }
+
+    /**
+     * Logs a request made on behalf of an access token, if it is sampled.
+     *
+     * @param endpoint endpoint name, used to look up the sample rate
+     * @param format log message format
+     * @param tokenId access token id
+     * @param request request, formatted only if the line is sampled
+     */
+    void request(String endpoint, String format, String tokenId, MessageOrBuilder request) {
+        if (!isSampled(endpoint)) {
+            return;
+        }
+        long start = System.nanoTime();
+        logger.info(format, tokenId, TextFormat.shortDebugString(request));
+        metrics.loggingCompleted(logger.getName(), System.nanoTime() - start);
+    }
+
+    /**
+     * Records an expected client error, e.g. an expired access token. One summary per
+     * status code is logged per interval, with the number of occurrences since the last one.
+     *
+     * @param code status code
+     * @param description status description
+     */
+    void clientError(Status.Code code, String description) {
+        ErrorSummary summary = clientErrors.computeIfAbsent(code, c -> new ErrorSummary());
+        summary.count.increment();
+        long now = System.currentTimeMillis();
+        long last = summary.lastLoggedMs.get();
+        if (now - last < clientErrorIntervalMs
+                || !summary.lastLoggedMs.compareAndSet(last, now)) {
+            return;
+        }
+        long start = System.nanoTime();
+        logger.warn(
+                "Client error {}: {} ({} since last summary)",
+                code,
+                description,
+                summary.count.sumThenReset());
+        metrics.loggingCompleted(logger.getName(), System.nanoTime() - start);
+    }
+
+    /**
+     * Logs an unexpected error with its stack trace.
+     *
+     * @param message log message
+     * @param error error
+     */
+    void serverError(String message, Throwable error) {
+        long start = System.nanoTime();
+        logger.error(message, error);
+        metrics.loggingCompleted(logger.getName(), System.nanoTime() - start);
+    }
+
+    private boolean isSampled(String endpoint) {
+        if (!logger.isInfoEnabled()) {
+            return false;
+        }
+        double rate = rates.computeIfAbsent(endpoint, name -> sampleRates.hasPath(name)
+                ? sampleRates.getDouble(name)
+                : defaultSampleRate);
+        return rate >= 1 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    private static final class ErrorSummary {
+        private final LongAdder count = new LongAdder();
+        private final AtomicLong lastLoggedMs = new AtomicLong();
+    }
+}
@@ -0,0 +1,233 @@
+package server;
+
+import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.Config;
+import io.grpc.Context;
+import io.grpc.Metadata;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of encoded GET responses for resources that no longer change: endorsed
+ * tokens and settled transactions. Responses are kept exactly as they were sent, i.e. as
+ * JSON or protobuf bytes, compressed if they were, so that a hit is written out without
+ * calling the service, transcoding or compressing. Entries are keyed by request path and
+ * by variant, i.e. representation, content encoding and Authorization header, and the cache
+ * is bounded by the total size of the bodies.
+ *
+ * <p>Entries are only served while the proxy still vouches for them, see
+ * {@link ProxyServer#mayServeCached}: a transaction while upstream recently accepted the
+ * access token it was fetched with, and a token while it is in the token cache.
+ *
+ * <p>Whether a response may be cached is decided by {@link ResponseCacheInterceptor}, which
+ * reports it to the HTTP handler through a {@link Slot} bound to the request context, or in
+ * the {@link #CACHE_UNTIL} trailer when the call does not share the context of the handler.
+ */
+class ResponseCache {
+    static final Metadata.Key<String> CACHE_UNTIL =
+            Metadata.Key.of("proxy-cache-until", ASCII_STRING_MARSHALLER);
+
+    private static final String TOKENS_PATH = "/tokens/";
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+    private static final Context.Key<Slot> CONTEXT_KEY = Context.key("response-cache-slot");
+
+    private final Cache<String, Variants> responses;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    ResponseCache(Config config) {
+        this.responses = CacheBuilder.newBuilder()
+                .maximumWeight(config.getBytes("responseCache.maxBytes"))
+                .weigher((String path, Variants variants) -> variants.weight)
+                .expireAfterWrite(config.getLong("responseCache.maxAgeMs"), MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Returns the slot bound to the current context.
+     *
+     * @return slot, or null if the call was not made for a GET request in this context
+     */
+    static Slot currentSlot() {
+        return CONTEXT_KEY.get();
+    }
+
+    /**
+     * Names the variant of a response.
+     *
+     * @param representation response representation, e.g. json
+     * @param contentEncoding preferred content encoding of the client, or null
+     * @param domain domain of the member the request is served for, or null for the default
+     * @param authorization Authorization header, or null
+     * @return variant key
+     */
+    static String variant(
+            String representation,
+            String contentEncoding,
+            String domain,
+            String authorization) {
+        return representation
+                + '\u0000' + (contentEncoding == null ? "" : contentEncoding)
+                + '\u0000' + (domain == null ? "" : domain.toLowerCase())
+                + '\u0000' + (authorization == null ? "" : authorization);
+    }
+
+    /**
+     * Returns the id of the token a request path is for.
+     *
+     * @param path request path
+     * @return token id, or null if the path is not that of a token
+     */
+    static String tokenId(String path) {
+        if (!path.startsWith(TOKENS_PATH)) {
+            return null;
+        }
+        int end = path.indexOf('?');
+        return path.substring(TOKENS_PATH.length(), end < 0 ? path.length() : end);
+    }
+
+    /**
+     * Looks up a response.
+     *
+     * @param path request path
+     * @param variant response variant
+     * @return cached response, or null
+     */
+    Entry get(String path, String variant) {
+        Variants variants = responses.getIfPresent(path);
+        Entry entry = variants == null ? null : variants.entries.get(variant);
+        if (entry == null || entry.expiresAtMs <= System.currentTimeMillis()) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry;
+    }
+
+    /**
+     * Stores a response.
+     *
+     * @param path request path
+     * @param variant response variant
+     * @param entry response
+     */
+    void put(String path, String variant, Entry entry) {
+        responses.asMap().compute(path, (key, variants) -> variants == null
+                ? new Variants(ImmutableMap.of(variant, entry))
+                : variants.with(variant, entry));
+    }
+
+    /**
+     * Drops every cached variant of a token, e.g. once it has been redeemed.
+     *
+     * @param tokenId token id
+     */
+    void invalidateToken(String tokenId) {
+        responses.invalidate(TOKENS_PATH + tokenId);
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    long size() {
+        return responses.size();
+    }
+
+    /**
+     * A response as it was sent to the client.
+     */
+    static final class Entry {
+        final byte[] body;
+        final String contentType;
+        final String contentEncoding;
+        final String etag;
+        final long expiresAtMs;
+
+        /**
+         * Creates an entry.
+         *
+         * @param body body bytes, compressed if the response was
+         * @param contentType content type, or null
+         * @param contentEncoding content encoding, or null
+         * @param etag ETag header
+         * @param expiresAtMs time after which the response must not be served
+         */
+        Entry(
+                byte[] body,
+                String contentType,
+                String contentEncoding,
+                String etag,
+                long expiresAtMs) {
+            this.body = body;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.etag = etag;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    /**
+     * Per-request holder through which the service call reports until when its response
+     * may be served from the cache.
+     */
+    static final class Slot {
+        private volatile long cacheUntilMs;
+
+        /**
+         * Binds this slot to a context.
+         *
+         * @param context context to derive from
+         * @return derived context
+         */
+        Context bind(Context context) {
+            return context.withValue(CONTEXT_KEY, this);
+        }
+
+        void cacheUntil(long cacheUntilMs) {
+            this.cacheUntilMs = cacheUntilMs;
+        }
+
+        /**
+         * Returns until when the response may be cached.
+         *
+         * @return time in milliseconds, or 0 if the response must not be cached
+         */
+        long cacheUntilMs() {
+            return cacheUntilMs;
+        }
+    }
+
+    private static final class Variants {
+        private final ImmutableMap<String, Entry> entries;
+        private final int weight;
+
+        private Variants(ImmutableMap<String, Entry> entries) {
+            this.entries = entries;
+            int bytes = 0;
+            for (Entry entry : entries.values()) {
+                bytes += entry.body.length + ENTRY_OVERHEAD_BYTES;
+            }
+            this.weight = bytes;
+        }
+
+        private Variants with(String variant, Entry entry) {
+            ImmutableMap.Builder<String, Entry> builder = ImmutableMap.builder();
+            entries.forEach((key, value) -> {
+                if (!key.equals(variant)) {
+                    builder.put(key, value);
+                }
+            });
+            return new Variants(builder.put(variant, entry).build());
+        }
+    }
+}
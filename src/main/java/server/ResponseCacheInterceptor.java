@@ -0,0 +1,70 @@
+package server;
+
+import static io.token.proto.common.transaction.TransactionProtos.TransactionStatus.SUCCESS;
+
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.token.proto.common.token.TokenProtos.Token;
+import io.token.proto.common.transaction.TransactionProtos.TransactionStatus;
+import server.proto.Proxy.GetTokenResponse;
+import server.proto.Proxy.GetTransactionResponse;
+
+/**
+ * Marks the responses of GetToken and GetTransaction that may be served from the
+ * {@link ResponseCache}: endorsed tokens until they expire, and transactions that have
+ * settled. Other responses are never cached.
+ */
+class ResponseCacheInterceptor implements ServerInterceptor {
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+            ServerCall<ReqT, RespT> call,
+            Metadata metadata,
+            ServerCallHandler<ReqT, RespT> next) {
+        ResponseCache.Slot slot = ResponseCache.currentSlot();
+        return next.startCall(new SimpleForwardingServerCall<ReqT, RespT>(call) {
+            private volatile long cacheUntilMs;
+
+            @Override
+            public void sendMessage(RespT message) {
+                cacheUntilMs = cacheUntil(message);
+                super.sendMessage(message);
+            }
+
+            @Override
+            public void close(Status status, Metadata trailers) {
+                if (status.isOk() && cacheUntilMs > 0) {
+                    if (slot != null) {
+                        slot.cacheUntil(cacheUntilMs);
+                    } else {
+                        trailers.put(ResponseCache.CACHE_UNTIL, Long.toString(cacheUntilMs));
+                    }
+                }
+                super.close(status, trailers);
+            }
+        }, metadata);
+    }
+
+    private static long cacheUntil(Object message) {
+        if (message instanceof GetTokenResponse) {
+            Token token = ((GetTokenResponse) message).getToken();
+            if (!TokenCache.isCacheable(token)) {
+                return 0;
+            }
+            long expiresAtMs = token.getPayload().getExpiresAtMs();
+            return expiresAtMs > 0 ? expiresAtMs : Long.MAX_VALUE;
+        }
+        if (message instanceof GetTransactionResponse) {
+            TransactionStatus status = ((GetTransactionResponse) message)
+                    .getTransaction()
+                    .getStatus();
+            return status == SUCCESS || status.name().startsWith("FAILURE_")
+                    ? Long.MAX_VALUE
+                    : 0;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,94 @@
+package server;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Creates the executors that the servers run requests on, from an {@code executors.<name>}
+ * section of the config:
+ * <ul>
+ *     <li>{@code direct}: on the transport thread, for handlers that never block;</li>
+ *     <li>{@code fixed}: on {@code threads} threads, with an unbounded queue;</li>
+ *     <li>{@code bounded}: on {@code threads} threads, with at most {@code queueSize} tasks
+ *     waiting, beyond which tasks are rejected;</li>
+ *     <li>{@code cached}: on as many threads as needed, as gRPC does by default;</li>
+ *     <li>{@code virtual}: on a virtual thread per task, on JDK 21 or later.</li>
+ * </ul>
+ */
+final class ServerExecutors {
+    private ServerExecutors() {
+    }
+
+    /**
+     * Creates an executor.
+     *
+     * @param config application config
+     * @param name executor name, also used to name its threads
+     * @return executor
+     */
+    static Executor create(Config config, String name) {
+        String path = "executors." + name;
+        Config settings = config.getConfig(path);
+        ThreadFactory threads = new ThreadFactoryBuilder()
+                .setNameFormat(name + "-%d")
+                .setDaemon(true)
+                .build();
+        String type = settings.getString("type");
+        switch (type) {
+            case "direct":
+                return MoreExecutors.directExecutor();
+            case "fixed":
+                return new ThreadPoolExecutor(
+                        settings.getInt("threads"),
+                        settings.getInt("threads"),
+                        0,
+                        MILLISECONDS,
+                        new LinkedBlockingQueue<>(),
+                        threads);
+            case "bounded":
+                return new ThreadPoolExecutor(
+                        settings.getInt("threads"),
+                        settings.getInt("threads"),
+                        0,
+                        MILLISECONDS,
+                        new ArrayBlockingQueue<>(settings.getInt("queueSize")),
+                        threads);
+            case "cached":
+                return Executors.newCachedThreadPool(threads);
+            case "virtual":
+                return virtualThreads(config, path);
+            default:
+                throw new ConfigException.BadValue(
+                        config.origin(),
+                        path + ".type",
+                        "Unknown executor type: " + type);
+        }
+    }
+
+    private static ExecutorService virtualThreads(Config config, String path) {
+        // Looked up at run time, as the proxy is built for Java 8.
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new ConfigException.BadValue(
+                    config.origin(),
+                    path + ".type",
+                    "Virtual threads need JDK 21 or later");
+        }
+    }
+}
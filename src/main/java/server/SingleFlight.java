@@ -0,0 +1,59 @@
+package server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent calls with the same key into one: callers arriving while a call is
+ * in flight share its result instead of starting their own.
+ *
+ * @param <K> key type
+ * @param <V> result type
+ */
+class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Starts the call for the key, or joins the one already in flight.
+     *
+     * @param key call key
+     * @param call starts the call
+     * @return result of the shared call
+     */
+    CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> result = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, result);
+        if (existing != null) {
+            return existing;
+        }
+
+        CompletableFuture<V> started;
+        try {
+            started = call.get();
+        } catch (RuntimeException e) {
+            inFlight.remove(key, result);
+            result.completeExceptionally(e);
+            return result;
+        }
+        started.whenComplete((value, error) -> {
+            inFlight.remove(key, result);
+            if (error != null) {
+                result.completeExceptionally(Async.unwrap(error));
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the number of calls currently in flight.
+     *
+     * @return number of in-flight calls
+     */
+    int inFlightCount() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,112 @@
+package server;
+
+import static io.token.proto.common.token.TokenProtos.TokenSignature.Action.CANCELLED;
+import static io.token.proto.common.token.TokenProtos.TokenSignature.Action.ENDORSED;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.typesafe.config.Config;
+import io.token.proto.common.token.TokenProtos.Token;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded in-memory cache of endorsed tokens, keyed by token id. Entries are dropped when
+ * the token expires, when the cache is full, or when the proxy redeems the token.
+ */
+class TokenCache {
+    private final Cache<String, Token> tokens;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    TokenCache(Config config) {
+        this.tokens = CacheBuilder.newBuilder()
+                .maximumSize(config.getLong("tokenCache.maxSize"))
+                .expireAfterWrite(config.getLong("tokenCache.maxAgeMs"), MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Returns the cached token, or loads it if it is not cached or has expired.
+     *
+     * @param tokenId token id
+     * @param loader fetches the token upstream
+     * @return token
+     */
+    CompletableFuture<Token> get(
+            String tokenId,
+            Function<String, CompletableFuture<Token>> loader) {
+        Token cached = tokens.getIfPresent(tokenId);
+        if (cached != null) {
+            if (!isExpired(cached)) {
+                hits.increment();
+                return completedFuture(cached);
+            }
+            tokens.invalidate(tokenId);
+        }
+        misses.increment();
+        return loader.apply(tokenId).thenApply(token -> {
+            if (isCacheable(token)) {
+                tokens.put(tokenId, token);
+            }
+            return token;
+        });
+    }
+
+    /**
+     * Tells whether a token is cached, without counting it as a hit.
+     *
+     * @param tokenId token id
+     * @return true if the token is cached and has not expired
+     */
+    boolean contains(String tokenId) {
+        Token cached = tokens.getIfPresent(tokenId);
+        return cached != null && !isExpired(cached);
+    }
+
+    /**
+     * Drops a token, e.g. after it has been redeemed or cancelled.
+     *
+     * @param tokenId token id
+     */
+    void invalidate(String tokenId) {
+        tokens.invalidate(tokenId);
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    long size() {
+        return tokens.size();
+    }
+
+    /**
+     * Checks whether a token can no longer change, other than by being cancelled or redeemed.
+     *
+     * @param token token
+     * @return true if the token is endorsed, not cancelled and not expired
+     */
+    static boolean isCacheable(Token token) {
+        return !isExpired(token)
+                && token.getPayloadSignaturesList()
+                        .stream()
+                        .anyMatch(signature -> signature.getAction() == ENDORSED)
+                && token.getPayloadSignaturesList()
+                        .stream()
+                        .noneMatch(signature -> signature.getAction() == CANCELLED);
+    }
+
+    private static boolean isExpired(Token token) {
+        long expiresAtMs = token.getPayload().getExpiresAtMs();
+        return expiresAtMs > 0 && expiresAtMs <= System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,381 @@
+package server;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import io.token.proto.common.transaction.TransactionProtos.Transaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Append-only log of transactions, kept in memory-mapped segment files. Each record is
+ * encrypted with AES-GCM, with its position in the log as associated data, so that records
+ * can neither be read nor moved around without the key.
+ *
+ * <p>A record is a length, a nonce and the ciphertext. The length is written last, so a
+ * record torn by a crash reads as the end of the log, and is overwritten by the next append.
+ * Positions are the segment number in the upper 32 bits and the offset within it in the
+ * lower ones.
+ *
+ * <p>The log is compacted by its owner, which {@link #seal seals} the current segment, appends
+ * copies of the records still in use, and then {@link #dropBefore drops} the segments before
+ * the copies. Segment numbers keep growing, so positions are never reused.
+ */
+final class TransactionLog {
+    /** Record holding a version of a transaction. */
+    static final byte TRANSACTION = 0;
+    /**
+     * Record marking that the history of an account was synced, with the upstream offset of
+     * the transactions left out of it, or empty if none were.
+     */
+    static final byte SYNCED = 1;
+    /** Record marking that an account is no longer stored, e.g. as it was revoked. */
+    static final byte EVICTED = 2;
+
+    private static final int NONCE_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final int LENGTH_BYTES = 4;
+    private static final Pattern SEGMENT = Pattern.compile("segment-(\\d+)\\.log");
+    private static final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final SecretKey key;
+    private final SecureRandom random = new SecureRandom();
+    private final NavigableMap<Integer, MappedByteBuffer> segments = new TreeMap<>();
+    private int appendOffset;
+    private int firstUnforced;
+
+    /**
+     * Opens the log in a directory, creating it if needed.
+     *
+     * @param directory directory of the segment files
+     * @param segmentBytes size of a segment file
+     * @param key AES key of the records
+     * @throws IOException if the segments can not be mapped
+     */
+    TransactionLog(Path directory, int segmentBytes, SecretKey key) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+        this.key = key;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Matcher matcher = SEGMENT.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    int segment = Integer.parseInt(matcher.group(1));
+                    segments.put(segment, map(segment));
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0, map(0));
+        }
+    }
+
+    /**
+     * Reads every record in order, and moves the append position past the last one.
+     *
+     * @param consumer receives the records
+     */
+    synchronized void replay(Consumer consumer) {
+        List<Integer> numbers = new ArrayList<>(segments.keySet());
+        int index = 0;
+        int offset = 0;
+        while (true) {
+            int segment = numbers.get(index);
+            Record record = readAt(position(segment, offset));
+            if (record == null) {
+                if (index == numbers.size() - 1) {
+                    break;
+                }
+                index++;
+                offset = 0;
+                continue;
+            }
+            consumer.accept(position(segment, offset), record);
+            offset += record.size;
+        }
+        // Later segments can only be empty, or have been preallocated when a crash struck.
+        int last = numbers.get(index);
+        segments.tailMap(last, false).clear();
+        appendOffset = offset;
+        firstUnforced = last;
+    }
+
+    /**
+     * Appends a version of a transaction.
+     *
+     * @param tokenId access token id
+     * @param accountId account id
+     * @param transaction transaction
+     * @return position of the record
+     */
+    long append(String tokenId, String accountId, Transaction transaction) {
+        return write(plaintext(TRANSACTION, tokenId, accountId, out -> transaction.writeTo(out)));
+    }
+
+    /**
+     * Appends a marker.
+     *
+     * @param kind {@link #SYNCED} or {@link #EVICTED}
+     * @param tokenId access token id
+     * @param accountId account id
+     * @param detail detail of the marker, e.g. an offset, or empty
+     * @return position of the record
+     */
+    long mark(byte kind, String tokenId, String accountId, String detail) {
+        return write(plaintext(kind, tokenId, accountId, out -> out.writeUTF(detail)));
+    }
+
+    private synchronized long write(byte[] plaintext) {
+        int size = LENGTH_BYTES + NONCE_BYTES + plaintext.length + TAG_BITS / 8;
+        if (size + LENGTH_BYTES > segmentBytes) {
+            throw new IllegalArgumentException("Transaction larger than a log segment");
+        }
+        if (appendOffset + size + LENGTH_BYTES > segmentBytes) {
+            addSegment();
+        }
+
+        int segment = segments.lastKey();
+        long position = position(segment, appendOffset);
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        byte[] ciphertext = crypt(Cipher.ENCRYPT_MODE, position, nonce, plaintext);
+        ByteBuffer buffer = segments.get(segment).duplicate();
+        buffer.position(appendOffset + LENGTH_BYTES);
+        buffer.put(nonce).put(ciphertext);
+        buffer.putInt(appendOffset, ciphertext.length);
+        appendOffset += size;
+        return position;
+    }
+
+    /**
+     * Reads a transaction.
+     *
+     * @param position position returned by {@link #append}
+     * @return transaction
+     * @throws IllegalStateException if there is no transaction at the position, e.g. as it
+     *     was dropped by a compaction since the position was looked up
+     */
+    Transaction read(long position) {
+        MappedByteBuffer segment;
+        synchronized (this) {
+            segment = segments.get((int) (position >>> 32));
+        }
+        if (segment == null) {
+            throw new IllegalStateException("Segment dropped: " + position);
+        }
+        Record record = read(segment, position);
+        if (record == null || record.transaction == null) {
+            throw new IllegalStateException("No transaction at " + position);
+        }
+        return record.transaction;
+    }
+
+    /**
+     * Writes the appended records out to disk, in every segment appended to since the last
+     * time, so that a marker is never on disk without the records before it.
+     */
+    synchronized void force() {
+        segments.tailMap(firstUnforced, true).values().forEach(MappedByteBuffer::force);
+        firstUnforced = segments.lastKey();
+    }
+
+    /**
+     * Ends the current segment, so that the next records start a new one.
+     *
+     * @return number of the segment the next record is appended to
+     */
+    synchronized int seal() {
+        if (appendOffset > 0) {
+            addSegment();
+        }
+        return segments.lastKey();
+    }
+
+    /**
+     * Writes the log out to disk, and deletes the segments before the given one. Records in
+     * them can no longer be read.
+     *
+     * @param first number of the first segment to keep, as returned by {@link #seal}
+     */
+    synchronized void dropBefore(int first) {
+        force();
+        Iterator<Map.Entry<Integer, MappedByteBuffer>> dropped =
+                segments.headMap(first, false).entrySet().iterator();
+        while (dropped.hasNext()) {
+            int segment = dropped.next().getKey();
+            dropped.remove();
+            try {
+                // Readers still holding the mapping can finish; the memory is released with it.
+                Files.deleteIfExists(segmentPath(segment));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void addSegment() {
+        int segment = segments.lastKey() + 1;
+        try {
+            segments.put(segment, map(segment));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        appendOffset = 0;
+    }
+
+    private Record readAt(long position) {
+        return read(segments.get((int) (position >>> 32)), position);
+    }
+
+    private Record read(MappedByteBuffer segment, long position) {
+        int offset = (int) position;
+        if (offset + LENGTH_BYTES > segmentBytes) {
+            return null;
+        }
+        int length = segment.getInt(offset);
+        if (length <= 0 || offset + LENGTH_BYTES + NONCE_BYTES + length > segmentBytes) {
+            return null;
+        }
+        ByteBuffer buffer = segment.duplicate();
+        buffer.position(offset + LENGTH_BYTES);
+        byte[] nonce = new byte[NONCE_BYTES];
+        byte[] ciphertext = new byte[length];
+        buffer.get(nonce).get(ciphertext);
+        byte[] plaintext;
+        try {
+            plaintext = crypt(Cipher.DECRYPT_MODE, position, nonce, ciphertext);
+        } catch (IllegalStateException e) {
+            // A torn or foreign record; the log ends here.
+            return null;
+        }
+        return Record.parse(plaintext, LENGTH_BYTES + NONCE_BYTES + length);
+    }
+
+    private byte[] crypt(int mode, long position, byte[] nonce, byte[] input) {
+        Cipher cipher = ciphers.get();
+        try {
+            cipher.init(mode, key, new GCMParameterSpec(TAG_BITS, nonce));
+            cipher.updateAAD(ByteBuffer.allocate(8).putLong(0, position).array());
+            return cipher.doFinal(input);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] plaintext(
+            byte kind,
+            String tokenId,
+            String accountId,
+            Body body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(kind);
+            out.writeUTF(tokenId);
+            out.writeUTF(accountId);
+            body.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private MappedByteBuffer map(int segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(segment), CREATE, READ, WRITE)) {
+            return channel.map(READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private Path segmentPath(int segment) {
+        return directory.resolve(String.format("segment-%05d.log", segment));
+    }
+
+    private static long position(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private interface Body {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Receives the records of the log, in order.
+     */
+    interface Consumer {
+        void accept(long position, Record record);
+    }
+
+    /**
+     * A decrypted record.
+     */
+    static final class Record {
+        final byte kind;
+        final String tokenId;
+        final String accountId;
+        final Transaction transaction;
+        final String detail;
+        private final int size;
+
+        private Record(
+                byte kind,
+                String tokenId,
+                String accountId,
+                Transaction transaction,
+                String detail,
+                int size) {
+            this.kind = kind;
+            this.tokenId = tokenId;
+            this.accountId = accountId;
+            this.transaction = transaction;
+            this.detail = detail;
+            this.size = size;
+        }
+
+        private static Record parse(byte[] plaintext, int size) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(plaintext))) {
+                byte kind = in.readByte();
+                String tokenId = in.readUTF();
+                String accountId = in.readUTF();
+                Transaction transaction = kind == TRANSACTION ? Transaction.parseFrom(in) : null;
+                // Markers written before they had a detail end here.
+                String detail = kind != TRANSACTION && in.available() > 0 ? in.readUTF() : "";
+                return new Record(kind, tokenId, accountId, transaction, detail, size);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package server;
+
+import static io.token.proto.common.security.SecurityProtos.Key.Level.STANDARD;
+import static server.Async.toStatusException;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import io.token.proto.PagedList;
+import io.token.proto.common.transaction.TransactionProtos.Transaction;
+import server.proto.Proxy.StreamTransactionsResponse;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Walks the transaction history of an account page by page. The next page is requested
+ * from upstream while the current one is being sent, and no more than one page is ever
+ * fetched ahead of the client. The history ends when upstream returns no further offset,
+ * or the one it was asked for again, whatever the size of the pages: banks may return fewer
+ * transactions than asked for.
+ */
+class TransactionPager {
+    private final RepresentablePool representables;
+    private final Upstream upstream;
+    private final String tokenId;
+    private final String accountId;
+    private final int pageSize;
+
+    TransactionPager(
+            RepresentablePool representables,
+            Upstream upstream,
+            String tokenId,
+            String accountId,
+            int pageSize) {
+        this.representables = representables;
+        this.upstream = upstream;
+        this.tokenId = tokenId;
+        this.accountId = accountId;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Streams every transaction to a gRPC response observer, respecting its flow control
+     * when the observer supports it.
+     *
+     * @param responseObserver response observer
+     */
+    void streamTo(StreamObserver<StreamTransactionsResponse> responseObserver) {
+        new Streamer(responseObserver).emit(fetch(""));
+    }
+
+    private CompletableFuture<PagedList<Transaction, String>> fetch(String offset) {
+        return representables.call(tokenId, representable -> upstream.call(
+                "getTransactions",
+                () -> representable.getTransactions(accountId, offset, pageSize, STANDARD)));
+    }
+
+    /**
+     * Checks whether there is a page after the one fetched at the given offset.
+     */
+    private static boolean hasNext(PagedList<Transaction, String> page, String offset) {
+        String next = page.getOffset();
+        return next != null && !next.isEmpty() && !next.equals(offset);
+    }
+
+    private class Streamer {
+        private final StreamObserver<StreamTransactionsResponse> observer;
+        private final ServerCallStreamObserver<StreamTransactionsResponse> flowControl;
+        private final AtomicReference<Runnable> paused = new AtomicReference<>();
+        private volatile CompletableFuture<PagedList<Transaction, String>> pending;
+        private volatile boolean cancelled;
+        // Offset of the latest page fetched; pages are only ever handled one at a time.
+        private String offset = "";
+
+        private Streamer(StreamObserver<StreamTransactionsResponse> observer) {
+            this.observer = observer;
+            if (observer instanceof ServerCallStreamObserver) {
+                this.flowControl = (ServerCallStreamObserver<StreamTransactionsResponse>) observer;
+                flowControl.setOnReadyHandler(this::resume);
+                flowControl.setOnCancelHandler(() -> {
+                    cancelled = true;
+                    CompletableFuture<?> page = pending;
+                    if (page != null) {
+                        page.cancel(false);
+                    }
+                });
+            } else {
+                this.flowControl = null;
+            }
+        }
+
+        /**
+         * Sends the pages from the given one on. Pages that were fetched by the time the
+         * previous one is sent are sent in a loop, so that a long history does not nest one
+         * completion callback per page.
+         */
+        private void emit(CompletableFuture<PagedList<Transaction, String>> pageFuture) {
+            CompletableFuture<PagedList<Transaction, String>> current = pageFuture;
+            while (current != null) {
+                pending = current;
+                if (!current.isDone()) {
+                    CompletableFuture<PagedList<Transaction, String>> awaited = current;
+                    awaited.whenComplete((page, error) -> emit(awaited));
+                    return;
+                }
+                if (cancelled) {
+                    return;
+                }
+                PagedList<Transaction, String> page;
+                try {
+                    page = current.join();
+                } catch (RuntimeException e) {
+                    observer.onError(toStatusException(e));
+                    return;
+                }
+                CompletableFuture<PagedList<Transaction, String>> next = null;
+                if (hasNext(page, offset)) {
+                    offset = page.getOffset();
+                    next = fetch(offset);
+                }
+                pending = next;
+                if (!send(page.getList().iterator(), next)) {
+                    return;
+                }
+                current = next;
+            }
+            observer.onCompleted();
+        }
+
+        /**
+         * Sends the rest of a page, as far as the observer is ready for it.
+         *
+         * @return true if the page was sent, false if the stream was paused or cancelled, in
+         *     which case the continuation sends the remaining pages
+         */
+        private boolean send(
+                Iterator<Transaction> remaining,
+                CompletableFuture<PagedList<Transaction, String>> next) {
+            while (remaining.hasNext()) {
+                if (cancelled) {
+                    return false;
+                }
+                if (!isReady()) {
+                    paused.set(() -> {
+                        if (send(remaining, next)) {
+                            if (next == null) {
+                                observer.onCompleted();
+                            } else {
+                                emit(next);
+                            }
+                        }
+                    });
+                    // The observer may have become ready before the continuation was parked.
+                    if (isReady()) {
+                        resume();
+                    }
+                    return false;
+                }
+                observer.onNext(StreamTransactionsResponse.newBuilder()
+                        .setTransaction(remaining.next())
+                        .build());
+            }
+            return true;
+        }
+
+        private void resume() {
+            Runnable continuation = paused.getAndSet(null);
+            if (continuation != null) {
+                continuation.run();
+            }
+        }
+
+        private boolean isReady() {
+            return flowControl == null || flowControl.isReady();
+        }
+    }
+}
@@ -0,0 +1,578 @@
+package server;
+
+import static io.grpc.Status.Code.PERMISSION_DENIED;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_READ;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_WRITE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.typesafe.config.Config;
+import io.grpc.Status;
+import io.token.proto.PagedList;
+import io.token.proto.common.transaction.TransactionProtos.Transaction;
+import io.token.proto.common.transaction.TransactionProtos.TransactionStatus;
+import server.proto.Proxy.GetTransactionsResponse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local copy of the transaction histories of the accounts that are read through the proxy,
+ * so that paging through them does not go to the bank every time. It is opt-in
+ * ({@code transactionStore.enabled}).
+ *
+ * <p>An account is tracked once upstream has answered a GetTransactions or GetTransaction
+ * request for it, and its history, up to {@code transactionStore.maxTransactionsPerAccount}
+ * transactions, is then fetched in the background. Once synced, requests are served from a
+ * {@link TransactionLog} through an in-memory index of the account's transactions, newest
+ * first. Local offsets are cursors of the form {@value #OFFSET_PREFIX}createdAtMs:id, naming
+ * the last transaction of the previous page, so newer transactions stored in between two
+ * pages do not shift the next one. The last local page of a history that was cut short
+ * hands back the upstream offset of the rest of it.
+ *
+ * <p>A refresher fetches, every {@code transactionStore.refreshIntervalMs}, only the newest
+ * pages, up to the first page that has nothing new and is past the oldest transaction that is
+ * not settled yet, i.e. neither succeeded nor failed, so that its status is fetched again.
+ * Such transactions are read upstream by GetTransaction. An account that has not been synced
+ * within {@code transactionStore.maxStalenessMs} is served by upstream again. Accounts that
+ * are not read for {@code transactionStore.idleTimeoutMs}, or whose access token is revoked,
+ * are no longer stored.
+ *
+ * <p>Once the log holds more than {@code transactionStore.compactThreshold} records that are
+ * superseded or belong to accounts no longer stored, the refresher copies the live ones to
+ * new segments and deletes the old ones. A page read while that happens is served upstream.
+ *
+ * <p>Records are encrypted with a key derived from the member id and a secret kept with the
+ * member's keys in {@code keysDir}.
+ */
+class TransactionStore {
+    static final String OFFSET_PREFIX = "local:";
+
+    private static final Logger logger = LoggerFactory.getLogger(TransactionStore.class);
+    private static final String SECRET_FILE = "transaction-store.secret";
+
+    private final TransactionLog log;
+    private final Fetcher fetcher;
+    private final int pageSize;
+    private final int maxTransactions;
+    private final long maxStalenessMs;
+    private final long idleTimeoutMs;
+    private final long compactThreshold;
+    private final Map<String, AccountIndex> accounts = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService syncer;
+    // Records in the log, live or not; only used on the sync thread once opened.
+    private long records;
+
+    /**
+     * Opens the store and rebuilds the index from the log.
+     *
+     * @param config application config
+     * @param memberId id of the member the transactions are read for
+     * @param fetcher reads pages of transactions from upstream
+     * @throws IOException if the log or the secret can not be read
+     */
+    TransactionStore(Config config, String memberId, Fetcher fetcher) throws IOException {
+        this.log = new TransactionLog(
+                Paths.get(config.getString("transactionStore.path")),
+                (int) (long) config.getBytes("transactionStore.segmentBytes"),
+                key(Paths.get(config.getString("keysDir")), memberId));
+        this.fetcher = fetcher;
+        this.pageSize = config.getInt("transactionStore.syncPageSize");
+        this.maxTransactions = config.getInt("transactionStore.maxTransactionsPerAccount");
+        this.maxStalenessMs = config.getLong("transactionStore.maxStalenessMs");
+        this.idleTimeoutMs = config.getLong("transactionStore.idleTimeoutMs");
+        this.compactThreshold = config.getLong("transactionStore.compactThreshold");
+
+        long now = System.currentTimeMillis();
+        log.replay((position, record) -> {
+            records++;
+            String key = key(record.tokenId, record.accountId);
+            if (record.kind == TransactionLog.EVICTED) {
+                accounts.remove(key);
+                return;
+            }
+            AccountIndex index = accounts.computeIfAbsent(
+                    key,
+                    k -> new AccountIndex(record.tokenId, record.accountId));
+            index.lastUsedMs = now;
+            if (record.kind == TransactionLog.SYNCED) {
+                index.rest = record.detail;
+                index.complete = true;
+            } else {
+                index.put(record.transaction, position);
+            }
+        });
+        logger.info("Transaction store opened with {} accounts", accounts.size());
+
+        // Syncs run one at a time, so the bank sees at most one history read from the store.
+        this.syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("transaction-sync-%d")
+                .setDaemon(true)
+                .build());
+        long refreshIntervalMs = config.getLong("transactionStore.refreshIntervalMs");
+        syncer.scheduleWithFixedDelay(
+                this::refresh,
+                refreshIntervalMs,
+                refreshIntervalMs,
+                MILLISECONDS);
+    }
+
+    /**
+     * Returns a page of an account's transactions, if it can be served locally.
+     *
+     * @param tokenId access token id
+     * @param accountId account id
+     * @param offset offset of the page, empty for the first one
+     * @param limit maximum number of transactions
+     * @return page, or null if it must be fetched upstream
+     */
+    GetTransactionsResponse page(String tokenId, String accountId, String offset, int limit) {
+        boolean localOffset = offset.startsWith(OFFSET_PREFIX);
+        if (!offset.isEmpty() && !localOffset) {
+            return null;
+        }
+        AccountIndex index = lookup(tokenId, accountId);
+        if (index == null) {
+            if (localOffset) {
+                throw Status.FAILED_PRECONDITION
+                        .withDescription("Offset expired; start again from the first page")
+                        .asRuntimeException();
+            }
+            return null;
+        }
+        // A client part way through a local history finishes it locally, even if stale.
+        if (!localOffset && !index.isFresh()) {
+            return null;
+        }
+
+        Entry after = localOffset ? Entry.fromCursor(offset) : null;
+        if (localOffset && after == null) {
+            throw Status.INVALID_ARGUMENT
+                    .withDescription("Invalid offset: " + offset)
+                    .asRuntimeException();
+        }
+        List<Long> positions = new ArrayList<>(limit);
+        String next = index.page(after, limit, positions);
+        GetTransactionsResponse.Builder response = GetTransactionsResponse.newBuilder();
+        try {
+            for (long position : positions) {
+                response.addTransactions(log.read(position));
+            }
+        } catch (IllegalStateException e) {
+            // Moved by a compaction since the positions were collected.
+            return null;
+        }
+        return response.setOffset(next).build();
+    }
+
+    /**
+     * Returns a transaction, if it can be served locally.
+     *
+     * @param tokenId access token id
+     * @param accountId account id
+     * @param transactionId transaction id
+     * @return transaction, or null if it must be fetched upstream
+     */
+    Transaction transaction(String tokenId, String accountId, String transactionId) {
+        AccountIndex index = lookup(tokenId, accountId);
+        if (index == null || !index.isFresh()) {
+            return null;
+        }
+        Long position = index.settledPosition(transactionId);
+        if (position == null) {
+            return null;
+        }
+        try {
+            return log.read(position);
+        } catch (IllegalStateException e) {
+            // Moved by a compaction since the position was looked up.
+            return null;
+        }
+    }
+
+    /**
+     * Starts storing the history of an account, once upstream has served a request for it
+     * with the access token, so that unknown or forged pairs are never tracked.
+     *
+     * @param tokenId access token id
+     * @param accountId account id
+     */
+    void track(String tokenId, String accountId) {
+        AccountIndex index = accounts.computeIfAbsent(
+                key(tokenId, accountId),
+                k -> new AccountIndex(tokenId, accountId));
+        index.lastUsedMs = System.currentTimeMillis();
+        if (!index.isFresh()) {
+            scheduleSync(index);
+        }
+    }
+
+    private AccountIndex lookup(String tokenId, String accountId) {
+        AccountIndex index = accounts.get(key(tokenId, accountId));
+        if (index != null) {
+            index.lastUsedMs = System.currentTimeMillis();
+            if (!index.isFresh()) {
+                scheduleSync(index);
+            }
+        }
+        return index;
+    }
+
+    private void refresh() {
+        long now = System.currentTimeMillis();
+        long live = 0;
+        for (AccountIndex index : accounts.values()) {
+            if (now - index.lastUsedMs < idleTimeoutMs) {
+                scheduleSync(index);
+                live += index.records();
+            } else {
+                evict(index);
+            }
+        }
+        if (records - live > compactThreshold) {
+            try {
+                compact();
+            } catch (RuntimeException e) {
+                logger.warn("Could not compact the transaction log: {}", e.toString());
+            }
+        }
+    }
+
+    /**
+     * Copies the latest version of every stored transaction, and the markers of the synced
+     * accounts, to new segments, and deletes the segments before them. Runs on the sync
+     * thread, so no sync appends in between.
+     */
+    private void compact() {
+        long before = records;
+        int first = log.seal();
+        long copied = 0;
+        for (AccountIndex index : accounts.values()) {
+            copied += index.copy();
+        }
+        log.dropBefore(first);
+        records = copied;
+        logger.info("Transaction log compacted from {} to {} records", before, copied);
+    }
+
+    /**
+     * Stops storing an account. Runs on the sync thread, so that no sync of the account
+     * appends to the log after the marker.
+     */
+    private void evict(AccountIndex index) {
+        if (accounts.remove(key(index.tokenId, index.accountId), index)) {
+            log.mark(TransactionLog.EVICTED, index.tokenId, index.accountId, "");
+            records++;
+        }
+    }
+
+    private void scheduleSync(AccountIndex index) {
+        if (index.syncing.compareAndSet(false, true)) {
+            syncer.execute(() -> {
+                try {
+                    sync(index);
+                } finally {
+                    index.syncing.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Fetches the transactions of an account that are not in the log yet, or whose status
+     * changed, newest first. The first sync of an account reads its whole history; later
+     * ones stop at the first page without anything new, once past the oldest transaction that
+     * may still change status. The history ends where upstream returns no further offset:
+     * the bank may return fewer transactions than asked for.
+     */
+    private void sync(AccountIndex index) {
+        if (accounts.get(key(index.tokenId, index.accountId)) != index) {
+            return;
+        }
+        String offset = "";
+        String rest = "";
+        int fetched = 0;
+        long unsettledSinceMs = index.oldestUnsettledMs();
+        try {
+            while (true) {
+                PagedList<Transaction, String> page = fetcher
+                        .fetch(index.tokenId, index.accountId, offset, pageSize)
+                        .join();
+                boolean changed = false;
+                long oldestMs = Long.MAX_VALUE;
+                for (Transaction transaction : page.getList()) {
+                    if (index.isChanged(transaction)) {
+                        index.put(transaction, log.append(
+                                index.tokenId,
+                                index.accountId,
+                                transaction));
+                        records++;
+                        changed = true;
+                    }
+                    oldestMs = Math.min(oldestMs, transaction.getCreatedAtMs());
+                }
+                fetched += page.getList().size();
+                String next = page.getOffset();
+                boolean last = next == null || next.isEmpty() || next.equals(offset);
+                if (!last && fetched >= maxTransactions) {
+                    // The rest of the history stays upstream.
+                    rest = next;
+                    last = true;
+                }
+                if (last || (!changed && index.complete && oldestMs <= unsettledSinceMs)) {
+                    break;
+                }
+                offset = next;
+            }
+            if (!index.complete) {
+                log.mark(TransactionLog.SYNCED, index.tokenId, index.accountId, rest);
+                records++;
+                index.rest = rest;
+                index.complete = true;
+            }
+            log.force();
+            index.syncedAtMs = System.currentTimeMillis();
+        } catch (RuntimeException e) {
+            if (Status.fromThrowable(Async.unwrap(e)).getCode() == PERMISSION_DENIED) {
+                // Access revoked: nothing is served locally for this account any more.
+                evict(index);
+            }
+            logger.warn("Could not sync transactions of {}: {}", index.accountId, e.toString());
+        }
+    }
+
+    private static String key(String tokenId, String accountId) {
+        return tokenId + '\u0000' + accountId;
+    }
+
+    /**
+     * Checks whether a transaction has reached a final status.
+     */
+    private static boolean isSettled(TransactionStatus status) {
+        return status == TransactionStatus.SUCCESS || status.name().startsWith("FAILURE_");
+    }
+
+    /**
+     * Derives the AES key of the log from the member id and a random secret, which is
+     * created next to the member's keys the first time.
+     */
+    private static SecretKey key(Path keysDir, String memberId) throws IOException {
+        Path file = keysDir.resolve(SECRET_FILE);
+        if (!Files.exists(file)) {
+            byte[] secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            Files.createDirectories(keysDir);
+            Files.write(file, secret);
+            try {
+                Files.setPosixFilePermissions(file, ImmutableSet.of(OWNER_READ, OWNER_WRITE));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system; the keys directory is as protected as it gets.
+            }
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(Files.readAllBytes(file), "HmacSHA256"));
+            return new SecretKeySpec(
+                    mac.doFinal(("transaction-store:" + memberId).getBytes(UTF_8)),
+                    "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a page of transactions from upstream.
+     */
+    interface Fetcher {
+        CompletableFuture<PagedList<Transaction, String>> fetch(
+                String tokenId,
+                String accountId,
+                String offset,
+                int limit);
+    }
+
+    /**
+     * Transactions of one account, newest first, with the log position of their latest
+     * version.
+     */
+    private final class AccountIndex {
+        private final String tokenId;
+        private final String accountId;
+        private final Map<String, Entry> entries = new HashMap<>();
+        private final List<Entry> newestFirst = new ArrayList<>();
+        private final AtomicBoolean syncing = new AtomicBoolean();
+        private volatile String rest = "";
+        private volatile boolean complete;
+        private volatile long syncedAtMs;
+        private volatile long lastUsedMs;
+
+        private AccountIndex(String tokenId, String accountId) {
+            this.tokenId = tokenId;
+            this.accountId = accountId;
+        }
+
+        private boolean isFresh() {
+            return complete
+                    && syncedAtMs > 0
+                    && System.currentTimeMillis() - syncedAtMs < maxStalenessMs;
+        }
+
+        private synchronized boolean isChanged(Transaction transaction) {
+            Entry entry = entries.get(transaction.getId());
+            return entry == null || entry.status != transaction.getStatus();
+        }
+
+        private synchronized void put(Transaction transaction, long position) {
+            Entry entry = entries.get(transaction.getId());
+            if (entry != null) {
+                entry.status = transaction.getStatus();
+                entry.position = position;
+                return;
+            }
+            entry = new Entry(transaction, position);
+            entries.put(entry.id, entry);
+            int index = Collections.binarySearch(newestFirst, entry, Entry.NEWEST_FIRST);
+            newestFirst.add(index < 0 ? -index - 1 : index, entry);
+        }
+
+        /**
+         * Returns the log position of a transaction that is settled, and can therefore not
+         * have changed since it was stored.
+         */
+        private synchronized Long settledPosition(String transactionId) {
+            Entry entry = entries.get(transactionId);
+            return entry == null || !isSettled(entry.status) ? null : entry.position;
+        }
+
+        /**
+         * Returns the creation time of the oldest transaction that may still change status.
+         *
+         * @return time in milliseconds, or Long.MAX_VALUE if all are settled
+         */
+        private synchronized long oldestUnsettledMs() {
+            long oldest = Long.MAX_VALUE;
+            for (Entry entry : newestFirst) {
+                if (!isSettled(entry.status)) {
+                    oldest = entry.createdAtMs;
+                }
+            }
+            return oldest;
+        }
+
+        /**
+         * Returns the number of live records of the account in the log.
+         */
+        private synchronized long records() {
+            return entries.size() + (complete ? 1 : 0);
+        }
+
+        /**
+         * Appends a copy of the live records of the account to the log, and points the index
+         * at the copies.
+         *
+         * @return number of records appended
+         */
+        private synchronized long copy() {
+            for (Entry entry : newestFirst) {
+                entry.position = log.append(tokenId, accountId, log.read(entry.position));
+            }
+            if (complete) {
+                log.mark(TransactionLog.SYNCED, tokenId, accountId, rest);
+            }
+            return records();
+        }
+
+        /**
+         * Collects the log positions of a page of transactions.
+         *
+         * @param after last transaction of the previous page, or null for the first page
+         * @param limit maximum number of transactions
+         * @param positions receives the positions
+         * @return offset of the next page, empty if there is none
+         */
+        private synchronized String page(Entry after, int limit, List<Long> positions) {
+            int start = 0;
+            if (after != null) {
+                int found = Collections.binarySearch(newestFirst, after, Entry.NEWEST_FIRST);
+                start = found < 0 ? -found - 1 : found + 1;
+            }
+            int end = Math.min(newestFirst.size(), start + limit);
+            for (int i = start; i < end; i++) {
+                positions.add(newestFirst.get(i).position);
+            }
+            return end < newestFirst.size() && end > start
+                    ? newestFirst.get(end - 1).cursor()
+                    : rest;
+        }
+    }
+
+    private static final class Entry {
+        private static final Comparator<Entry> NEWEST_FIRST = Comparator
+                .comparingLong((Entry entry) -> entry.createdAtMs)
+                .reversed()
+                .thenComparing(entry -> entry.id);
+
+        private final String id;
+        private final long createdAtMs;
+        private TransactionStatus status;
+        private long position;
+
+        private Entry(Transaction transaction, long position) {
+            this(transaction.getId(), transaction.getCreatedAtMs());
+            this.status = transaction.getStatus();
+            this.position = position;
+        }
+
+        private Entry(String id, long createdAtMs) {
+            this.id = id;
+            this.createdAtMs = createdAtMs;
+        }
+
+        private String cursor() {
+            return OFFSET_PREFIX + createdAtMs + ':' + id;
+        }
+
+        /**
+         * Parses a local offset into the entry it names.
+         *
+         * @return entry to page after, or null if the offset is not valid
+         */
+        private static Entry fromCursor(String offset) {
+            String cursor = offset.substring(OFFSET_PREFIX.length());
+            int separator = cursor.indexOf(':');
+            if (separator <= 0 || separator == cursor.length() - 1) {
+                return null;
+            }
+            try {
+                return new Entry(
+                        cursor.substring(separator + 1),
+                        Long.parseLong(cursor.substring(0, separator)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package server;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import server.proto.Proxy.GetTransferStatusResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-ahead log of asynchronous transfer submissions and of their outcomes. Appends are
+ * written by a single thread, which writes out everything that has queued up since its last
+ * write, forces it to disk once, and only then completes the appends, so concurrent
+ * submissions share an fsync.
+ *
+ * <p>Each record is a length, a CRC32 of the payload and the payload: the callback URL and
+ * the status of the submission. A record that does not check out, e.g. one torn by a crash,
+ * ends the journal. The journal is compacted when it is opened, and again on request while
+ * it is in use, by the writer thread in between two batches of appends.
+ */
+final class TransferJournal {
+    private static final Logger logger = LoggerFactory.getLogger(TransferJournal.class);
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_BATCH = 1024;
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+
+    private final Path file;
+    private final BlockingQueue<Append> appends = new LinkedBlockingQueue<>();
+    private final AtomicBoolean compactionQueued = new AtomicBoolean();
+    private volatile int size;
+    private FileChannel channel;
+
+    /**
+     * Creates a journal; it is opened by {@link #open}.
+     *
+     * @param file journal file
+     */
+    TransferJournal(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads every record of the journal, in order.
+     *
+     * @return records
+     * @throws IOException if the journal can not be read
+     */
+    List<Record> replay() throws IOException {
+        List<Record> records = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return records;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file, READ))) {
+            while (true) {
+                int length = in.readInt();
+                long checksum = in.readInt() & 0xffffffffL;
+                if (length < 0 || length > MAX_RECORD_BYTES) {
+                    logger.warn("Transfer journal ends with a corrupt record; ignoring it");
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (crc(payload) != checksum) {
+                    logger.warn("Transfer journal ends with a corrupt record; ignoring it");
+                    break;
+                }
+                records.add(Record.parse(payload));
+            }
+        } catch (EOFException e) {
+            // End of the journal, possibly in the middle of a torn record.
+        }
+        return records;
+    }
+
+    /**
+     * Rewrites the journal with the given records only, and opens it for appending.
+     *
+     * @param live records to keep
+     * @throws IOException if the journal can not be written
+     */
+    void open(Collection<Record> live) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        rewrite(live);
+
+        Thread writer = new Thread(this::write, "transfer-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param record record
+     * @return future completed once the record is on disk
+     */
+    CompletableFuture<Void> append(Record record) {
+        Append append = new Append(record.encode(), null);
+        appends.add(append);
+        return append.written;
+    }
+
+    /**
+     * Rewrites the journal with the records that are live once every append queued so far is
+     * written, unless a compaction is already queued.
+     *
+     * @param live supplies the records to keep; called on the writer thread
+     */
+    void compact(Supplier<Collection<Record>> live) {
+        if (compactionQueued.compareAndSet(false, true)) {
+            appends.add(new Append(null, live));
+        }
+    }
+
+    /**
+     * Returns the number of records in the journal, live or not.
+     *
+     * @return record count
+     */
+    int size() {
+        return size;
+    }
+
+    private void write() {
+        List<Append> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(appends.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            appends.drainTo(batch, MAX_BATCH - 1);
+            Supplier<Collection<Record>> compaction = null;
+            try {
+                int written = 0;
+                for (Append append : batch) {
+                    if (append.bytes == null) {
+                        compaction = append.live;
+                        continue;
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(append.bytes);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    written++;
+                }
+                channel.force(false);
+                size += written;
+                batch.forEach(append -> append.written.complete(null));
+            } catch (IOException | RuntimeException e) {
+                logger.error("Could not write the transfer journal", e);
+                batch.forEach(append -> append.written.completeExceptionally(e));
+            }
+            batch.clear();
+            if (compaction != null) {
+                compactionQueued.set(false);
+                // Runs after the appends above have completed, so the records they wrote are
+                // part of the live ones.
+                try {
+                    int before = size;
+                    rewrite(compaction.get());
+                    logger.info(
+                            "Compacted the transfer journal from {} to {} records",
+                            before,
+                            size);
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Could not compact the transfer journal", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Atomically replaces the journal with the given records, and reopens it for appending.
+     */
+    private void rewrite(Collection<Record> live) throws IOException {
+        Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(compacted, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            for (Record record : live) {
+                ByteBuffer buffer = ByteBuffer.wrap(record.encode());
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+            out.force(true);
+        }
+        Files.move(compacted, file, REPLACE_EXISTING, ATOMIC_MOVE);
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(file, CREATE, WRITE, APPEND);
+        size = live.size();
+    }
+
+    private static long crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    /**
+     * A submission or an update of its status.
+     */
+    static final class Record {
+        final String callbackUrl;
+        final long timestampMs;
+        final GetTransferStatusResponse status;
+
+        /**
+         * Creates a record.
+         *
+         * @param callbackUrl URL notified of the outcome, or empty
+         * @param timestampMs time of the submission or of the update
+         * @param status status of the submission
+         */
+        Record(String callbackUrl, long timestampMs, GetTransferStatusResponse status) {
+            this.callbackUrl = callbackUrl;
+            this.timestampMs = timestampMs;
+            this.status = status;
+        }
+
+        private byte[] encode() {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(payload)) {
+                out.writeUTF(callbackUrl);
+                out.writeLong(timestampMs);
+                status.writeTo(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            byte[] bytes = payload.toByteArray();
+            return ByteBuffer.allocate(HEADER_BYTES + bytes.length)
+                    .putInt(bytes.length)
+                    .putInt((int) crc(bytes))
+                    .put(bytes)
+                    .array();
+        }
+
+        private static Record parse(byte[] payload) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            String callbackUrl = in.readUTF();
+            long timestampMs = in.readLong();
+            return new Record(callbackUrl, timestampMs, GetTransferStatusResponse.parseFrom(in));
+        }
+    }
+
+    /**
+     * A record to append, or, without bytes, a request to compact the journal.
+     */
+    private static final class Append {
+        private final byte[] bytes;
+        private final Supplier<Collection<Record>> live;
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        private Append(byte[] bytes, Supplier<Collection<Record>> live) {
+            this.bytes = bytes;
+            this.live = live;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package server;
+
+import static io.grpc.Status.Code.ABORTED;
+import static io.grpc.Status.Code.DEADLINE_EXCEEDED;
+import static io.grpc.Status.Code.INTERNAL;
+import static io.grpc.Status.Code.RESOURCE_EXHAUSTED;
+import static io.grpc.Status.Code.UNAVAILABLE;
+import static io.grpc.Status.Code.UNKNOWN;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static server.proto.Proxy.TransferSubmissionStatus.FAILED;
+import static server.proto.Proxy.TransferSubmissionStatus.PENDING;
+import static server.proto.Proxy.TransferSubmissionStatus.SUCCEEDED;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.util.JsonFormat;
+import com.typesafe.config.Config;
+import io.grpc.Status;
+import io.token.proto.common.transfer.TransferProtos.Transfer;
+import server.proto.Proxy.GetTransferStatusResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Redeems transfer tokens in the background for CreateTransfer requests with {@code async}
+ * set. A submission is acknowledged with its id as soon as it is in the
+ * {@link TransferJournal}, and is then redeemed by a pool of
+ * {@code transferQueue.workers} threads. Redemptions that fail with a transient error are
+ * retried with exponential backoff, up to {@code transferQueue.maxAttempts} times. The
+ * outcome is journaled, reported by GetTransferStatus for
+ * {@code transferQueue.retentionMs}, and POSTed to the callback URL of the submission, if
+ * any. Submissions still pending when the proxy stops are redeemed again once it restarts.
+ *
+ * <p>A redemption that fails without telling whether it went through, e.g. on a deadline,
+ * may still have moved the money. From then on, every failure of the submission is checked
+ * against the transfers of the token: if there is one, the submission succeeded with it, and
+ * it is only reported as failed once upstream confirms that there is none.
+ */
+class TransferQueue {
+    private static final Logger logger = LoggerFactory.getLogger(TransferQueue.class);
+    private static final Set<Status.Code> RETRYABLE = ImmutableSet.of(
+            ABORTED,
+            DEADLINE_EXCEEDED,
+            INTERNAL,
+            RESOURCE_EXHAUSTED,
+            UNAVAILABLE,
+            UNKNOWN);
+    // Failures after which the token may have been redeemed nonetheless.
+    private static final Set<Status.Code> AMBIGUOUS = ImmutableSet.of(
+            DEADLINE_EXCEEDED,
+            INTERNAL,
+            UNKNOWN);
+    private static final int CALLBACK_TIMEOUT_MS = 10000;
+
+    private final TransferJournal journal;
+    private final Function<String, CompletableFuture<Transfer>> redeemer;
+    private final Function<String, CompletableFuture<Transfer>> finder;
+    private final ScheduledExecutorService scheduler;
+    private final int maxPending;
+    private final int maxAttempts;
+    private final long retryBackoffMs;
+    private final long maxRetryBackoffMs;
+    private final int callbackAttempts;
+    private final long retentionMs;
+    private final int compactThreshold;
+    private final Map<String, Submission> submissions = new ConcurrentHashMap<>();
+    private final Map<String, String> submissionsByToken = new ConcurrentHashMap<>();
+    // Tokens being submitted, until their submission is journaled or fails to be.
+    private final Map<String, CompletableFuture<String>> reservations = new ConcurrentHashMap<>();
+    private final BlockingQueue<Submission> ready = new LinkedBlockingQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ExecutorService callbacks;
+
+    /**
+     * Opens the journal, and queues the submissions that were pending when the proxy
+     * stopped.
+     *
+     * @param config application config
+     * @param redeemer redeems a token
+     * @param finder looks up the transfer a token was redeemed for, or null if none
+     * @param scheduler runs retries and clean-ups
+     * @throws IOException if the journal can not be opened
+     */
+    TransferQueue(
+            Config config,
+            Function<String, CompletableFuture<Transfer>> redeemer,
+            Function<String, CompletableFuture<Transfer>> finder,
+            ScheduledExecutorService scheduler) throws IOException {
+        this.journal = new TransferJournal(Paths.get(config.getString("transferQueue.path")));
+        this.redeemer = redeemer;
+        this.finder = finder;
+        this.scheduler = scheduler;
+        this.maxPending = config.getInt("transferQueue.maxPending");
+        this.maxAttempts = config.getInt("transferQueue.maxAttempts");
+        this.retryBackoffMs = config.getLong("transferQueue.retryBackoffMs");
+        this.maxRetryBackoffMs = config.getLong("transferQueue.maxRetryBackoffMs");
+        this.callbackAttempts = config.getInt("transferQueue.callbackAttempts");
+        this.retentionMs = config.getLong("transferQueue.retentionMs");
+        this.compactThreshold = config.getInt("transferQueue.compactThreshold");
+
+        // The latest record of each submission is its current state.
+        Map<String, TransferJournal.Record> latest = new LinkedHashMap<>();
+        for (TransferJournal.Record record : journal.replay()) {
+            latest.put(record.status.getSubmissionId(), record);
+        }
+        latest.values().removeIf(this::isExpired);
+        journal.open(latest.values());
+        for (TransferJournal.Record record : latest.values()) {
+            Submission submission = new Submission(record);
+            submissions.put(submission.id(), submission);
+            submissionsByToken.put(submission.status.getTokenId(), submission.id());
+            if (submission.status.getStatus() == PENDING) {
+                // It may have been in the middle of being redeemed when the proxy stopped.
+                submission.ambiguous = true;
+                pending.incrementAndGet();
+                ready.add(submission);
+            }
+        }
+        logger.info("Transfer queue opened with {} pending submissions", pending.get());
+
+        int workers = config.getInt("transferQueue.workers");
+        ThreadFactoryBuilder threads = new ThreadFactoryBuilder().setDaemon(true);
+        ExecutorService pool = Executors.newFixedThreadPool(
+                workers,
+                threads.setNameFormat("transfer-worker-%d").build());
+        for (int i = 0; i < workers; i++) {
+            pool.execute(this::work);
+        }
+        this.callbacks = Executors.newCachedThreadPool(
+                threads.setNameFormat("transfer-callback-%d").build());
+        scheduler.scheduleWithFixedDelay(this::expire, 60000, 60000, MILLISECONDS);
+    }
+
+    /**
+     * Queues the redemption of a token. A token that was already submitted and has not
+     * failed gets the id of its existing submission back, and so do concurrent submissions of
+     * the same token: the token is reserved until its submission is journaled.
+     *
+     * @param tokenId transfer token id
+     * @param callbackUrl URL notified of the outcome, or empty
+     * @return future completed with the submission id once it is journaled
+     */
+    CompletableFuture<String> submit(String tokenId, String callbackUrl) {
+        CompletableFuture<String> reservation = new CompletableFuture<>();
+        CompletableFuture<String> concurrent = reservations.putIfAbsent(tokenId, reservation);
+        if (concurrent != null) {
+            return concurrent;
+        }
+        reservation.whenComplete((id, error) -> reservations.remove(tokenId, reservation));
+        try {
+            enqueue(tokenId, callbackUrl).whenComplete((id, error) -> {
+                if (error != null) {
+                    reservation.completeExceptionally(error);
+                } else {
+                    reservation.complete(id);
+                }
+            });
+        } catch (RuntimeException e) {
+            reservation.completeExceptionally(e);
+            throw e;
+        }
+        return reservation;
+    }
+
+    /**
+     * Journals and queues a submission for a token, unless it has one already. Only called
+     * with the token reserved.
+     */
+    private CompletableFuture<String> enqueue(String tokenId, String callbackUrl) {
+        String existing = submissionsByToken.get(tokenId);
+        Submission previous = existing == null ? null : submissions.get(existing);
+        if (previous != null && previous.status.getStatus() != FAILED) {
+            return CompletableFuture.completedFuture(previous.id());
+        }
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            throw Status.RESOURCE_EXHAUSTED
+                    .withDescription("Too many pending transfers")
+                    .asRuntimeException();
+        }
+
+        Submission submission = new Submission(new TransferJournal.Record(
+                callbackUrl,
+                System.currentTimeMillis(),
+                GetTransferStatusResponse.newBuilder()
+                        .setSubmissionId(UUID.randomUUID().toString())
+                        .setTokenId(tokenId)
+                        .setStatus(PENDING)
+                        .build()));
+        return journal.append(submission.record())
+                .whenComplete((written, error) -> {
+                    if (error != null) {
+                        pending.decrementAndGet();
+                    }
+                })
+                .thenApply(written -> {
+                    submissions.put(submission.id(), submission);
+                    submissionsByToken.put(tokenId, submission.id());
+                    ready.add(submission);
+                    return submission.id();
+                });
+    }
+
+    /**
+     * Returns the status of a submission.
+     *
+     * @param submissionId submission id
+     * @return status, or null if the submission is unknown or expired
+     */
+    GetTransferStatusResponse status(String submissionId) {
+        Submission submission = submissions.get(submissionId);
+        return submission == null ? null : submission.status;
+    }
+
+    int pendingCount() {
+        return pending.get();
+    }
+
+    private void work() {
+        while (true) {
+            Submission submission;
+            try {
+                submission = ready.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            int attempts = submission.status.getAttempts() + 1;
+            try {
+                Transfer transfer = redeemer.apply(submission.status.getTokenId()).join();
+                succeed(submission, transfer, attempts);
+            } catch (RuntimeException e) {
+                Status.Code code = Async.toStatusException(e).getStatus().getCode();
+                if (AMBIGUOUS.contains(code)) {
+                    submission.ambiguous = true;
+                }
+                if (submission.ambiguous) {
+                    // A retry of a redemption that went through fails too, e.g. as already
+                    // redeemed, so the transfers of the token tell the outcome.
+                    findOrRetry(submission, e, attempts);
+                } else {
+                    retryOrFail(submission, e, attempts);
+                }
+            }
+        }
+    }
+
+    private void findOrRetry(Submission submission, RuntimeException error, int attempts) {
+        finder.apply(submission.status.getTokenId()).whenComplete((transfer, lookupError) -> {
+            if (transfer != null) {
+                succeed(submission, transfer, attempts);
+            } else if (lookupError != null) {
+                // The outcome is still unknown: never report it as failed.
+                logger.warn(
+                        "Could not look up the transfers of {}: {}",
+                        submission.id(),
+                        lookupError.toString());
+                retry(submission, Status.Code.UNKNOWN, attempts);
+            } else {
+                retryOrFail(submission, error, attempts);
+            }
+        });
+    }
+
+    private void retryOrFail(Submission submission, RuntimeException error, int attempts) {
+        Status.Code code = Async.toStatusException(error).getStatus().getCode();
+        if (RETRYABLE.contains(code) && attempts < maxAttempts) {
+            retry(submission, code, attempts);
+            return;
+        }
+        complete(submission, submission.status.toBuilder()
+                .setStatus(FAILED)
+                .setError(ProxyServer.toErrorStatus(error))
+                .setAttempts(attempts)
+                .build());
+    }
+
+    private void retry(Submission submission, Status.Code code, int attempts) {
+        submission.status = submission.status.toBuilder().setAttempts(attempts).build();
+        long backoffMs = Math.min(
+                maxRetryBackoffMs,
+                retryBackoffMs << Math.min(attempts - 1, 20));
+        logger.info(
+                "Transfer {} failed with {}; retrying in {} ms",
+                submission.id(),
+                code,
+                backoffMs);
+        scheduler.schedule(() -> ready.add(submission), backoffMs, MILLISECONDS);
+    }
+
+    private void succeed(Submission submission, Transfer transfer, int attempts) {
+        complete(submission, submission.status.toBuilder()
+                .setStatus(SUCCEEDED)
+                .setTransfer(transfer)
+                .setAttempts(attempts)
+                .build());
+    }
+
+    private void complete(Submission submission, GetTransferStatusResponse status) {
+        submission.status = status;
+        submission.updatedAtMs = System.currentTimeMillis();
+        pending.decrementAndGet();
+        journal.append(submission.record()).whenComplete((written, error) -> {
+            if (error != null) {
+                // The submission is redeemed again after a restart.
+                logger.error("Could not journal the outcome of transfer {}", submission.id());
+            }
+        });
+        if (!submission.callbackUrl.isEmpty()) {
+            callbacks.execute(() -> notify(submission, status, 1));
+        }
+    }
+
+    private void notify(Submission submission, GetTransferStatusResponse status, int attempt) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection)
+                    new URL(submission.callbackUrl).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(CALLBACK_TIMEOUT_MS);
+            connection.setReadTimeout(CALLBACK_TIMEOUT_MS);
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(JsonFormat.printer().print(status).getBytes(UTF_8));
+            }
+            int code = connection.getResponseCode();
+            connection.disconnect();
+            if (code >= 200 && code < 300) {
+                return;
+            }
+            logger.warn("Callback of transfer {} answered {}", submission.id(), code);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Callback of transfer {} failed: {}", submission.id(), e.toString());
+        }
+        if (attempt < callbackAttempts) {
+            scheduler.schedule(
+                    () -> callbacks.execute(() -> notify(submission, status, attempt + 1)),
+                    Math.min(maxRetryBackoffMs, retryBackoffMs << (attempt - 1)),
+                    MILLISECONDS);
+        }
+    }
+
+    private void expire() {
+        submissions.values().removeIf(submission -> {
+            boolean expired = isExpired(submission.record());
+            if (expired) {
+                submissionsByToken.remove(submission.status.getTokenId(), submission.id());
+            }
+            return expired;
+        });
+        if (journal.size() - submissions.size() > compactThreshold) {
+            journal.compact(() -> submissions.values()
+                    .stream()
+                    .map(Submission::record)
+                    .filter(record -> !isExpired(record))
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    private boolean isExpired(TransferJournal.Record record) {
+        return record.status.getStatus() != PENDING
+                && System.currentTimeMillis() - record.timestampMs > retentionMs;
+    }
+
+    private static final class Submission {
+        private final String callbackUrl;
+        private volatile GetTransferStatusResponse status;
+        private volatile long updatedAtMs;
+        private volatile boolean ambiguous;
+
+        private Submission(TransferJournal.Record record) {
+            this.callbackUrl = record.callbackUrl;
+            this.status = record.status;
+            this.updatedAtMs = record.timestampMs;
+        }
+
+        private String id() {
+            return status.getSubmissionId();
+        }
+
+        private TransferJournal.Record record() {
+            return new TransferJournal.Record(callbackUrl, updatedAtMs, status);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package server;
+
+import static io.grpc.Status.Code.RESOURCE_EXHAUSTED;
+import static io.grpc.Status.Code.UNAVAILABLE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.typesafe.config.Config;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
+import io.reactivex.Observable;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Issues calls to the Token cluster through the asynchronous SDK and records how long
+ * upstream takes to answer each of them.
+ *
+ * <p>Every call has a deadline, the earlier of the one configured for it in
+ * {@code upstream.deadlineMs} and the deadline of the gRPC call it is made for. A call that
+ * misses it is abandoned and fails with DEADLINE_EXCEEDED. Each kind of call has a
+ * {@link CircuitBreaker}, and fails right away with UNAVAILABLE while it is open. Idempotent
+ * reads listed in {@code upstream.hedging.calls} may be sent a second time when the first
+ * attempt is slower than {@code upstream.hedging.percentile} of recent calls; the first
+ * answer wins and the other attempt is abandoned.
+ *
+ * <p>A call completes in the context of its caller rather than in that of the SDK thread that
+ * answered it, so that calls chained on it, e.g. redeeming a token once it was fetched, are
+ * made with the deadline of the same gRPC call.
+ *
+ * <p>Calls that time out, or that upstream rejects as unavailable or exhausted, fail with a
+ * status caused by {@link Overloaded}, which tells them apart from the same codes returned by
+ * the proxy itself, e.g. for an open circuit or a full transfer queue.
+ */
+class Upstream {
+    private static final Set<Status.Code> OVERLOAD_CODES =
+            ImmutableSet.of(RESOURCE_EXHAUSTED, UNAVAILABLE);
+    private static final ScheduledThreadPoolExecutor timer = timer();
+
+    private final Metrics metrics;
+    private final Config deadlines;
+    private final long defaultDeadlineNanos;
+    private final Config config;
+    private final boolean hedging;
+    private final Set<String> hedgedCalls;
+    private final double hedgingPercentile;
+    private final long minHedgeDelayNanos;
+    private final int minHedgeSamples;
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    private final LongAdder hedged = new LongAdder();
+    private final LongAdder shortCircuited = new LongAdder();
+
+    Upstream(Config config, Metrics metrics) {
+        this.metrics = metrics;
+        this.config = config;
+        this.deadlines = config.getConfig("upstream.deadlineMs");
+        this.defaultDeadlineNanos = MILLISECONDS.toNanos(deadlines.getLong("default"));
+        this.hedging = config.getBoolean("upstream.hedging.enabled");
+        this.hedgedCalls = ImmutableSet.copyOf(config.getStringList("upstream.hedging.calls"));
+        this.hedgingPercentile = config.getDouble("upstream.hedging.percentile");
+        this.minHedgeDelayNanos =
+                MILLISECONDS.toNanos(config.getLong("upstream.hedging.minDelayMs"));
+        this.minHedgeSamples = config.getInt("upstream.hedging.minSamples");
+
+        metrics.register(
+                "proxy_upstream_hedged_total",
+                "counter",
+                "Upstream calls sent a second time because the first attempt was slow.",
+                hedged::sum);
+        metrics.register(
+                "proxy_upstream_short_circuited_total",
+                "counter",
+                "Upstream calls refused because their circuit breaker was open.",
+                shortCircuited::sum);
+        metrics.register(
+                "proxy_upstream_open_circuits",
+                "gauge",
+                "Kinds of upstream calls whose circuit breaker is open.",
+                () -> breakers.values().stream().filter(CircuitBreaker::isOpen).count());
+    }
+
+    /**
+     * Issues an SDK call.
+     *
+     * @param name call name, used to label its metrics
+     * @param call starts the SDK call
+     * @param <T> result type
+     * @return future completed with the upstream answer
+     */
+    <T> CompletableFuture<T> call(String name, Supplier<Observable<T>> call) {
+        long start = System.nanoTime();
+        Context context = Context.current();
+        long timeoutNanos = timeoutNanos(name, context);
+        if (timeoutNanos <= 0) {
+            return failed(Status.DEADLINE_EXCEEDED.withDescription(
+                    "Deadline exceeded before upstream " + name + " was called"));
+        }
+        CircuitBreaker breaker = breakers.computeIfAbsent(name, n -> new CircuitBreaker(config));
+        CircuitBreaker.Permit permit = breaker.allow();
+        if (permit == null) {
+            shortCircuited.increment();
+            return failed(Status.UNAVAILABLE.withDescription(
+                    "Upstream " + name + " is unavailable"));
+        }
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        attempt(name, call, result, pending, context);
+        ScheduledFuture<?> timeout = timer.schedule(
+                () -> context.run(() -> result.completeExceptionally(Status.DEADLINE_EXCEEDED
+                        .withDescription("Upstream " + name + " timed out")
+                        .withCause(new Overloaded(name))
+                        .asRuntimeException())),
+                timeoutNanos,
+                NANOSECONDS);
+        LatencyWindow latency = latencies.computeIfAbsent(name, n -> new LatencyWindow());
+        ScheduledFuture<?> hedge = null;
+        long hedgeDelayNanos = hedgeDelayNanos(name, latency);
+        if (hedgeDelayNanos > 0 && hedgeDelayNanos < timeoutNanos) {
+            hedge = timer.schedule(() -> {
+                if (!result.isDone() && !breaker.isOpen()) {
+                    hedged.increment();
+                    pending.incrementAndGet();
+                    context.run(() -> attempt(name, call, result, pending, context));
+                }
+            }, hedgeDelayNanos, NANOSECONDS);
+        }
+
+        ScheduledFuture<?> hedgeTask = hedge;
+        result.whenComplete((value, error) -> {
+            long elapsed = System.nanoTime() - start;
+            timeout.cancel(false);
+            if (hedgeTask != null) {
+                hedgeTask.cancel(false);
+            }
+            Status.Code code = error == null
+                    ? Status.Code.OK
+                    : Status.fromThrowable(Async.unwrap(error)).getCode();
+            breaker.record(permit, result.isCancelled() ? Status.Code.CANCELLED : code);
+            if (error == null) {
+                latency.record(elapsed);
+            }
+            metrics.upstreamCompleted(name, elapsed);
+        });
+        return result;
+    }
+
+    /**
+     * Starts one attempt of a call. The first attempt to succeed completes the result, and
+     * the last one to fail does if none succeeded, in the context of the caller. Attempts still
+     * running when the result completes are cancelled, which disposes of their SDK
+     * subscription.
+     */
+    private static <T> void attempt(
+            String name,
+            Supplier<Observable<T>> call,
+            CompletableFuture<T> result,
+            AtomicInteger pending,
+            Context context) {
+        CompletableFuture<T> attempt;
+        try {
+            attempt = Async.toFuture(call.get());
+        } catch (RuntimeException e) {
+            attempt = new CompletableFuture<>();
+            attempt.completeExceptionally(e);
+        }
+        CompletableFuture<T> started = attempt;
+        started.whenComplete((value, error) -> {
+            if (error == null) {
+                context.run(() -> result.complete(value));
+            } else if (pending.decrementAndGet() == 0) {
+                context.run(() -> result.completeExceptionally(overloaded(name, error)));
+            }
+        });
+        result.whenComplete((value, error) -> started.cancel(false));
+    }
+
+    /**
+     * Tells whether a call failed because upstream is overloaded.
+     *
+     * @param status status the call failed with
+     * @return true if upstream timed out or rejected the call as unavailable or exhausted
+     */
+    static boolean isOverloaded(Status status) {
+        return status.getCause() instanceof Overloaded;
+    }
+
+    /**
+     * Marks an overload status returned by upstream as such, and returns other errors as is.
+     */
+    private static Throwable overloaded(String name, Throwable error) {
+        Status status = Status.fromThrowable(Async.unwrap(error));
+        return OVERLOAD_CODES.contains(status.getCode())
+                ? status.withCause(new Overloaded(name)).asRuntimeException()
+                : error;
+    }
+
+    private long timeoutNanos(String name, Context context) {
+        long configured = deadlines.hasPath(name)
+                ? MILLISECONDS.toNanos(deadlines.getLong(name))
+                : defaultDeadlineNanos;
+        Deadline deadline = context.getDeadline();
+        return deadline == null
+                ? configured
+                : Math.min(configured, deadline.timeRemaining(NANOSECONDS));
+    }
+
+    private long hedgeDelayNanos(String name, LatencyWindow latency) {
+        if (!hedging || !hedgedCalls.contains(name)) {
+            return 0;
+        }
+        long percentile = latency.percentile(hedgingPercentile, minHedgeSamples);
+        return percentile == 0 ? 0 : Math.max(minHedgeDelayNanos, percentile);
+    }
+
+    private static <T> CompletableFuture<T> failed(Status status) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(status.asRuntimeException());
+        return future;
+    }
+
+    private static ScheduledThreadPoolExecutor timer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(
+                1,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("upstream-timer")
+                        .setDaemon(true)
+                        .build());
+        // Most deadlines and hedges are cancelled well before they fire.
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * Cause of the statuses of calls that failed because upstream is overloaded.
+     */
+    static final class Overloaded extends RuntimeException {
+        private Overloaded(String name) {
+            super("Upstream " + name + " is overloaded", null, false, false);
+        }
+    }
+
+    /**
+     * Durations of the latest successful calls of one kind. Percentiles are recomputed
+     * every {@value #REFRESH} samples rather than on every call.
+     */
+    private static final class LatencyWindow {
+        private static final int SIZE = 512;
+        private static final int REFRESH = 64;
+
+        private final long[] samples = new long[SIZE];
+        private int count;
+        private double percentile;
+        private long value;
+
+        synchronized void record(long nanos) {
+            samples[count % SIZE] = nanos;
+            count++;
+            if (count % REFRESH == 0) {
+                value = 0;
+            }
+        }
+
+        /**
+         * Returns a percentile of the recorded durations.
+         *
+         * @param p percentile, between 0 and 1
+         * @param minSamples number of samples needed for a meaningful value
+         * @return duration in nanoseconds, or 0 if there are too few samples
+         */
+        synchronized long percentile(double p, int minSamples) {
+            if (count < minSamples) {
+                return 0;
+            }
+            if (value == 0 || percentile != p) {
+                long[] sorted = Arrays.copyOf(samples, Math.min(count, SIZE));
+                Arrays.sort(sorted);
+                value = sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))];
+                percentile = p;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package server;
+
+import static io.token.proto.common.security.SecurityProtos.Key.Algorithm.ED25519;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.google.protobuf.util.JsonFormat;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValue;
+import com.typesafe.config.ConfigValueFactory;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.token.proto.common.member.MemberProtos.Member;
+import io.token.proto.common.security.SecurityProtos.Key;
+import io.token.proto.common.security.SecurityProtos.Signature;
+import io.token.proto.common.token.TokenProtos.TokenRequestStatePayload;
+import io.token.security.crypto.Crypto;
+import io.token.security.crypto.CryptoRegistry;
+import io.token.util.Util;
+import server.proto.Proxy.ParseTokenRequestCallbackResponse;
+
+import java.net.URLEncoder;
+import java.security.KeyPair;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CallbackVerifierTest {
+    private static final String TOKEN_MEMBER_ID = "m:token:5zKtXEAq";
+    private static final String ATTACKER_MEMBER_ID = "m:attacker:5zKtXEAq";
+    private static final String TOKEN_ID = "tt:Dkjm8ysbkWxP6CBV8Wbff:5zKcENpV";
+    private static final String CSRF_TOKEN = "456";
+
+    private final Crypto crypto = CryptoRegistry.getInstance().cryptoFor(ED25519);
+    private final KeyPair tokenKey = crypto.generateKeyPair();
+    private final KeyPair attackerKey = crypto.generateKeyPair();
+    private final Map<String, Member> directory = new HashMap<>();
+    private boolean directoryDown;
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        directory.put(TOKEN_MEMBER_ID, member(TOKEN_MEMBER_ID, "token-key", tokenKey));
+        directory.put(ATTACKER_MEMBER_ID, member(ATTACKER_MEMBER_ID, "bad-key", attackerKey));
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void verifiesCallbackSignedByTokenMember() throws Exception {
+        CallbackVerifier verifier = verifier(TOKEN_MEMBER_ID);
+        String url = callbackUrl(TOKEN_ID, CSRF_TOKEN, TOKEN_MEMBER_ID, "token-key", tokenKey);
+
+        ParseTokenRequestCallbackResponse response = verifier.verify(url, CSRF_TOKEN).get();
+
+        assertEquals(TOKEN_ID, response.getTokenId());
+        assertEquals("123", response.getState());
+    }
+
+    @Test
+    public void rejectsWrongCsrfToken() {
+        CallbackVerifier verifier = verifier(TOKEN_MEMBER_ID);
+        String url = callbackUrl(TOKEN_ID, CSRF_TOKEN, TOKEN_MEMBER_ID, "token-key", tokenKey);
+
+        try {
+            verifier.verify(url, "789");
+            fail("Expected the CSRF token to be rejected");
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void delegatesTamperedTokenId() throws Exception {
+        CallbackVerifier verifier = verifier(TOKEN_MEMBER_ID);
+        String url = callbackUrl(TOKEN_ID, CSRF_TOKEN, TOKEN_MEMBER_ID, "token-key", tokenKey)
+                .replace(URLEncoder.encode(TOKEN_ID, UTF_8.name()), "tt%3Aother%3A5zKcENpV");
+
+        assertNull(verifier.verify(url, CSRF_TOKEN).get());
+    }
+
+    @Test
+    public void delegatesSignatureOfAnotherMember() throws Exception {
+        CallbackVerifier verifier = verifier(TOKEN_MEMBER_ID);
+        String url = callbackUrl(
+                TOKEN_ID,
+                CSRF_TOKEN,
+                ATTACKER_MEMBER_ID,
+                "bad-key",
+                attackerKey);
+
+        assertNull(verifier.verify(url, CSRF_TOKEN).get());
+    }
+
+    @Test
+    public void delegatesForeignKeyClaimingToBeTokenMember() throws Exception {
+        CallbackVerifier verifier = verifier(TOKEN_MEMBER_ID);
+        String url = callbackUrl(TOKEN_ID, CSRF_TOKEN, TOKEN_MEMBER_ID, "bad-key", attackerKey);
+
+        assertNull(verifier.verify(url, CSRF_TOKEN).get());
+    }
+
+    @Test
+    public void delegatesEverythingWithoutConfiguredTokenMember() throws Exception {
+        CallbackVerifier verifier = verifier("");
+        String url = callbackUrl(TOKEN_ID, CSRF_TOKEN, TOKEN_MEMBER_ID, "token-key", tokenKey);
+
+        assertNull(verifier.verify(url, CSRF_TOKEN).get());
+        assertNull(verifier.verify(url, "789").get());
+    }
+
+    @Test
+    public void delegatesWhenKeyDirectoryIsUnreachable() throws Exception {
+        directoryDown = true;
+        CallbackVerifier verifier = verifier(TOKEN_MEMBER_ID);
+        String url = callbackUrl(TOKEN_ID, CSRF_TOKEN, TOKEN_MEMBER_ID, "token-key", tokenKey);
+
+        assertNull(verifier.verify(url, CSRF_TOKEN).get());
+    }
+
+    private CallbackVerifier verifier(String tokenMemberId) {
+        Config config = ConfigFactory.empty()
+                .withValue("keyDirectory.tokenMemberId", value(tokenMemberId))
+                .withValue("keyDirectory.refreshIntervalMs", value(3600000))
+                .withValue("keyDirectory.minFetchIntervalMs", value(60000));
+        KeyDirectory keys = new KeyDirectory(
+                config,
+                this::fetch,
+                scheduler);
+        return new CallbackVerifier(config, keys, new Metrics());
+    }
+
+    private CompletableFuture<Member> fetch(String memberId) {
+        CompletableFuture<Member> member = new CompletableFuture<>();
+        if (directoryDown) {
+            member.completeExceptionally(Status.UNAVAILABLE.asRuntimeException());
+        } else {
+            member.complete(directory.get(memberId));
+        }
+        return member;
+    }
+
+    private String callbackUrl(
+            String tokenId,
+            String csrfToken,
+            String signerId,
+            String keyId,
+            KeyPair signingKey) {
+        String state = encode("{\"csrfTokenHash\":\""
+                + Util.hashString(csrfToken)
+                + "\",\"innerState\":\"123\"}");
+        TokenRequestStatePayload payload = TokenRequestStatePayload.newBuilder()
+                .setTokenId(tokenId)
+                .setState(encode(state))
+                .build();
+        Signature signature = Signature.newBuilder()
+                .setMemberId(signerId)
+                .setKeyId(keyId)
+                .setSignature(crypto.signer(keyId, signingKey.getPrivate()).sign(payload))
+                .build();
+        try {
+            return "http://localhost:3000/redeem?signature="
+                    + encode(JsonFormat.printer().print(signature))
+                    + "&state=" + encode(state)
+                    + "&tokenId=" + encode(tokenId);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Member member(String memberId, String keyId, KeyPair keyPair) {
+        return Member.newBuilder()
+                .setId(memberId)
+                .addKeys(Key.newBuilder()
+                        .setId(keyId)
+                        .setAlgorithm(ED25519)
+                        .setPublicKey(crypto.serialize(keyPair.getPublic())))
+                .build();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, UTF_8.name());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ConfigValue value(Object value) {
+        return ConfigValueFactory.fromAnyRef(value);
+    }
+}
@@ -0,0 +1,163 @@
+package server;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+import io.grpc.Status;
+import io.reactivex.Observable;
+
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+public class ConcurrencyLimitTest {
+    private static final long CALL_NANOS = MILLISECONDS.toNanos(100);
+
+    @Test
+    public void admitsUpToLimit() {
+        ConcurrencyLimit limit = limit(4);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limit.tryAcquire());
+        }
+        assertFalse(limit.tryAcquire());
+        limit.release(CALL_NANOS, Status.OK);
+        assertTrue(limit.tryAcquire());
+    }
+
+    @Test
+    public void growsByAboutOnePerLimitOfSaturatedCalls() {
+        ConcurrencyLimit limit = limit(10);
+
+        for (int i = 0; i < 15; i++) {
+            fill(limit);
+            limit.release(CALL_NANOS, Status.OK);
+        }
+
+        assertEquals(11, limit.limit());
+        assertTrue(limit.tryAcquire());
+    }
+
+    @Test
+    public void keepsLimitWhenUnderused() {
+        ConcurrencyLimit limit = limit(10);
+
+        for (int i = 0; i < 100; i++) {
+            limit.tryAcquire();
+            limit.release(CALL_NANOS, Status.OK);
+        }
+
+        assertEquals(10, limit.limit());
+    }
+
+    @Test
+    public void backsOffWhenUpstreamIsOverloaded() throws Exception {
+        ConcurrencyLimit limit = limit(10);
+        limit.tryAcquire();
+
+        limit.release(CALL_NANOS, overloaded());
+
+        assertEquals(5, limit.limit());
+    }
+
+    @Test
+    public void backsOffOnSlowCall() {
+        ConcurrencyLimit limit = limit(10);
+        limit.tryAcquire();
+        limit.release(CALL_NANOS, Status.OK);
+
+        limit.tryAcquire();
+        limit.release(CALL_NANOS * 3, Status.OK);
+
+        assertEquals(5, limit.limit());
+    }
+
+    @Test
+    public void ignoresOwnRejections() {
+        ConcurrencyLimit limit = limit(10);
+        limit.tryAcquire();
+
+        limit.release(CALL_NANOS, Status.RESOURCE_EXHAUSTED.withDescription("Queue full"));
+
+        assertEquals(10, limit.limit());
+    }
+
+    @Test
+    public void ignoresCancelledCalls() {
+        ConcurrencyLimit limit = limit(10);
+        limit.tryAcquire();
+
+        limit.release(CALL_NANOS * 100, Status.CANCELLED);
+
+        assertEquals(10, limit.limit());
+        assertEquals(0, limit.inFlight());
+    }
+
+    @Test
+    public void backsOffOncePerBurst() throws Exception {
+        ConcurrencyLimit limit = limit(10);
+        Status overloaded = overloaded();
+
+        for (int i = 0; i < 5; i++) {
+            limit.tryAcquire();
+            limit.release(CALL_NANOS, overloaded);
+        }
+
+        assertEquals(5, limit.limit());
+    }
+
+    @Test
+    public void staysWithinBounds() throws Exception {
+        ConcurrencyLimit limit = limit(3);
+        Status overloaded = overloaded();
+
+        for (int i = 0; i < 3; i++) {
+            limit.tryAcquire();
+            limit.release(CALL_NANOS, overloaded);
+            // Lets the next signal count as another burst.
+            Thread.sleep(150);
+        }
+
+        assertEquals(2, limit.limit());
+    }
+
+    private static ConcurrencyLimit limit(int initial) {
+        Config config = ConfigFactory.empty()
+                .withValue("admission.initialLimit", ConfigValueFactory.fromAnyRef(initial))
+                .withValue("admission.minLimit", ConfigValueFactory.fromAnyRef(2))
+                .withValue("admission.maxLimit", ConfigValueFactory.fromAnyRef(200))
+                .withValue("admission.backoffRatio", ConfigValueFactory.fromAnyRef(0.5))
+                .withValue("admission.slowCallTolerance", ConfigValueFactory.fromAnyRef(2.0));
+        return new ConcurrencyLimit(config);
+    }
+
+    private static void fill(ConcurrencyLimit limit) {
+        while (limit.tryAcquire()) {
+            // Takes every permit.
+        }
+    }
+
+    /**
+     * Returns the status of an upstream call that upstream rejected as unavailable.
+     */
+    private static Status overloaded() throws InterruptedException {
+        Upstream upstream = new Upstream(ConfigFactory.load(), new Metrics());
+        try {
+            upstream.call(
+                    "getBalance",
+                    () -> Observable.error(Status.UNAVAILABLE.asRuntimeException())).get();
+        } catch (ExecutionException e) {
+            Status status = Status.fromThrowable(e.getCause());
+            assertTrue(Upstream.isOverloaded(status));
+            return status;
+        }
+        fail("Expected the upstream call to fail");
+        return null;
+    }
+}
@@ -0,0 +1,121 @@
+package server;
+
+import static io.token.proto.common.transaction.TransactionProtos.TransactionStatus.PROCESSING;
+import static io.token.proto.common.transaction.TransactionProtos.TransactionStatus.SUCCESS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.token.proto.common.transaction.TransactionProtos.Transaction;
+import io.token.proto.common.transaction.TransactionProtos.TransactionStatus;
+
+import org.junit.Test;
+
+public class EntityTagTest {
+    @Test
+    public void tagsSameContentAlike() {
+        assertEquals(tag(transaction(SUCCESS), "json"), tag(transaction(SUCCESS), "json"));
+        assertEquals(
+                tag(transaction(SUCCESS), "json"),
+                tag(transaction(SUCCESS).toByteArray(), "json"));
+    }
+
+    @Test
+    public void tellsVersionsAndRepresentationsApart() {
+        assertNotEquals(tag(transaction(SUCCESS), "json"), tag(transaction(PROCESSING), "json"));
+        assertNotEquals(
+                tag(transaction(SUCCESS), "json"),
+                tag(transaction(SUCCESS), "protobuf"));
+    }
+
+    @Test
+    public void suffixesContentEncoding() {
+        EntityTag tag = new EntityTag(null);
+        tag.update(transaction(SUCCESS), "json");
+
+        String plain = tag.value(null);
+        String gzip = tag.value("gzip");
+
+        assertTrue(plain.startsWith("\"") && plain.endsWith("-json\""));
+        assertEquals(plain.substring(0, plain.length() - 1) + "-gzip\"", gzip);
+    }
+
+    @Test
+    public void hasNoValueBeforeResponse() {
+        assertNull(new EntityTag("\"abc\"").value("gzip"));
+        assertFalse(new EntityTag("\"abc\"").isNotModified());
+    }
+
+    @Test
+    public void matchesCurrentCopy() {
+        String etag = tag(transaction(SUCCESS), "json");
+
+        EntityTag tag = new EntityTag(etag);
+
+        assertTrue(tag.update(transaction(SUCCESS), "json"));
+        assertTrue(tag.isNotModified());
+    }
+
+    @Test
+    public void matchesCopyReceivedCompressed() {
+        EntityTag first = new EntityTag(null);
+        first.update(transaction(SUCCESS), "json");
+
+        EntityTag tag = new EntityTag(first.value("gzip"));
+
+        assertTrue(tag.update(transaction(SUCCESS), "json"));
+        assertEquals(first.value("gzip"), tag.value("gzip"));
+    }
+
+    @Test
+    public void sendsChangedResponse() {
+        EntityTag tag = new EntityTag(tag(transaction(PROCESSING), "json"));
+
+        assertFalse(tag.update(transaction(SUCCESS), "json"));
+        assertFalse(tag.isNotModified());
+    }
+
+    @Test
+    public void matchesWeakListedAndWildcardTags() {
+        String etag = tag(transaction(SUCCESS), "json");
+
+        assertTrue(new EntityTag("W/" + etag).update(transaction(SUCCESS), "json"));
+        assertTrue(new EntityTag("\"other\", " + etag).update(transaction(SUCCESS), "json"));
+        assertTrue(new EntityTag("*").update(transaction(SUCCESS), "json"));
+        assertFalse(new EntityTag("garbage").update(transaction(SUCCESS), "json"));
+    }
+
+    @Test
+    public void checksCachedTagsIgnoringEncoding() {
+        EntityTag tag = new EntityTag(null);
+        tag.update(transaction(SUCCESS), "json");
+        String plain = tag.value(null);
+        String deflate = tag.value("deflate");
+
+        assertTrue(EntityTag.isCurrent(plain, deflate));
+        assertTrue(EntityTag.isCurrent(tag.value("gzip"), deflate));
+        assertFalse(EntityTag.isCurrent(null, deflate));
+        assertFalse(EntityTag.isCurrent(tag(transaction(PROCESSING), "json"), plain));
+    }
+
+    private static String tag(Transaction message, String representation) {
+        EntityTag tag = new EntityTag(null);
+        tag.update(message, representation);
+        return tag.value(null);
+    }
+
+    private static String tag(byte[] message, String representation) {
+        EntityTag tag = new EntityTag(null);
+        tag.update(message, representation);
+        return tag.value(null);
+    }
+
+    private static Transaction transaction(TransactionStatus status) {
+        return Transaction.newBuilder()
+                .setId("t1")
+                .setStatus(status)
+                .build();
+    }
+}
@@ -0,0 +1,148 @@
+package server;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.grpc.Status;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FanOutTest {
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void keepsOutcomesInItemOrder() throws Exception {
+        List<CompletableFuture<String>> calls = new ArrayList<>();
+        FanOut fanOut = new FanOut(3, 60000, scheduler);
+
+        CompletableFuture<List<FanOut.Outcome<String>>> result = fanOut.run(
+                Arrays.asList("a", "b", "c"),
+                item -> {
+                    CompletableFuture<String> call = new CompletableFuture<>();
+                    calls.add(call);
+                    return call;
+                });
+        calls.get(2).complete("C");
+        calls.get(0).complete("A");
+        calls.get(1).complete("B");
+
+        assertEquals(
+                Arrays.asList("A", "B", "C"),
+                result.get().stream().map(FanOut.Outcome::value).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void boundsCallsInFlight() throws Exception {
+        List<CompletableFuture<Integer>> calls = new ArrayList<>();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        FanOut fanOut = new FanOut(2, 60000, scheduler);
+
+        CompletableFuture<List<FanOut.Outcome<Integer>>> result = fanOut.run(
+                items(5),
+                item -> {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    CompletableFuture<Integer> call = new CompletableFuture<>();
+                    calls.add(call);
+                    return call.whenComplete((value, error) -> inFlight.decrementAndGet());
+                });
+        assertEquals(2, calls.size());
+        for (int i = 0; i < 5; i++) {
+            calls.get(i).complete(i);
+        }
+
+        assertEquals(5, result.get().size());
+        assertEquals(2, maxInFlight.get());
+    }
+
+    @Test
+    public void isolatesFailures() throws Exception {
+        FanOut fanOut = new FanOut(2, 60000, scheduler);
+
+        List<FanOut.Outcome<Integer>> outcomes = fanOut
+                .run(items(3), item -> {
+                    if (item == 1) {
+                        throw Status.NOT_FOUND.asRuntimeException();
+                    }
+                    return completedFuture(item);
+                })
+                .get();
+
+        assertTrue(outcomes.get(0).isSuccess());
+        assertFalse(outcomes.get(1).isSuccess());
+        assertEquals(
+                Status.Code.NOT_FOUND,
+                Status.fromThrowable(outcomes.get(1).error()).getCode());
+        assertEquals(Integer.valueOf(2), outcomes.get(2).value());
+    }
+
+    @Test
+    public void expiresCallsPastDeadline() throws Exception {
+        FanOut fanOut = new FanOut(2, 50, scheduler);
+        List<Integer> reported = new ArrayList<>();
+
+        List<FanOut.Outcome<Integer>> outcomes = fanOut
+                .run(
+                        items(2),
+                        item -> item == 0 ? completedFuture(item) : new CompletableFuture<>(),
+                        (index, outcome) -> {
+                            synchronized (reported) {
+                                reported.add(index);
+                            }
+                        })
+                .get(5, TimeUnit.SECONDS);
+
+        assertTrue(outcomes.get(0).isSuccess());
+        assertEquals(
+                Status.Code.DEADLINE_EXCEEDED,
+                Status.fromThrowable(outcomes.get(1).error()).getCode());
+        assertEquals(Arrays.asList(0, 1), reported);
+    }
+
+    @Test
+    public void runsLargeBatchOfImmediateCalls() throws Exception {
+        FanOut fanOut = new FanOut(4, 60000, scheduler);
+
+        List<FanOut.Outcome<Integer>> outcomes =
+                fanOut.run(items(100000), CompletableFuture::completedFuture).get();
+
+        assertEquals(100000, outcomes.size());
+        assertEquals(Integer.valueOf(99999), outcomes.get(99999).value());
+    }
+
+    @Test
+    public void completesEmptyBatch() throws Exception {
+        FanOut fanOut = new FanOut(4, 60000, scheduler);
+
+        assertTrue(fanOut.run(items(0), CompletableFuture::completedFuture).get().isEmpty());
+    }
+
+    private static List<Integer> items(int count) {
+        return IntStream.range(0, count).boxed().collect(Collectors.toList());
+    }
+}
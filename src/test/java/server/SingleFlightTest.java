@@ -0,0 +1,98 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SingleFlightTest {
+    private final SingleFlight<String, String> flights = new SingleFlight<>();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    public void sharesCallInFlight() throws Exception {
+        CompletableFuture<String> upstream = new CompletableFuture<>();
+
+        CompletableFuture<String> first = flights.execute("a", () -> call(upstream));
+        CompletableFuture<String> second = flights.execute("a", () -> call(upstream));
+
+        assertSame(first, second);
+        assertEquals(1, calls.get());
+        assertEquals(1, flights.inFlightCount());
+        upstream.complete("value");
+        assertEquals("value", second.get());
+        assertEquals(0, flights.inFlightCount());
+    }
+
+    @Test
+    public void keepsKeysApart() {
+        flights.execute("a", () -> call(new CompletableFuture<>()));
+        flights.execute("b", () -> call(new CompletableFuture<>()));
+
+        assertEquals(2, calls.get());
+        assertEquals(2, flights.inFlightCount());
+    }
+
+    @Test
+    public void startsNewCallOnceDone() throws Exception {
+        flights.execute("a", () -> call(CompletableFuture.completedFuture("first"))).get();
+
+        String second = flights
+                .execute("a", () -> call(CompletableFuture.completedFuture("second")))
+                .get();
+
+        assertEquals("second", second);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void sharesUnwrappedFailure() throws Exception {
+        CompletableFuture<String> upstream = new CompletableFuture<>();
+        CompletableFuture<String> first = flights.execute("a", () -> call(upstream));
+        CompletableFuture<String> second = flights.execute("a", () -> call(upstream));
+
+        upstream.completeExceptionally(Status.NOT_FOUND.asRuntimeException());
+
+        assertEquals(Status.Code.NOT_FOUND, failure(first).getStatus().getCode());
+        assertEquals(Status.Code.NOT_FOUND, failure(second).getStatus().getCode());
+        assertEquals(0, flights.inFlightCount());
+    }
+
+    @Test
+    public void releasesKeyWhenCallThrows() throws Exception {
+        CompletableFuture<String> failed = flights.execute("a", () -> {
+            throw Status.INVALID_ARGUMENT.asRuntimeException();
+        });
+
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(0, flights.inFlightCount());
+        assertEquals(
+                "retried",
+                flights.execute("a", () -> CompletableFuture.completedFuture("retried")).get());
+    }
+
+    private CompletableFuture<String> call(CompletableFuture<String> result) {
+        calls.incrementAndGet();
+        return result;
+    }
+
+    private static StatusRuntimeException failure(CompletableFuture<?> future)
+            throws InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            return (StatusRuntimeException) e.getCause();
+        }
+        fail("Expected the call to fail");
+        return null;
+    }
+}
@@ -0,0 +1,168 @@
+package server;
+
+import static io.token.proto.common.transaction.TransactionProtos.TransactionStatus.PROCESSING;
+import static io.token.proto.common.transaction.TransactionProtos.TransactionStatus.SUCCESS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.token.proto.common.transaction.TransactionProtos.Transaction;
+import io.token.proto.common.transaction.TransactionProtos.TransactionStatus;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransactionLogTest {
+    private static final String TOKEN_ID = "ta:3kNq5qUbZtN:5zKtXEAq";
+    private static final String ACCOUNT_ID = "a:8dVgiNLPcHT:5zKcENpV";
+    private static final int SEGMENT_BYTES = 4096;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private SecretKey key;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.getRoot().toPath().resolve("transactions");
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        key = generator.generateKey();
+    }
+
+    @Test
+    public void readsAppendedTransaction() throws Exception {
+        TransactionLog log = open();
+
+        long position = log.append(TOKEN_ID, ACCOUNT_ID, transaction("t1", SUCCESS));
+
+        assertEquals(transaction("t1", SUCCESS), log.read(position));
+    }
+
+    @Test
+    public void replaysRecordsInOrder() throws Exception {
+        TransactionLog log = open();
+        long first = log.append(TOKEN_ID, ACCOUNT_ID, transaction("t1", PROCESSING));
+        long second = log.append(TOKEN_ID, ACCOUNT_ID, transaction("t1", SUCCESS));
+        long marker = log.mark(TransactionLog.SYNCED, TOKEN_ID, ACCOUNT_ID, "offset-2");
+        log.force();
+
+        List<Long> positions = new ArrayList<>();
+        List<TransactionLog.Record> records = replay(open(), positions);
+
+        assertEquals(Arrays.asList(first, second, marker), positions);
+        assertEquals(PROCESSING, records.get(0).transaction.getStatus());
+        assertEquals(SUCCESS, records.get(1).transaction.getStatus());
+        assertEquals(TransactionLog.SYNCED, records.get(2).kind);
+        assertEquals("offset-2", records.get(2).detail);
+        assertNull(records.get(2).transaction);
+        assertEquals(ACCOUNT_ID, records.get(2).accountId);
+    }
+
+    @Test
+    public void endsAtTornRecordAndOverwritesIt() throws Exception {
+        TransactionLog log = open();
+        log.append(TOKEN_ID, ACCOUNT_ID, transaction("t1", SUCCESS));
+        log.append(TOKEN_ID, ACCOUNT_ID, transaction("t2", SUCCESS));
+        long torn = log.append(TOKEN_ID, ACCOUNT_ID, transaction("t3", SUCCESS));
+        log.force();
+        corrupt(0, (int) torn + 20);
+
+        TransactionLog reopened = open();
+        List<TransactionLog.Record> records = replay(reopened, new ArrayList<>());
+        long next = reopened.append(TOKEN_ID, ACCOUNT_ID, transaction("t4", SUCCESS));
+
+        assertEquals(2, records.size());
+        assertEquals("t2", records.get(1).transaction.getId());
+        assertEquals(torn, next);
+        assertEquals(transaction("t4", SUCCESS), reopened.read(next));
+    }
+
+    @Test
+    public void rejectsRecordsUnderAnotherKey() throws Exception {
+        TransactionLog log = open();
+        log.append(TOKEN_ID, ACCOUNT_ID, transaction("t1", SUCCESS));
+        log.force();
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        key = generator.generateKey();
+
+        assertEquals(0, replay(open(), new ArrayList<>()).size());
+    }
+
+    @Test
+    public void replaysAcrossSegments() throws Exception {
+        TransactionLog log = open();
+        List<Long> appended = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            appended.add(log.append(TOKEN_ID, ACCOUNT_ID, transaction("t" + i, SUCCESS)));
+        }
+        log.force();
+
+        List<Long> positions = new ArrayList<>();
+        List<TransactionLog.Record> records = replay(open(), positions);
+
+        assertEquals(appended, positions);
+        assertEquals("t99", records.get(99).transaction.getId());
+        assertTrue(appended.get(99) >>> 32 > 0);
+    }
+
+    @Test
+    public void dropsSegmentsBeforeCompaction() throws Exception {
+        TransactionLog log = open();
+        long old = log.append(TOKEN_ID, ACCOUNT_ID, transaction("t1", SUCCESS));
+        int first = log.seal();
+        long copy = log.append(TOKEN_ID, ACCOUNT_ID, transaction("t1", SUCCESS));
+        log.dropBefore(first);
+
+        try {
+            log.read(old);
+            fail("Expected the dropped record to be gone");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        List<Long> positions = new ArrayList<>();
+        replay(open(), positions);
+        assertEquals(Collections.singletonList(copy), positions);
+    }
+
+    private TransactionLog open() throws Exception {
+        return new TransactionLog(directory, SEGMENT_BYTES, key);
+    }
+
+    private static List<TransactionLog.Record> replay(TransactionLog log, List<Long> positions) {
+        List<TransactionLog.Record> records = new ArrayList<>();
+        log.replay((position, record) -> {
+            positions.add(position);
+            records.add(record);
+        });
+        return records;
+    }
+
+    private void corrupt(int segment, int offset) throws Exception {
+        Path file = directory.resolve(String.format("segment-%05d.log", segment));
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[offset] ^= 1;
+        Files.write(file, bytes);
+    }
+
+    private static Transaction transaction(String id, TransactionStatus status) {
+        return Transaction.newBuilder()
+                .setId(id)
+                .setStatus(status)
+                .build();
+    }
+}
@@ -0,0 +1,244 @@
+package server;
+
+import static io.token.proto.common.security.SecurityProtos.Key.Level.STANDARD;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.reactivex.Observable;
+import io.token.RepresentableAsync;
+import io.token.proto.PagedList;
+import io.token.proto.common.transaction.TransactionProtos.Transaction;
+import server.proto.Proxy.StreamTransactionsResponse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionPagerTest {
+    private static final String TOKEN_ID = "ta:3kNq5qUbZtN:5zKtXEAq";
+    private static final String ACCOUNT_ID = "a:8dVgiNLPcHT:5zKcENpV";
+    private static final int PAGE_SIZE = 100;
+
+    private final Map<String, PagedList<Transaction, String>> pages = new HashMap<>();
+    private final List<String> requested = Collections.synchronizedList(new ArrayList<>());
+    private TransactionPager pager;
+
+    @Before
+    public void setUp() {
+        Config config = ConfigFactory.load();
+        RepresentableAsync representable = mock(RepresentableAsync.class);
+        when(representable.getTransactions(eq(ACCOUNT_ID), anyString(), anyInt(), eq(STANDARD)))
+                .thenAnswer(invocation -> {
+                    String offset = invocation.getArgument(1);
+                    requested.add(offset);
+                    PagedList<Transaction, String> page = pages.get(offset);
+                    return page == null
+                            ? Observable.error(Status.NOT_FOUND.asRuntimeException())
+                            : Observable.just(page);
+                });
+        pager = new TransactionPager(
+                new RepresentablePool(config, tokenId -> representable),
+                new Upstream(config, new Metrics()),
+                TOKEN_ID,
+                ACCOUNT_ID,
+                PAGE_SIZE);
+    }
+
+    @Test
+    public void followsOffsetsAcrossShortPages() throws Exception {
+        // The bank returns fewer transactions than asked for, yet has more.
+        page("", "o1", "t1", "t2");
+        page("o1", "o2", "t3");
+        page("o2", "", "t4");
+
+        Observer observer = new Observer();
+        pager.streamTo(observer);
+
+        assertEquals(Arrays.asList("t1", "t2", "t3", "t4"), observer.completed());
+        assertEquals(Arrays.asList("", "o1", "o2"), requested);
+    }
+
+    @Test
+    public void endsWithoutOffset() throws Exception {
+        page("", "o1", "t1");
+        page("o1", null, "t2");
+
+        Observer observer = new Observer();
+        pager.streamTo(observer);
+
+        assertEquals(Arrays.asList("t1", "t2"), observer.completed());
+        assertEquals(Arrays.asList("", "o1"), requested);
+    }
+
+    @Test
+    public void endsWhenOffsetRepeats() throws Exception {
+        page("", "o1", "t1");
+        page("o1", "o1", "t2");
+
+        Observer observer = new Observer();
+        pager.streamTo(observer);
+
+        assertEquals(Arrays.asList("t1", "t2"), observer.completed());
+        assertEquals(Arrays.asList("", "o1"), requested);
+    }
+
+    @Test
+    public void completesEmptyHistory() throws Exception {
+        page("", "");
+
+        Observer observer = new Observer();
+        pager.streamTo(observer);
+
+        assertTrue(observer.completed().isEmpty());
+    }
+
+    @Test
+    public void failsAfterPagesSentWhenUpstreamFails() throws Exception {
+        page("", "missing", "t1");
+
+        Observer observer = new Observer();
+        pager.streamTo(observer);
+
+        try {
+            observer.completed();
+            fail("Expected the stream to fail");
+        } catch (ExecutionException e) {
+            assertEquals(Status.Code.NOT_FOUND, Status.fromThrowable(e.getCause()).getCode());
+        }
+        assertEquals(Collections.singletonList("t1"), observer.received);
+    }
+
+    @Test
+    public void fetchesOnePageAheadOfSlowClient() throws Exception {
+        page("", "o1", "t1");
+        page("o1", "o2", "t2");
+        page("o2", "", "t3");
+
+        Observer observer = new Observer();
+        observer.ready = false;
+        pager.streamTo(observer);
+
+        assertTrue(observer.received.isEmpty());
+        assertEquals(Arrays.asList("", "o1"), requested);
+        assertFalse(observer.done.isDone());
+
+        observer.ready = true;
+        observer.onReady.run();
+
+        assertEquals(Arrays.asList("t1", "t2", "t3"), observer.completed());
+        assertEquals(Arrays.asList("", "o1", "o2"), requested);
+    }
+
+    @Test
+    public void stopsFetchingWhenCancelled() throws Exception {
+        page("", "o1", "t1");
+        page("o1", "o2", "t2");
+        page("o2", "", "t3");
+
+        Observer observer = new Observer();
+        observer.ready = false;
+        pager.streamTo(observer);
+        observer.onCancel.run();
+        observer.ready = true;
+        observer.onReady.run();
+
+        assertTrue(observer.received.isEmpty());
+        assertEquals(Arrays.asList("", "o1"), requested);
+        assertFalse(observer.done.isDone());
+    }
+
+    private void page(String offset, String next, String... transactionIds) {
+        List<Transaction> transactions = new ArrayList<>();
+        for (String id : transactionIds) {
+            transactions.add(Transaction.newBuilder().setId(id).build());
+        }
+        pages.put(offset, PagedList.create(transactions, next));
+    }
+
+    /**
+     * Response observer with gRPC flow control that collects the transaction ids it is sent.
+     */
+    private static class Observer extends ServerCallStreamObserver<StreamTransactionsResponse> {
+        private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private volatile boolean ready = true;
+        private Runnable onReady;
+        private Runnable onCancel;
+
+        List<String> completed() throws Exception {
+            done.get(5, TimeUnit.SECONDS);
+            return received;
+        }
+
+        @Override
+        public void onNext(StreamTransactionsResponse value) {
+            received.add(value.getTransaction().getId());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            done.completeExceptionally(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            done.complete(null);
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+            this.onReady = onReadyHandler;
+        }
+
+        @Override
+        public void setOnCancelHandler(Runnable onCancelHandler) {
+            this.onCancel = onCancelHandler;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void setCompression(String compression) {
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+        }
+
+        @Override
+        public void request(int count) {
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable) {
+        }
+    }
+}
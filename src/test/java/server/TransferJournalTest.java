@@ -0,0 +1,146 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static server.proto.Proxy.TransferSubmissionStatus.PENDING;
+import static server.proto.Proxy.TransferSubmissionStatus.SUCCEEDED;
+
+import server.proto.Proxy.GetTransferStatusResponse;
+import server.proto.Proxy.TransferSubmissionStatus;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransferJournalTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+
+    @Before
+    public void setUp() {
+        file = folder.getRoot().toPath().resolve("transfers").resolve("journal");
+    }
+
+    @Test
+    public void replaysAppendedRecordsInOrder() throws Exception {
+        TransferJournal journal = new TransferJournal(file);
+        journal.open(Collections.emptyList());
+        append(journal, record("s1", PENDING));
+        append(journal, record("s2", PENDING));
+        append(journal, record("s1", SUCCEEDED));
+
+        List<TransferJournal.Record> replayed = new TransferJournal(file).replay();
+
+        assertEquals(Arrays.asList("s1", "s2", "s1"), ids(replayed));
+        assertEquals(SUCCEEDED, replayed.get(2).status.getStatus());
+        assertEquals("https://merchant.example.com/s1", replayed.get(2).callbackUrl);
+        assertEquals(3, journal.size());
+    }
+
+    @Test
+    public void replaysNothingWithoutJournal() throws Exception {
+        assertTrue(new TransferJournal(file).replay().isEmpty());
+    }
+
+    @Test
+    public void endsAtTornRecord() throws Exception {
+        TransferJournal journal = new TransferJournal(file);
+        journal.open(Collections.emptyList());
+        append(journal, record("s1", PENDING));
+        append(journal, record("s2", PENDING));
+        long intact = Files.size(file);
+        append(journal, record("s3", PENDING));
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, (int) intact + (bytes.length - (int) intact) / 2));
+
+        assertEquals(Arrays.asList("s1", "s2"), ids(new TransferJournal(file).replay()));
+    }
+
+    @Test
+    public void endsAtCorruptRecord() throws Exception {
+        TransferJournal journal = new TransferJournal(file);
+        journal.open(Collections.emptyList());
+        append(journal, record("s1", PENDING));
+        int intact = (int) Files.size(file);
+        append(journal, record("s2", PENDING));
+        append(journal, record("s3", PENDING));
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[intact + 12] ^= 1;
+        Files.write(file, bytes);
+
+        assertEquals(Collections.singletonList("s1"), ids(new TransferJournal(file).replay()));
+    }
+
+    @Test
+    public void opensWithLiveRecordsOnly() throws Exception {
+        TransferJournal journal = new TransferJournal(file);
+        journal.open(Collections.emptyList());
+        append(journal, record("s1", PENDING));
+        append(journal, record("s2", PENDING));
+        append(journal, record("s1", SUCCEEDED));
+
+        TransferJournal reopened = new TransferJournal(file);
+        List<TransferJournal.Record> replayed = reopened.replay();
+        reopened.open(Collections.singletonList(replayed.get(1)));
+
+        assertEquals(1, reopened.size());
+        assertEquals(Collections.singletonList("s2"), ids(new TransferJournal(file).replay()));
+    }
+
+    @Test
+    public void compactsWhileAppending() throws Exception {
+        TransferJournal journal = new TransferJournal(file);
+        journal.open(Collections.emptyList());
+        List<TransferJournal.Record> live = Collections.synchronizedList(new ArrayList<>());
+        append(journal, record("s1", PENDING));
+        append(journal, record("s1", SUCCEEDED));
+        TransferJournal.Record pending = record("s2", PENDING);
+        live.add(pending);
+        CompletableFuture<Void> written = journal.append(pending);
+
+        journal.compact(() -> new ArrayList<>(live));
+        written.get(5, TimeUnit.SECONDS);
+        // Completes once the compaction queued before it has run.
+        append(journal, record("s3", PENDING));
+
+        assertEquals(Arrays.asList("s2", "s3"), ids(new TransferJournal(file).replay()));
+        assertEquals(2, journal.size());
+    }
+
+    private static void append(TransferJournal journal, TransferJournal.Record record)
+            throws Exception {
+        journal.append(record).get(5, TimeUnit.SECONDS);
+    }
+
+    private static TransferJournal.Record record(
+            String submissionId,
+            TransferSubmissionStatus status) {
+        return new TransferJournal.Record(
+                "https://merchant.example.com/" + submissionId,
+                System.currentTimeMillis(),
+                GetTransferStatusResponse.newBuilder()
+                        .setSubmissionId(submissionId)
+                        .setTokenId("tt:" + submissionId)
+                        .setStatus(status)
+                        .build());
+    }
+
+    private static List<String> ids(List<TransferJournal.Record> records) {
+        return records.stream()
+                .map(record -> record.status.getSubmissionId())
+                .collect(Collectors.toList());
+    }
+}